@@ -0,0 +1,92 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.sonatype.nexus.blobstore.DefaultBlobIdLocationResolver;
+import org.sonatype.nexus.blobstore.MockBlobStoreConfiguration;
+import org.sonatype.nexus.blobstore.api.BlobStoreConfiguration;
+import org.sonatype.nexus.blobstore.api.BlobStoreException;
+import org.sonatype.nexus.common.log.DryRunPrefix;
+import org.sonatype.nexus.scheduling.PeriodicJobService;
+import org.sonatype.nexus.scheduling.PeriodicJobService.PeriodicJob;
+
+import com.codahale.metrics.MetricRegistry;
+
+import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.BUCKET_NAME_KEY;
+import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.CONFIG_KEY;
+
+/**
+ * Builds {@link GoogleCloudBlobStore}s backed by {@link LocalGoogleCloud#inMemory in-memory services}, for the
+ * benchmarks.
+ */
+final class BenchmarkBlobStores
+{
+  static final String BUCKET = "benchmarks";
+
+  private BenchmarkBlobStores() {
+  }
+
+  static BlobStoreConfiguration configuration(final String name) {
+    Map<String, Object> bucket = new HashMap<>();
+    bucket.put(BUCKET_NAME_KEY, BUCKET);
+    Map<String, Map<String, Object>> attributes = new HashMap<>();
+    attributes.put(CONFIG_KEY, bucket);
+
+    MockBlobStoreConfiguration configuration = new MockBlobStoreConfiguration();
+    configuration.setName(name);
+    configuration.setAttributes(attributes);
+    return configuration;
+  }
+
+  /**
+   * @return a started blob store; every Google Cloud call it makes is passed through {@code faults}
+   */
+  static GoogleCloudBlobStore start(final String name,
+                                    final FaultInjector faults,
+                                    final MultipartUploader uploader,
+                                    final MetricRegistry metricRegistry)
+  {
+    LocalGoogleCloud services = LocalGoogleCloud.inMemory(faults);
+    GoogleCloudBlobStore blobStore = new GoogleCloudBlobStore(services.storageFactory(),
+        new DefaultBlobIdLocationResolver(), periodicJobService(), services.datastoreFactory(),
+        new DryRunPrefix("BENCHMARK "), uploader, metricRegistry, null, 60);
+    try {
+      blobStore.init(configuration(name));
+      blobStore.start();
+    }
+    catch (Exception e) {
+      throw new BlobStoreException("Unable to start benchmark blob store " + name, e, null);
+    }
+    return blobStore;
+  }
+
+  /**
+   * @return a {@link PeriodicJobService} that never runs its jobs, so background flushes do not skew measurements
+   */
+  private static PeriodicJobService periodicJobService() {
+    PeriodicJob job = new PeriodicJob()
+    {
+      @Override
+      public void cancel() {
+        // never scheduled
+      }
+    };
+    return (PeriodicJobService) Proxy.newProxyInstance(PeriodicJobService.class.getClassLoader(),
+        new Class<?>[]{PeriodicJobService.class},
+        (proxy, method, args) -> "schedule".equals(method.getName()) ? job : null);
+  }
+}
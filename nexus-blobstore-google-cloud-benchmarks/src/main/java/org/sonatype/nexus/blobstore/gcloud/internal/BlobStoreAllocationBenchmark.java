@@ -0,0 +1,101 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal;
+
+import java.io.ByteArrayInputStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.sonatype.nexus.blobstore.api.Blob;
+import org.sonatype.nexus.blobstore.api.BlobId;
+import org.sonatype.nexus.blobstore.api.BlobStore;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Allocation per {@link GoogleCloudBlobStore} create and get, without injected latency. Read the
+ * {@code gc.alloc.rate.norm} (bytes per operation) results of the {@link GCProfiler}, which {@link #main} enables;
+ * from the benchmarks jar, pass {@code -prof gc}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlobStoreAllocationBenchmark
+{
+  private static final byte[] CONTENT = "allocation benchmark".getBytes();
+
+  private static final Map<String, String> HEADERS = ImmutableMap.of(
+      BlobStore.BLOB_NAME_HEADER, "allocation",
+      BlobStore.CREATED_BY_HEADER, "benchmark");
+
+  private MultipartUploader uploader;
+
+  private GoogleCloudBlobStore blobStore;
+
+  private BlobId existing;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    MetricRegistry metricRegistry = new MetricRegistry();
+    uploader = new MultipartUploader(metricRegistry, 0);
+    uploader.start();
+    blobStore = BenchmarkBlobStores.start("allocation-benchmark", FaultInjector.none(), uploader, metricRegistry);
+    existing = create().getId();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    blobStore.stop();
+    uploader.stop();
+  }
+
+  @Benchmark
+  public Blob create() {
+    return blobStore.create(new ByteArrayInputStream(CONTENT), HEADERS);
+  }
+
+  /**
+   * A get of a blob whose attributes are already cached, the most frequent call on the blob store.
+   */
+  @Benchmark
+  public Blob get() {
+    return blobStore.get(existing);
+  }
+
+  public static void main(final String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(BlobStoreAllocationBenchmark.class.getSimpleName())
+        .addProfiler(GCProfiler.class)
+        .build()).run();
+  }
+}
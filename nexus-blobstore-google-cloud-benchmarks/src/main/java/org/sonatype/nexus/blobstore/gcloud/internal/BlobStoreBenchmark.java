@@ -0,0 +1,133 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.sonatype.nexus.blobstore.api.Blob;
+import org.sonatype.nexus.blobstore.api.BlobId;
+import org.sonatype.nexus.blobstore.api.BlobStore;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of the {@link GoogleCloudBlobStore} request paths: create, get, content reads and listing.
+ *
+ * Runs against in-process fakes; {@link #latencyMillis} is added to every Google Cloud call to approximate a real
+ * round-trip.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlobStoreBenchmark
+{
+  private static final int PRELOADED_BLOBS = 200;
+
+  @Param({"0", "5"})
+  public long latencyMillis;
+
+  @Param({"1024", "1048576"})
+  public int blobSize;
+
+  private MultipartUploader uploader;
+
+  private GoogleCloudBlobStore blobStore;
+
+  private byte[] content;
+
+  private BlobId[] blobIds;
+
+  private int next;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    MetricRegistry metricRegistry = new MetricRegistry();
+    uploader = new MultipartUploader(metricRegistry, 0);
+    uploader.start();
+    blobStore = BenchmarkBlobStores.start("blob-store-benchmark",
+        FaultInjector.none().withLatency(latencyMillis, TimeUnit.MILLISECONDS), uploader, metricRegistry);
+
+    content = new byte[blobSize];
+    new Random(blobSize).nextBytes(content);
+    blobIds = new BlobId[PRELOADED_BLOBS];
+    for (int i = 0; i < blobIds.length; i++) {
+      blobIds[i] = blobStore.create(new ByteArrayInputStream(content), headers()).getId();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    blobStore.stop();
+    uploader.stop();
+  }
+
+  @Benchmark
+  public Blob create() {
+    return blobStore.create(new ByteArrayInputStream(content), headers());
+  }
+
+  @Benchmark
+  public Blob get() {
+    return blobStore.get(nextBlobId());
+  }
+
+  @Benchmark
+  public long getInputStream() throws IOException {
+    try (InputStream in = blobStore.get(nextBlobId()).getInputStream()) {
+      return ByteStreams.exhaust(in);
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  public void listing(final Blackhole blackhole) {
+    blackhole.consume(blobStore.getBlobIdStream().collect(Collectors.toList()));
+  }
+
+  private BlobId nextBlobId() {
+    next = (next + 1) % blobIds.length;
+    return blobIds[next];
+  }
+
+  private static Map<String, String> headers() {
+    return ImmutableMap.of(
+        BlobStore.BLOB_NAME_HEADER, "benchmark/" + UUID.randomUUID(),
+        BlobStore.CREATED_BY_HEADER, "benchmark");
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.sonatype.nexus.blobstore.api.BlobId;
+import org.sonatype.nexus.blobstore.api.BlobStore;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Throughput and allocation of downloading a blob to a file, through {@link BlobStore} streams against
+ * {@link GoogleCloudBlobStore#openChannel(BlobId)} channels read into a direct buffer. Read the
+ * {@code gc.alloc.rate.norm} (bytes per download) results of the {@link GCProfiler}, which {@link #main} enables;
+ * from the benchmarks jar, pass {@code -prof gc}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChannelReadBenchmark
+{
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  @Param({"1048576", "16777216"})
+  public int blobSize;
+
+  private MultipartUploader uploader;
+
+  private GoogleCloudBlobStore blobStore;
+
+  private BlobId blobId;
+
+  private Path file;
+
+  private FileChannel sink;
+
+  private final byte[] heapBuffer = new byte[BUFFER_SIZE];
+
+  private final ByteBuffer directBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    MetricRegistry metricRegistry = new MetricRegistry();
+    uploader = new MultipartUploader(metricRegistry, 0);
+    uploader.start();
+    blobStore = BenchmarkBlobStores.start("channel-read-benchmark", FaultInjector.none(), uploader, metricRegistry);
+
+    byte[] content = new byte[blobSize];
+    new Random(blobSize).nextBytes(content);
+    blobId = blobStore.create(new ByteArrayInputStream(content), ImmutableMap.of(
+        BlobStore.BLOB_NAME_HEADER, "channel-read",
+        BlobStore.CREATED_BY_HEADER, "benchmark")).getId();
+
+    file = Files.createTempFile("channel-read-benchmark", ".bytes");
+    sink = FileChannel.open(file, StandardOpenOption.WRITE);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    sink.close();
+    Files.deleteIfExists(file);
+    blobStore.stop();
+    uploader.stop();
+  }
+
+  /**
+   * The content is copied into a heap array, then into a temporary direct buffer by the file channel.
+   */
+  @Benchmark
+  public long stream() throws IOException {
+    long written = 0;
+    sink.position(0);
+    try (InputStream in = blobStore.get(blobId).getInputStream()) {
+      int read;
+      while ((read = in.read(heapBuffer)) >= 0) {
+        written += sink.write(ByteBuffer.wrap(heapBuffer, 0, read));
+      }
+    }
+    return written;
+  }
+
+  @Benchmark
+  public long channel() throws IOException {
+    long written = 0;
+    sink.position(0);
+    try (ReadableByteChannel in = blobStore.openChannel(blobId)) {
+      while (in.read(directBuffer) >= 0) {
+        ((Buffer) directBuffer).flip();
+        while (directBuffer.hasRemaining()) {
+          written += sink.write(directBuffer);
+        }
+        ((Buffer) directBuffer).clear();
+      }
+    }
+    return written;
+  }
+
+  public static void main(final String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(ChannelReadBenchmark.class.getSimpleName())
+        .addProfiler(GCProfiler.class)
+        .build()).run();
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.io.ByteStreams;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * CPU cost against bytes saved of {@link ContentCompression} for each deflate level, on POM-like XML, JSON metadata
+ * and incompressible content of 256 KB. The time per operation is the CPU cost; the {@code bytesIn} and
+ * {@code bytesStored} counters give the compression ratio.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark
+{
+  private static final int CONTENT_SIZE = 256 * 1024;
+
+  @Param({"1", "6", "9"})
+  public int level;
+
+  @Param({"pom", "json", "random"})
+  public String content;
+
+  private ContentCompression compression;
+
+  private byte[] original;
+
+  private byte[] compressed;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    compression = new ContentCompression(level, GoogleCloudBlobStore.DEFAULT_COMPRESSION_ALLOW_LIST);
+    original = content(content);
+    try (InputStream stored = compression.compress(new ByteArrayInputStream(original))) {
+      compressed = ByteStreams.toByteArray(stored);
+    }
+  }
+
+  /**
+   * Bytes read and written by {@link #compress}, summed over each iteration.
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Sizes
+  {
+    public long bytesIn;
+
+    public long bytesStored;
+  }
+
+  @Benchmark
+  public long compress(final Sizes sizes) throws IOException {
+    try (InputStream stored = compression.compress(new ByteArrayInputStream(original))) {
+      long length = ByteStreams.exhaust(stored);
+      sizes.bytesIn += original.length;
+      sizes.bytesStored += length;
+      return length;
+    }
+  }
+
+  @Benchmark
+  public long decompress() throws IOException {
+    try (InputStream decompressed = ContentCompression.decompress(new ByteArrayInputStream(compressed),
+        ContentCompression.DEFLATE)) {
+      return ByteStreams.exhaust(decompressed);
+    }
+  }
+
+  private static byte[] content(final String kind) {
+    Random random = new Random(CONTENT_SIZE);
+    StringBuilder text = new StringBuilder(CONTENT_SIZE);
+    switch (kind) {
+      case "pom":
+        while (text.length() < CONTENT_SIZE) {
+          text.append("  <dependency>\n")
+              .append("    <groupId>org.example.group").append(random.nextInt(50)).append("</groupId>\n")
+              .append("    <artifactId>artifact-").append(random.nextInt(1000)).append("</artifactId>\n")
+              .append("    <version>").append(random.nextInt(10)).append('.').append(random.nextInt(20))
+              .append('.').append(random.nextInt(100)).append("</version>\n")
+              .append("    <scope>").append(random.nextBoolean() ? "compile" : "test").append("</scope>\n")
+              .append("  </dependency>\n");
+        }
+        break;
+      case "json":
+        while (text.length() < CONTENT_SIZE) {
+          text.append("{\"name\":\"package-").append(random.nextInt(10000))
+              .append("\",\"version\":\"").append(random.nextInt(10)).append('.').append(random.nextInt(100))
+              .append("\",\"shasum\":\"").append(Long.toHexString(random.nextLong()))
+              .append(Long.toHexString(random.nextLong())).append("\",\"size\":").append(random.nextInt(1000000))
+              .append("},\n");
+        }
+        break;
+      default:
+        byte[] bytes = new byte[CONTENT_SIZE];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+    return text.substring(0, CONTENT_SIZE).getBytes(StandardCharsets.UTF_8);
+  }
+}
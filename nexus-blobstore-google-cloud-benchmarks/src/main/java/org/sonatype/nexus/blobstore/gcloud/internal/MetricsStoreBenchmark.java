@@ -0,0 +1,80 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.sonatype.nexus.blobstore.DefaultBlobIdLocationResolver;
+import org.sonatype.nexus.blobstore.api.BlobId;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link ShardedCounterMetricsStore#flush()} of a batch of pending additions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricsStoreBenchmark
+{
+  @Param({"0", "5"})
+  public long latencyMillis;
+
+  @Param({"10", "1000"})
+  public int pendingMutations;
+
+  private ShardedCounterMetricsStore metricsStore;
+
+  private BlobId[] blobIds;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    // the flush rate limit is in permits per second; make it high enough to never throttle the benchmark
+    metricsStore = new ShardedCounterMetricsStore(new DefaultBlobIdLocationResolver(),
+        InMemoryDatastore.create(FaultInjector.none().withLatency(latencyMillis, TimeUnit.MILLISECONDS)),
+        BenchmarkBlobStores.configuration("metrics-store-benchmark"), Integer.MAX_VALUE);
+    metricsStore.initialize();
+
+    blobIds = new BlobId[pendingMutations];
+    for (int i = 0; i < blobIds.length; i++) {
+      blobIds[i] = new BlobId(UUID.randomUUID().toString());
+    }
+  }
+
+  @Setup(Level.Invocation)
+  public void recordAdditions() {
+    for (BlobId blobId : blobIds) {
+      metricsStore.recordAddition(blobId, 1024L);
+    }
+  }
+
+  @Benchmark
+  public void flush() {
+    metricsStore.flush();
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.Storage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link MultipartUploader#parallelUpload} of a 20 MB stream across chunk sizes, against the upload of
+ * the same content from a local file in ranges read in parallel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MultipartUploaderBenchmark
+{
+  private static final int CONTENT_SIZE = 20 * 1024 * 1024;
+
+  @Param({"0", "5"})
+  public long latencyMillis;
+
+  @Param({"1048576", "5242880", "10485760"})
+  public int chunkSize;
+
+  private MultipartUploader uploader;
+
+  private Storage storage;
+
+  private byte[] content;
+
+  private Path file;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    uploader = new MultipartUploader(new MetricRegistry(), chunkSize);
+    uploader.start();
+    storage = FakeGoogleCloudStorage.create(FaultInjector.none().withLatency(latencyMillis, TimeUnit.MILLISECONDS));
+
+    content = new byte[CONTENT_SIZE];
+    new Random(CONTENT_SIZE).nextBytes(content);
+    file = Files.write(Files.createTempFile("multipart-uploader-benchmark", ".bytes"), content);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    uploader.stop();
+    Files.deleteIfExists(file);
+  }
+
+  @Benchmark
+  public Blob parallelUpload() {
+    return uploader.parallelUpload(storage, BenchmarkBlobStores.BUCKET, "content/" + UUID.randomUUID(),
+        new ByteArrayInputStream(content), () -> {});
+  }
+
+  @Benchmark
+  public Blob fileUpload() {
+    return uploader.upload(storage, BenchmarkBlobStores.BUCKET, "content/" + UUID.randomUUID(), file, CONTENT_SIZE);
+  }
+}
@@ -0,0 +1,4 @@
+package org.sonatype.nexus.blobstore.gcloud.internal.jmh_generated;
+public class BlobStoreAllocationBenchmark_jmhType extends BlobStoreAllocationBenchmark_jmhType_B3 {
+}
+
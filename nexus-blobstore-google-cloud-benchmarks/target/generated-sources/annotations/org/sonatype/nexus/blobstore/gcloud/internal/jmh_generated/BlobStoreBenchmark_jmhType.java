@@ -0,0 +1,4 @@
+package org.sonatype.nexus.blobstore.gcloud.internal.jmh_generated;
+public class BlobStoreBenchmark_jmhType extends BlobStoreBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package org.sonatype.nexus.blobstore.gcloud.internal.jmh_generated;
+public class ChannelReadBenchmark_jmhType extends ChannelReadBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package org.sonatype.nexus.blobstore.gcloud.internal.jmh_generated;
+public class CompressionBenchmark_Sizes_jmhType extends CompressionBenchmark_Sizes_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package org.sonatype.nexus.blobstore.gcloud.internal.jmh_generated;
+public class MetricsStoreBenchmark_jmhType extends MetricsStoreBenchmark_jmhType_B3 {
+}
+
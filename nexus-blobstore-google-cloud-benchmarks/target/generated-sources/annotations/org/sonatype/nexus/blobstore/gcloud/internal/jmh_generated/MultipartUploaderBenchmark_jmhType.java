@@ -0,0 +1,4 @@
+package org.sonatype.nexus.blobstore.gcloud.internal.jmh_generated;
+public class MultipartUploaderBenchmark_jmhType extends MultipartUploaderBenchmark_jmhType_B3 {
+}
+
@@ -18,6 +18,7 @@ import java.io.Reader;
 import java.net.ProxySelector;
 
 import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.api.gax.retrying.RetrySettings;
 import com.google.cloud.TransportOptions;
 import com.google.cloud.http.HttpTransportOptions;
 import com.google.gson.JsonObject;
@@ -40,6 +41,9 @@ import org.apache.http.params.HttpParams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
 /**
  * Abstract supertype for Factory classes that generate Google Clients (for Storage, Datastore, etc).
  */
@@ -53,6 +57,50 @@ public abstract class AbstractGoogleClientFactory
    */
   public static final long KEEP_ALIVE_DURATION = 60_000L;
 
+  /**
+   * Default size of the HTTP session buffers, as used within {@link ApacheHttpTransport#newDefaultHttpClient()}.
+   */
+  static final int DEFAULT_SOCKET_BUFFER_SIZE = 8192;
+
+  /**
+   * Default size of the HTTP connection pool, as used within {@link ApacheHttpTransport#newDefaultHttpClient()}.
+   */
+  static final int DEFAULT_MAX_CONNECTIONS = 200;
+
+  private final int socketBufferSize;
+
+  private final int maxConnections;
+
+  private final RetryPolicy retryPolicy;
+
+  protected AbstractGoogleClientFactory() {
+    this(DEFAULT_SOCKET_BUFFER_SIZE, DEFAULT_MAX_CONNECTIONS, RetryPolicy.DEFAULT);
+  }
+
+  protected AbstractGoogleClientFactory(final int socketBufferSize, final int maxConnections,
+                                        final RetryPolicy retryPolicy) {
+    checkArgument(socketBufferSize > 0, "socket buffer size must be greater than 0");
+    checkArgument(maxConnections > 0, "max connections must be greater than 0");
+    this.socketBufferSize = socketBufferSize;
+    this.maxConnections = maxConnections;
+    this.retryPolicy = checkNotNull(retryPolicy);
+  }
+
+  int getSocketBufferSize() {
+    return socketBufferSize;
+  }
+
+  int getMaxConnections() {
+    return maxConnections;
+  }
+
+  /**
+   * @return the {@link RetrySettings} for our Google client instances, built from the configured {@link RetryPolicy}
+   */
+  RetrySettings retrySettings() {
+    return retryPolicy.toRetrySettings();
+  }
+
   /**
    * Provide a {@link TransportOptions} backed by Apache HTTP Client.
    *
@@ -65,6 +113,19 @@ public abstract class AbstractGoogleClientFactory
         .build();
   }
 
+  /**
+   * Provide a {@link TransportOptions} backed by the given Apache HTTP Client, so that the caller controls the
+   * lifecycle of the connection pool.
+   *
+   * @param httpClient the client every transport created from these options will use
+   * @return customized {@link TransportOptions} to use for our Google client instances
+   */
+  TransportOptions transportOptions(final HttpClient httpClient) {
+    return HttpTransportOptions.newBuilder()
+        .setHttpTransportFactory(() -> new ApacheHttpTransport(httpClient))
+        .build();
+  }
+
   HttpClient newHttpClient() {
     return newDefaultHttpClient(
         SSLSocketFactory.getSocketFactory(), newDefaultHttpParams(), ProxySelector.getDefault());
@@ -72,23 +133,26 @@ public abstract class AbstractGoogleClientFactory
 
   /**
    * Replicates default connection and protocol parameters used within
-   * {@link ApacheHttpTransport#newDefaultHttpClient()} with one exception:
+   * {@link ApacheHttpTransport#newDefaultHttpClient()} with these exceptions:
    *
    * Stale checking is enabled.
+   * The socket buffer size and connection pool size are configurable, see {@link #getSocketBufferSize()} and
+   * {@link #getMaxConnections()}.
    */
   HttpParams newDefaultHttpParams() {
     HttpParams params = new BasicHttpParams();
     HttpConnectionParams.setStaleCheckingEnabled(params, true);
-    HttpConnectionParams.setSocketBufferSize(params, 8192);
-    ConnManagerParams.setMaxTotalConnections(params, 200);
-    ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(200));
+    HttpConnectionParams.setSocketBufferSize(params, socketBufferSize);
+    ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+    ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnections));
     return params;
   }
 
   /**
    * Replicates {@link ApacheHttpTransport#newDefaultHttpClient()} with one exception:
    *
-   * 1 retry is allowed.
+   * 1 retry is allowed. This only covers I/O errors on the connection; backoff for failed requests is governed by
+   * {@link #retrySettings()}.
    *
    * @see DefaultHttpRequestRetryHandler
    */
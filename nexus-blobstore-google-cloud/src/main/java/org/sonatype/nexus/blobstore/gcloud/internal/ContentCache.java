@@ -0,0 +1,452 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.blobstore.api.BlobId;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Read-through cache of blob content on local disk, in front of Google Cloud Storage.
+ *
+ * Content is written to the cache while the first reader streams it from the bucket ({@link #populate}). The copy
+ * only becomes an entry once the whole stream has been read and its SHA-1 matches the one in the blob attributes;
+ * later reads with the same SHA-1 are served from disk ({@link #get}). The least recently used entries are evicted
+ * once the cache grows beyond its capacity.
+ *
+ * Entries are files named {@code <hash of the blob id>.<content sha1>}, so the cache survives restarts.
+ */
+class ContentCache
+    extends ComponentSupport
+{
+  private static final String PARTIAL_SUFFIX = ".partial";
+
+  /**
+   * Blobs larger than this fraction of the capacity are not cached, so one large blob cannot flush the cache.
+   */
+  private static final int MAX_ENTRY_FRACTION = 10;
+
+  private final Path directory;
+
+  private final long capacityBytes;
+
+  /**
+   * Cache entries in least to most recently used order.
+   */
+  private final LinkedHashMap<String, CachedContent> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  /**
+   * Keys of blobs being written to the cache, each with a token identifying the current writer. Only the writer
+   * holding the current token commits; {@link #invalidate} removes the token, so a copy started before it is dropped
+   * even if another reader has started a new copy since.
+   */
+  private final Map<String, Object> populating = new HashMap<>();
+
+  private long size;
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private final AtomicLong bytesSaved = new AtomicLong();
+
+  private final AtomicLong evictions = new AtomicLong();
+
+  ContentCache(final Path directory, final long capacityBytes) {
+    checkArgument(capacityBytes > 0, "capacity must be greater than 0");
+    this.directory = checkNotNull(directory);
+    this.capacityBytes = capacityBytes;
+  }
+
+  /**
+   * Creates the cache directory, or loads the entries already in it.
+   */
+  synchronized void initialize() throws IOException {
+    Files.createDirectories(directory);
+    List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+      stream.forEach(files::add);
+    }
+    files.sort(Comparator.comparing(ContentCache::lastModified));
+    for (Path file : files) {
+      String name = file.getFileName().toString();
+      int separator = name.indexOf('.');
+      if (name.endsWith(PARTIAL_SUFFIX) || separator < 0) {
+        // left behind by an interrupted write
+        Files.deleteIfExists(file);
+        continue;
+      }
+      CachedContent content = new CachedContent(file, name.substring(separator + 1), Files.size(file));
+      entries.put(name.substring(0, separator), content);
+      size += content.size;
+    }
+    evict();
+    log.info("Content cache in {} holds {} blobs, {} bytes", directory, entries.size(), size);
+  }
+
+  /**
+   * @param sha1 the SHA-1 of the blob content, from its attributes
+   * @return the cached content of the blob, or null if it is not cached
+   */
+  @Nullable
+  InputStream get(final BlobId blobId, final String sha1) {
+    final CachedContent content;
+    synchronized (this) {
+      content = entries.get(key(blobId));
+    }
+    if (content != null && content.sha1.equals(sha1)) {
+      try {
+        InputStream in = Files.newInputStream(content.file);
+        hits.incrementAndGet();
+        bytesSaved.addAndGet(content.size);
+        return in;
+      }
+      catch (NoSuchFileException e) {
+        log.debug("Cached content of {} was removed from {}", blobId, content.file);
+        invalidate(blobId);
+      }
+      catch (IOException e) {
+        log.warn("Unable to read cached content of {} from {}", blobId, content.file, e);
+      }
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * @param sha1 the SHA-1 of the blob content, from its attributes
+   * @param size the size of the blob content, from its attributes
+   * @return {@code source}, or a stream that also writes the content to the cache as it is read
+   */
+  InputStream populate(final BlobId blobId, final String sha1, final long size, final InputStream source) {
+    if (size > capacityBytes / MAX_ENTRY_FRACTION) {
+      return source;
+    }
+    final String key = key(blobId);
+    final Object token = new Object();
+    synchronized (this) {
+      if (populating.putIfAbsent(key, token) != null) {
+        // another reader is already writing it
+        return source;
+      }
+    }
+    Path partial = null;
+    try {
+      // a file of its own, as a copy abandoned by invalidate may still be writing
+      partial = Files.createTempFile(directory, key, PARTIAL_SUFFIX);
+      return new PopulatingInputStream(source, key, token, sha1, size, partial, Files.newOutputStream(partial));
+    }
+    catch (IOException e) {
+      log.warn("Unable to cache content of {} in {}", blobId, directory, e);
+      abandon(key, token, partial);
+      return source;
+    }
+  }
+
+  /**
+   * Removes a blob from the cache, including a copy being written.
+   */
+  void invalidate(final BlobId blobId) {
+    final String key = key(blobId);
+    final CachedContent removed;
+    synchronized (this) {
+      populating.remove(key);
+      removed = entries.remove(key);
+      if (removed != null) {
+        size -= removed.size;
+      }
+    }
+    if (removed != null) {
+      delete(removed.file);
+    }
+  }
+
+  /**
+   * Removes every entry and the cache directory.
+   */
+  synchronized void clear() throws IOException {
+    populating.clear();
+    entries.clear();
+    size = 0;
+    if (Files.isDirectory(directory)) {
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+        stream.forEach(this::delete);
+      }
+      Files.deleteIfExists(directory);
+    }
+  }
+
+  long getHitCount() {
+    return hits.get();
+  }
+
+  long getMissCount() {
+    return misses.get();
+  }
+
+  long getBytesSaved() {
+    return bytesSaved.get();
+  }
+
+  long getEvictionCount() {
+    return evictions.get();
+  }
+
+  synchronized long getSize() {
+    return size;
+  }
+
+  synchronized int getEntryCount() {
+    return entries.size();
+  }
+
+  private void commit(final String key, final Object token, final String sha1, final long length, final Path partial) {
+    Path file = directory.resolve(key + '.' + sha1);
+    synchronized (this) {
+      if (!populating.remove(key, token)) {
+        // invalidated while it was being written
+        delete(partial);
+        return;
+      }
+      try {
+        Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch (IOException e) {
+        log.warn("Unable to add {} to the content cache", file, e);
+        delete(partial);
+        return;
+      }
+      CachedContent previous = entries.put(key, new CachedContent(file, sha1, length));
+      if (previous != null) {
+        size -= previous.size;
+        if (!previous.file.equals(file)) {
+          delete(previous.file);
+        }
+      }
+      size += length;
+      evict();
+    }
+  }
+
+  private synchronized void abandon(final String key, final Object token, @Nullable final Path partial) {
+    populating.remove(key, token);
+    if (partial != null) {
+      delete(partial);
+    }
+  }
+
+  private void evict() {
+    Iterator<Entry<String, CachedContent>> iterator = entries.entrySet().iterator();
+    while (size > capacityBytes && iterator.hasNext()) {
+      CachedContent evicted = iterator.next().getValue();
+      iterator.remove();
+      size -= evicted.size;
+      evictions.incrementAndGet();
+      delete(evicted.file);
+    }
+  }
+
+  private void delete(final Path file) {
+    try {
+      Files.deleteIfExists(file);
+    }
+    catch (IOException e) {
+      log.debug("Unable to delete {} from the content cache", file, e);
+    }
+  }
+
+  private static String key(final BlobId blobId) {
+    return Hashing.sha1().hashString(blobId.asUniqueString(), StandardCharsets.UTF_8).toString();
+  }
+
+  private static FileTime lastModified(final Path file) {
+    try {
+      return Files.getLastModifiedTime(file);
+    }
+    catch (IOException e) {
+      return FileTime.fromMillis(0);
+    }
+  }
+
+  private static class CachedContent
+  {
+    private final Path file;
+
+    private final String sha1;
+
+    private final long size;
+
+    CachedContent(final Path file, final String sha1, final long size) {
+      this.file = file;
+      this.sha1 = sha1;
+      this.size = size;
+    }
+  }
+
+  /**
+   * Copies the content to the cache as it is read, and adds it once the end of the stream is reached with the
+   * expected size and SHA-1. Closing the stream before then abandons the copy.
+   */
+  private class PopulatingInputStream
+      extends FilterInputStream
+  {
+    private final String key;
+
+    private final Object token;
+
+    private final String sha1;
+
+    private final long expectedSize;
+
+    private final Path partial;
+
+    private final OutputStream copy;
+
+    private final Hasher hasher = Hashing.sha1().newHasher();
+
+    private long copied;
+
+    private boolean done;
+
+    PopulatingInputStream(final InputStream source,
+                          final String key,
+                          final Object token,
+                          final String sha1,
+                          final long expectedSize,
+                          final Path partial,
+                          final OutputStream copy)
+    {
+      super(source);
+      this.key = key;
+      this.token = token;
+      this.sha1 = sha1;
+      this.expectedSize = expectedSize;
+      this.partial = partial;
+      this.copy = copy;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b < 0) {
+        finish(true);
+      }
+      else {
+        write(new byte[]{(byte) b}, 0, 1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n < 0) {
+        finish(true);
+      }
+      else {
+        write(b, off, n);
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+      // skipped content cannot be cached
+      finish(false);
+      return super.skip(n);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      }
+      finally {
+        finish(false);
+      }
+    }
+
+    private void write(final byte[] b, final int off, final int len) {
+      if (done) {
+        return;
+      }
+      try {
+        copy.write(b, off, len);
+        hasher.putBytes(b, off, len);
+        copied += len;
+      }
+      catch (IOException e) {
+        log.warn("Unable to write {} to the content cache", partial, e);
+        finish(false);
+      }
+    }
+
+    private void finish(final boolean endOfStream) {
+      if (done) {
+        return;
+      }
+      done = true;
+      try {
+        copy.close();
+      }
+      catch (IOException e) {
+        log.debug("Unable to close {}", partial, e);
+        abandon(key, token, partial);
+        return;
+      }
+      if (!endOfStream) {
+        abandon(key, token, partial);
+      }
+      else if (copied != expectedSize || !hasher.hash().toString().equals(sha1)) {
+        log.warn("Not caching {}, its content does not match the size and SHA-1 in its attributes", partial);
+        abandon(key, token, partial);
+      }
+      else {
+        commit(key, token, sha1, copied, partial);
+      }
+    }
+  }
+}
@@ -0,0 +1,245 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.sonatype.nexus.blobstore.api.BlobStore.BLOB_NAME_HEADER;
+import static org.sonatype.nexus.blobstore.api.BlobStore.CONTENT_TYPE_HEADER;
+
+/**
+ * Deflate compression of blob content, applied while the content streams to the bucket.
+ *
+ * Only blobs whose content type or name extension is in the allow-list are compressed: text formats shrink several
+ * times over, while archives and images are compressed already and would cost CPU for nothing. The allow-list is a
+ * comma separated list of content types, where {@code text/*} matches every subtype, and extensions starting with a
+ * dot, such as {@code .pom}.
+ *
+ * Decompression does not depend on the allow-list or on compression being enabled, so content stays readable after
+ * either changes.
+ */
+class ContentCompression
+{
+  /**
+   * The content encoding recorded in the attributes of compressed blobs.
+   */
+  static final String DEFLATE = "deflate";
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final int level;
+
+  private final Set<String> contentTypes;
+
+  private final Set<String> contentTypePrefixes;
+
+  private final Set<String> extensions;
+
+  private final AtomicLong blobsCompressed = new AtomicLong();
+
+  private final AtomicLong bytesIn = new AtomicLong();
+
+  private final AtomicLong bytesStored = new AtomicLong();
+
+  /**
+   * @param level     the {@link Deflater} compression level, from 1 (fastest) to 9 (smallest)
+   * @param allowList the content types and extensions to compress
+   */
+  ContentCompression(final int level, final String allowList) {
+    checkArgument(level >= Deflater.BEST_SPEED && level <= Deflater.BEST_COMPRESSION,
+        "compression level must be between 1 and 9");
+    this.level = level;
+    ImmutableSet.Builder<String> types = ImmutableSet.builder();
+    ImmutableSet.Builder<String> typePrefixes = ImmutableSet.builder();
+    ImmutableSet.Builder<String> suffixes = ImmutableSet.builder();
+    Iterable<String> entries = Splitter.on(',').trimResults().omitEmptyStrings()
+        .split(allowList.toLowerCase(Locale.ENGLISH));
+    for (String entry : entries) {
+      if (entry.startsWith(".")) {
+        suffixes.add(entry);
+      }
+      else if (entry.endsWith("/*")) {
+        typePrefixes.add(entry.substring(0, entry.length() - 1));
+      }
+      else {
+        types.add(entry);
+      }
+    }
+    this.contentTypes = types.build();
+    this.contentTypePrefixes = typePrefixes.build();
+    this.extensions = suffixes.build();
+  }
+
+  /**
+   * @return true if the blob with these headers should be compressed
+   */
+  boolean accepts(final Map<String, String> headers) {
+    String contentType = headers.get(CONTENT_TYPE_HEADER);
+    if (contentType != null) {
+      // without parameters such as the charset
+      int parameters = contentType.indexOf(';');
+      String type = (parameters < 0 ? contentType : contentType.substring(0, parameters)).trim()
+          .toLowerCase(Locale.ENGLISH);
+      if (contentTypes.contains(type) || contentTypePrefixes.stream().anyMatch(type::startsWith)) {
+        return true;
+      }
+    }
+    String name = headers.get(BLOB_NAME_HEADER);
+    if (name != null) {
+      String lowerCaseName = name.toLowerCase(Locale.ENGLISH);
+      return extensions.stream().anyMatch(lowerCaseName::endsWith);
+    }
+    return false;
+  }
+
+  /**
+   * @return a stream of the compressed form of {@code content}; closing it closes {@code content}
+   */
+  InputStream compress(final InputStream content) {
+    return new CompressingInputStream(new CountingInputStream(content), new Deflater(level));
+  }
+
+  /**
+   * @param encoding the content encoding from the attributes of the blob, null if it is not compressed
+   * @return a stream of the original content of a blob stored as {@code stored}
+   */
+  static InputStream decompress(final InputStream stored, @Nullable final String encoding) {
+    if (encoding == null) {
+      return stored;
+    }
+    checkArgument(DEFLATE.equals(encoding), "Unsupported content encoding %s", encoding);
+    return new DecompressingInputStream(stored, new Inflater());
+  }
+
+  /**
+   * Byte array variant of {@link #decompress(InputStream, String)}, for content read in one call.
+   */
+  static byte[] decompress(final byte[] stored, @Nullable final String encoding) throws IOException {
+    if (encoding == null) {
+      return stored;
+    }
+    try (InputStream content = decompress(new ByteArrayInputStream(stored), encoding)) {
+      return ByteStreams.toByteArray(content);
+    }
+  }
+
+  long getBlobsCompressed() {
+    return blobsCompressed.get();
+  }
+
+  /**
+   * @return the original size of the compressed blobs
+   */
+  long getBytesIn() {
+    return bytesIn.get();
+  }
+
+  /**
+   * @return the compressed size of the compressed blobs
+   */
+  long getBytesStored() {
+    return bytesStored.get();
+  }
+
+  /**
+   * Counts its content once it has been read to the end. The {@link Deflater} holds native memory, so it is ended on
+   * close rather than left to the garbage collector.
+   */
+  private class CompressingInputStream
+      extends DeflaterInputStream
+  {
+    private final CountingInputStream content;
+
+    private long compressed;
+
+    private boolean closed;
+
+    CompressingInputStream(final CountingInputStream content, final Deflater deflater) {
+      super(content, deflater, BUFFER_SIZE);
+      this.content = content;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      int read = super.read(b, off, len);
+      if (read > 0) {
+        compressed += read;
+      }
+      return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      try {
+        if (def.finished()) {
+          blobsCompressed.incrementAndGet();
+          bytesIn.addAndGet(content.getCount());
+          bytesStored.addAndGet(compressed);
+        }
+        super.close();
+      }
+      finally {
+        def.end();
+      }
+    }
+  }
+
+  /**
+   * Ends its {@link Inflater} on close, see {@link CompressingInputStream}.
+   */
+  private static class DecompressingInputStream
+      extends InflaterInputStream
+  {
+    private boolean closed;
+
+    DecompressingInputStream(final InputStream stored, final Inflater inflater) {
+      super(stored, inflater, BUFFER_SIZE);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      try {
+        super.close();
+      }
+      finally {
+        inf.end();
+      }
+    }
+  }
+}
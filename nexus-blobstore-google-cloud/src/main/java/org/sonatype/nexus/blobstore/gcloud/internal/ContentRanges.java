@@ -0,0 +1,73 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+
+import com.google.cloud.ReadChannel;
+import com.google.common.io.ByteStreams;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Helpers to read a range of blob content, fetching only the bytes of the range where the source can seek.
+ */
+final class ContentRanges
+{
+  /**
+   * The chunk size of a {@link ReadChannel} left at its default.
+   */
+  static final int DEFAULT_CHUNK_SIZE = 2 * 1024 * 1024;
+
+  private ContentRanges() {
+  }
+
+  /**
+   * @param chunkSize the most bytes to fetch per call, or 0 for the default
+   * @return a stream of up to {@code length} bytes of the channel from {@code offset}; closing it closes the channel
+   */
+  static InputStream open(final ReadChannel channel, final long offset, final long length, final int chunkSize)
+      throws IOException
+  {
+    checkRange(offset, length);
+    // a range shorter than a chunk is fetched in one call of just its length, rather than a whole chunk
+    int fetch = chunkSize > 0 ? chunkSize : DEFAULT_CHUNK_SIZE;
+    channel.setChunkSize((int) Math.max(1, Math.min(length, fetch)));
+    channel.seek(offset);
+    return ByteStreams.limit(Channels.newInputStream(channel), length);
+  }
+
+  /**
+   * The range of a stream that cannot seek, read by discarding the bytes before the range.
+   *
+   * @return a stream of up to {@code length} bytes of {@code content} from {@code offset}
+   */
+  static InputStream slice(final InputStream content, final long offset, final long length) throws IOException {
+    checkRange(offset, length);
+    try {
+      ByteStreams.skipFully(content, offset);
+    }
+    catch (IOException e) {
+      content.close();
+      throw e;
+    }
+    return ByteStreams.limit(content, length);
+  }
+
+  static void checkRange(final long offset, final long length) {
+    checkArgument(offset >= 0, "offset cannot be negative");
+    checkArgument(length >= 0, "length cannot be negative");
+  }
+}
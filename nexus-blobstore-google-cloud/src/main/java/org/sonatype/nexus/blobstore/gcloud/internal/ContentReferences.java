@@ -0,0 +1,175 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.blobstore.api.BlobStoreConfiguration;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.LongValue;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.Transaction;
+import com.google.common.collect.Lists;
+
+import static org.sonatype.nexus.blobstore.gcloud.internal.DatastoreKeyHierarchy.NAMESPACE_PREFIX;
+import static org.sonatype.nexus.blobstore.gcloud.internal.DatastoreKeyHierarchy.NXRM_ROOT;
+import static org.sonatype.nexus.blobstore.gcloud.internal.Namespace.safe;
+
+/**
+ * Reference counts of deduplicated content, keyed by SHA-1 and stored in Google Datastore.
+ *
+ * The key ancestry looks like:
+ * <pre>
+ [namespace: blobstore-/BlobStoreConfiguration.getName()/]
+ kind=Sonatype,name=Nexus Repository Manager
+ --> kind=ContentReferences
+ * </pre>
+ *
+ * Counts are changed in transactions, retried when they contend with each other. A count that drops to zero is kept
+ * until {@link #removeIfUnreferenced} confirms, in another transaction, that nobody took a new reference meanwhile.
+ */
+class ContentReferences
+    extends ComponentSupport
+{
+  private static final String CONTENT_REFERENCES = "ContentReferences";
+
+  private static final String COUNT = "count";
+
+  /**
+   * Datastore error code of a transaction that conflicted with another.
+   */
+  private static final int ABORTED = 10;
+
+  private static final int MAX_ATTEMPTS = 5;
+
+  private final Datastore datastore;
+
+  private final KeyFactory keyFactory;
+
+  private final String namespace;
+
+  ContentReferences(final Datastore datastore, final BlobStoreConfiguration blobStoreConfiguration) {
+    this.datastore = datastore;
+    this.namespace = NAMESPACE_PREFIX + safe(blobStoreConfiguration.getName());
+    this.keyFactory = datastore.newKeyFactory()
+        .addAncestors(NXRM_ROOT)
+        .setNamespace(namespace)
+        .setKind(CONTENT_REFERENCES);
+  }
+
+  /**
+   * Adds a reference to the content.
+   *
+   * @return true if this is the only reference, so the content may not have been stored yet
+   */
+  boolean acquire(final String sha1) {
+    return update(sha1, count -> count + 1) == 1;
+  }
+
+  /**
+   * Removes a reference to the content.
+   *
+   * @return the number of references left
+   */
+  long release(final String sha1) {
+    return update(sha1, count -> Math.max(0, count - 1));
+  }
+
+  /**
+   * @return the number of references to the content
+   */
+  long count(final String sha1) {
+    Entity entity = datastore.get(keyFactory.newKey(sha1));
+    return entity != null ? entity.getLong(COUNT) : 0;
+  }
+
+  /**
+   * Drops the count of content left with no references.
+   *
+   * @return false if the content was referenced again, and must be kept
+   */
+  boolean removeIfUnreferenced(final String sha1) {
+    Key key = keyFactory.newKey(sha1);
+    return inTransaction(txn -> {
+      Entity entity = txn.get(key);
+      if (entity != null && entity.getLong(COUNT) > 0) {
+        return false;
+      }
+      txn.delete(key);
+      return true;
+    });
+  }
+
+  /**
+   * Removes all reference counts.
+   */
+  void removeData() {
+    log.warn("removing all content reference counts...");
+    Query<Key> query = Query.newKeyQueryBuilder()
+        .setNamespace(namespace)
+        .setKind(CONTENT_REFERENCES)
+        .build();
+    // small operation - key only
+    QueryResults<Key> results = datastore.run(query);
+    List<Key> keys = new ArrayList<>();
+    results.forEachRemaining(keys::add);
+    // datastore has a hard limit of 500 keys in a single delete
+    for (List<Key> partition : Lists.partition(keys, 500)) {
+      datastore.delete(partition.toArray(new Key[0]));
+    }
+    log.warn("deleted {} content reference counts", keys.size());
+  }
+
+  private long update(final String sha1, final Function<Long, Long> change) {
+    Key key = keyFactory.newKey(sha1);
+    return inTransaction(txn -> {
+      Entity entity = txn.get(key);
+      long count = change.apply(entity != null ? entity.getLong(COUNT) : 0L);
+      txn.put(Entity.newBuilder(key)
+          .set(COUNT, LongValue.newBuilder(count).setExcludeFromIndexes(true).build())
+          .build());
+      return count;
+    });
+  }
+
+  private <T> T inTransaction(final Function<Transaction, T> work) {
+    for (int attempt = 1; ; attempt++) {
+      Transaction txn = datastore.newTransaction();
+      try {
+        T result = work.apply(txn);
+        txn.commit();
+        return result;
+      }
+      catch (DatastoreException e) {
+        if (e.getCode() != ABORTED || attempt == MAX_ATTEMPTS) {
+          throw e;
+        }
+        log.debug("Retrying reference count update after contention, attempt {}", attempt);
+      }
+      finally {
+        if (txn.isActive()) {
+          txn.rollback();
+        }
+      }
+    }
+  }
+}
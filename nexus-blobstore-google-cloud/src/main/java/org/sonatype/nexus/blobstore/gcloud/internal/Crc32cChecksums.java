@@ -0,0 +1,64 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal;
+
+import java.io.InputStream;
+
+import org.sonatype.nexus.blobstore.api.BlobStoreException;
+
+import com.google.cloud.storage.BlobInfo;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.BaseEncoding;
+import com.google.common.primitives.Ints;
+
+import static java.lang.String.format;
+
+/**
+ * Helpers to check content integrity against the CRC32C checksums Google Cloud Storage computes for every object,
+ * including composed and copied objects, without downloading the content again.
+ */
+final class Crc32cChecksums
+{
+  private Crc32cChecksums() {
+  }
+
+  /**
+   * @return a stream computing the CRC32C of {@code contents} as it is read
+   */
+  static HashingInputStream hashing(final InputStream contents) {
+    return new HashingInputStream(Hashing.crc32c(), contents);
+  }
+
+  /**
+   * @return the CRC32C in the form reported by {@link BlobInfo#getCrc32c()}: base64 of the big-endian value
+   */
+  static String encode(final HashCode crc32c) {
+    return BaseEncoding.base64().encode(Ints.toByteArray(crc32c.asInt()));
+  }
+
+  /**
+   * @param object   the object as reported by Google Cloud Storage
+   * @param expected the expected CRC32C, encoded as per {@link #encode(HashCode)}
+   * @throws BlobStoreException if the object's checksum does not match
+   */
+  static void verify(final BlobInfo object, final String expected) {
+    String actual = object.getCrc32c();
+    if (!expected.equals(actual)) {
+      throw new BlobStoreException(
+          format("CRC32C mismatch for %s: expected %s but Google Cloud Storage reports %s", object.getName(),
+              expected, actual), null);
+    }
+  }
+}
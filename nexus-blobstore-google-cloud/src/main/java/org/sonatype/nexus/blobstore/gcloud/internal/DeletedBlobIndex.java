@@ -64,15 +64,13 @@ class DeletedBlobIndex
 
   private final int contentQueryLimit;
 
-  DeletedBlobIndex(final GoogleCloudDatastoreFactory factory, final BlobStoreConfiguration blobStoreConfiguration)
-      throws Exception {
-    this(factory, blobStoreConfiguration, DEFAULT_CONTENT_QUERY_LIMIT);
+  DeletedBlobIndex(final Datastore datastore, final BlobStoreConfiguration blobStoreConfiguration) {
+    this(datastore, blobStoreConfiguration, DEFAULT_CONTENT_QUERY_LIMIT);
   }
 
-  DeletedBlobIndex(final GoogleCloudDatastoreFactory factory, final BlobStoreConfiguration blobStoreConfiguration,
-                   final int contentQueryLimit)
-      throws Exception {
-    this.gcsDatastore = factory.create(blobStoreConfiguration);
+  DeletedBlobIndex(final Datastore datastore, final BlobStoreConfiguration blobStoreConfiguration,
+                   final int contentQueryLimit) {
+    this.gcsDatastore = datastore;
     this.namespace = NAMESPACE_PREFIX + safe(blobStoreConfiguration.getName());
     // this key factory will be used to add/remove blobIds from within the DELETED_BLOBS kind
     this.deletedBlobsKeyFactory = gcsDatastore.newKeyFactory()
@@ -15,6 +15,8 @@ package org.sonatype.nexus.blobstore.gcloud.internal;
 import java.io.IOException;
 import java.util.Map;
 
+import javax.annotation.Nullable;
+
 import org.sonatype.nexus.blobstore.BlobAttributesSupport;
 import org.sonatype.nexus.blobstore.api.BlobMetrics;
 
@@ -25,6 +27,14 @@ import static com.google.common.base.Preconditions.checkNotNull;
 public class GoogleCloudBlobAttributes
     extends BlobAttributesSupport<GoogleCloudPropertiesFile>
 {
+  private static final String DEDUPLICATED_ATTRIBUTE = "deduplicated";
+
+  private static final String CONTENT_ENCODING_ATTRIBUTE = "contentEncoding";
+
+  private boolean deduplicated;
+
+  @Nullable
+  private String contentEncoding;
 
   public GoogleCloudBlobAttributes(final Bucket bucket, final String key) {
     super(new GoogleCloudPropertiesFile(bucket, key), null, null);
@@ -35,18 +45,65 @@ public class GoogleCloudBlobAttributes
     super(new GoogleCloudPropertiesFile(bucket, key), checkNotNull(headers), checkNotNull(metrics));
   }
 
+  GoogleCloudBlobAttributes(final GoogleCloudPropertiesFile propertiesFile) {
+    super(checkNotNull(propertiesFile), null, null);
+  }
+
+  GoogleCloudBlobAttributes(final GoogleCloudPropertiesFile propertiesFile, final Map<String, String> headers,
+                            final BlobMetrics metrics) {
+    super(checkNotNull(propertiesFile), checkNotNull(headers), checkNotNull(metrics));
+  }
+
   public boolean load() throws IOException {
     if (!propertiesFile.exists()) {
       return false;
     }
     propertiesFile.load();
     readFrom(propertiesFile);
+    deduplicated = Boolean.parseBoolean(propertiesFile.getProperty(DEDUPLICATED_ATTRIBUTE));
+    contentEncoding = propertiesFile.getProperty(CONTENT_ENCODING_ATTRIBUTE);
     return true;
   }
 
   @Override
   public void store() throws IOException {
     writeTo(propertiesFile);
+    if (deduplicated) {
+      propertiesFile.setProperty(DEDUPLICATED_ATTRIBUTE, Boolean.TRUE.toString());
+    }
+    else {
+      propertiesFile.remove(DEDUPLICATED_ATTRIBUTE);
+    }
+    if (contentEncoding != null) {
+      propertiesFile.setProperty(CONTENT_ENCODING_ATTRIBUTE, contentEncoding);
+    }
+    else {
+      propertiesFile.remove(CONTENT_ENCODING_ATTRIBUTE);
+    }
     propertiesFile.store();
   }
+
+  /**
+   * @return whether the content is stored once per SHA-1 under the deduplicated prefix, shared with other blobs,
+   * rather than in an object of its own
+   */
+  public boolean isDeduplicated() {
+    return deduplicated;
+  }
+
+  public void setDeduplicated(final boolean deduplicated) {
+    this.deduplicated = deduplicated;
+  }
+
+  /**
+   * @return how the content is compressed in the bucket (see {@link ContentCompression}), or null if it is not
+   */
+  @Nullable
+  public String getContentEncoding() {
+    return contentEncoding;
+  }
+
+  public void setContentEncoding(@Nullable final String contentEncoding) {
+    this.contentEncoding = contentEncoding;
+  }
 }
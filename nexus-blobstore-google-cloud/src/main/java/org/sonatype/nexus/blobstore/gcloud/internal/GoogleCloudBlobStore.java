@@ -12,21 +12,44 @@
  */
 package org.sonatype.nexus.blobstore.gcloud.internal;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URL;
 import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.time.Instant;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import javax.annotation.Nullable;
@@ -50,23 +73,42 @@ import org.sonatype.nexus.logging.task.ProgressLogIntervalHelper;
 import org.sonatype.nexus.scheduling.CancelableHelper;
 import org.sonatype.nexus.scheduling.PeriodicJobService;
 import org.sonatype.nexus.scheduling.PeriodicJobService.PeriodicJob;
+import org.sonatype.nexus.thread.NexusThreadFactory;
 
+import com.codahale.metrics.InstrumentedExecutorService;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.codahale.metrics.annotation.Timed;
+import com.google.api.gax.paging.Page;
+import com.google.auth.ServiceAccountSigner;
 import com.google.cloud.ReadChannel;
+import com.google.cloud.datastore.Datastore;
 import com.google.cloud.storage.BlobInfo;
 import com.google.cloud.storage.Bucket;
 import com.google.cloud.storage.BucketInfo;
+import com.google.cloud.storage.CopyWriter;
 import com.google.cloud.storage.Storage;
 import com.google.cloud.storage.Storage.BlobField;
 import com.google.cloud.storage.Storage.BlobGetOption;
 import com.google.cloud.storage.Storage.BlobListOption;
+import com.google.cloud.storage.Storage.BlobSourceOption;
+import com.google.cloud.storage.Storage.CopyRequest;
 import com.google.cloud.storage.StorageClass;
 import com.google.cloud.storage.StorageException;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Iterables;
 import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import com.google.common.io.CountingInputStream;
+import com.google.common.io.MoreFiles;
+import com.google.common.util.concurrent.Futures;
 import org.apache.commons.lang.StringUtils;
 import org.joda.time.DateTime;
 
@@ -77,6 +119,7 @@ import static com.google.common.cache.CacheLoader.from;
 import static com.google.common.collect.Streams.stream;
 import static java.lang.String.format;
 import static org.sonatype.nexus.blobstore.DirectPathLocationStrategy.DIRECT_PATH_ROOT;
+import static org.sonatype.nexus.blobstore.gcloud.internal.Namespace.safe;
 import static org.sonatype.nexus.blobstore.quota.BlobStoreQuotaSupport.createQuotaCheckJob;
 import static org.sonatype.nexus.common.stateguard.StateGuardLifecycleSupport.State.FAILED;
 import static org.sonatype.nexus.common.stateguard.StateGuardLifecycleSupport.State.NEW;
@@ -101,16 +144,224 @@ public class GoogleCloudBlobStore
 
   public static final String REGION_KEY = "region";
 
+  /**
+   * Blob store attribute turning deduplication on or off for one blob store, see {@link #DEDUPLICATION_PROPERTY}.
+   */
+  public static final String DEDUPLICATION_KEY = "deduplication";
+
+  /**
+   * Blob store attribute turning compression on or off for one blob store, see {@link #COMPRESSION_ENABLED_PROPERTY}.
+   */
+  public static final String COMPRESSION_KEY = "compression";
+
+  /**
+   * Blob store attribute setting the compression level of one blob store, see {@link #COMPRESSION_LEVEL_PROPERTY}.
+   */
+  public static final String COMPRESSION_LEVEL_KEY = "compressionLevel";
+
+  /**
+   * Blob store attribute setting what one blob store compresses, see {@link #COMPRESSION_ALLOW_LIST_PROPERTY}.
+   */
+  public static final String COMPRESSION_ALLOW_LIST_KEY = "compressionAllowList";
+
   static final String CONTENT_PREFIX = "content";
 
+  /**
+   * Prefix of content stored once per SHA-1, see {@link #DEDUPLICATION_PROPERTY}.
+   */
+  static final String DEDUPLICATED_PREFIX = "deduplicated";
+
   public static final String METADATA_FILENAME = "metadata.properties";
 
   public static final String TYPE_KEY = "type";
 
   public static final String TYPE_V1 = "gcp/1";
 
+  /**
+   * Key in {@link #METADATA_FILENAME} holding the time (in epoch milliseconds) the metadata stores were last
+   * successfully probed with sentinel writes.
+   */
+  static final String METADATA_STORES_PROBED_KEY = "metadataStoresProbed";
+
+  /**
+   * Key in {@link #METADATA_FILENAME} holding the largest {@link #PACKING_MAX_BLOB_PROPERTY} this blob store has
+   * ever been started with. Once set, the packed blob index is always opened, so blobs packed earlier stay readable
+   * and deletable after packing is lowered or turned off.
+   */
+  static final String PACKED_MAX_BLOB_BYTES_KEY = "packedMaxBlobBytes";
+
+  /**
+   * Key in {@link #METADATA_FILENAME} set once deduplication has been enabled for this blob store. From then on the
+   * content reference counts are always opened, so deduplicated blobs stay readable and deletable after deduplication
+   * is turned off.
+   */
+  static final String DEDUPLICATED_KEY = "deduplicated";
+
   private static final String FILE_V1 = "file/1";
 
+  /**
+   * Use this property in 'nexus.properties' to control how many bytes each request for blob content reads from
+   * Google Cloud Storage. Default of 0 uses the Google client default (2 MB). Larger values reduce the number of
+   * requests needed to stream large blobs.
+   */
+  public static final String READ_CHUNK_SIZE_PROPERTY = "nexus.gcs.read.chunksize";
+
+  /**
+   * Use this property in 'nexus.properties' to enable pipelined writes. When enabled, the attributes file for a new
+   * blob is written as soon as its content has been committed to the bucket, while the uploader is still finishing
+   * the upload, and cleanup after a failed write happens off the request thread. Default is false.
+   */
+  public static final String PIPELINED_WRITES_PROPERTY = "nexus.gcs.pipelinedWrites.enabled";
+
+  /**
+   * Use this property in 'nexus.properties' to control how many megabytes each rewrite call copies when copying a
+   * blob. Default of 0 lets Google Cloud Storage decide. Smaller values keep each call short for very large blobs,
+   * at the cost of more calls.
+   */
+  public static final String COPY_CHUNK_SIZE_PROPERTY = "nexus.gcs.copy.megabytesPerCall";
+
+  /**
+   * Use this property in 'nexus.properties' to control how often, in hours, startup probes the deleted blob index
+   * and metrics store with sentinel writes. Startup skips the probes if the last successful one was more recent.
+   * Default is 24; 0 probes on every start.
+   */
+  public static final String METADATA_PROBE_INTERVAL_PROPERTY = "nexus.gcs.metadataProbeIntervalHours";
+
+  /**
+   * Use this property in 'nexus.properties' to control how many attribute files
+   * {@link #getAttributesAll(Collection)} loads in parallel. Default is 16.
+   */
+  public static final String BULK_LOOKUP_CONCURRENCY_PROPERTY = "nexus.gcs.bulkLookup.concurrency";
+
+  /**
+   * Use this property in 'nexus.properties' to enable a read-through cache of blob content on local disk, holding up
+   * to the given number of megabytes per blob store. Default of 0 disables the cache.
+   */
+  public static final String CONTENT_CACHE_SIZE_PROPERTY = "nexus.gcs.contentCache.megabytes";
+
+  /**
+   * Use this property in 'nexus.properties' to set the directory of the content cache (see
+   * {@link #CONTENT_CACHE_SIZE_PROPERTY}); each blob store caches in a subdirectory named after it. Default is
+   * 'cache/google-cloud-blobstore' in the Nexus data directory.
+   */
+  public static final String CONTENT_CACHE_DIRECTORY_PROPERTY = "nexus.gcs.contentCache.directory";
+
+  /**
+   * Use this property in 'nexus.properties' to cache the content of small blobs in memory outside the Java heap, using
+   * up to the given number of megabytes per blob store. Default of 0 disables the cache. The JVM must be allowed that
+   * much direct memory (see -XX:MaxDirectMemorySize).
+   */
+  public static final String SMALL_CONTENT_CACHE_SIZE_PROPERTY = "nexus.gcs.smallContentCache.megabytes";
+
+  /**
+   * Use this property in 'nexus.properties' to set the size, in bytes, of the largest blob held by the small content
+   * cache (see {@link #SMALL_CONTENT_CACHE_SIZE_PROPERTY}). Default is 8192.
+   */
+  public static final String SMALL_CONTENT_CACHE_MAX_BLOB_PROPERTY = "nexus.gcs.smallContentCache.maxBlobBytes";
+
+  /**
+   * Use this property in 'nexus.properties' to acknowledge new blobs once they are written to a local staging directory,
+   * and upload them to the bucket in the background. Staged blobs survive a restart and are uploaded when the blob
+   * store starts again. Default is false.
+   */
+  public static final String STAGING_ENABLED_PROPERTY = "nexus.gcs.writeBackStaging.enabled";
+
+  /**
+   * Use this property in 'nexus.properties' to set the staging directory (see {@link #STAGING_ENABLED_PROPERTY}); each
+   * blob store stages in a subdirectory named after it. Default is 'staging/google-cloud-blobstore' in the Nexus data
+   * directory. It must be on durable local storage.
+   */
+  public static final String STAGING_DIRECTORY_PROPERTY = "nexus.gcs.writeBackStaging.directory";
+
+  /**
+   * Use this property in 'nexus.properties' to set how many staged blobs are uploaded at the same time (see
+   * {@link #STAGING_ENABLED_PROPERTY}). Default is 4.
+   */
+  public static final String STAGING_FLUSH_THREADS_PROPERTY = "nexus.gcs.writeBackStaging.flushThreads";
+
+  /**
+   * Use this property in 'nexus.properties' to pack the content of blobs up to the given size, in bytes, into shared
+   * segment objects rather than one object per blob. Default of 0 disables packing. Packed blobs deleted from the blob
+   * store take up space in their segment until the compact blob store task rewrites it.
+   */
+  public static final String PACKING_MAX_BLOB_PROPERTY = "nexus.gcs.packing.maxBlobBytes";
+
+  /**
+   * Use this property in 'nexus.properties' to set the size, in megabytes, at which a segment of packed blobs is
+   * written (see {@link #PACKING_MAX_BLOB_PROPERTY}). Default is 16.
+   */
+  public static final String PACKING_SEGMENT_SIZE_PROPERTY = "nexus.gcs.packing.segmentMegabytes";
+
+  /**
+   * Use this property in 'nexus.properties' to set how long, in milliseconds, a segment waits for more blobs before
+   * it is written (see {@link #PACKING_MAX_BLOB_PROPERTY}). Writes of small blobs take up to this much longer.
+   * Default is 20.
+   */
+  public static final String PACKING_LINGER_PROPERTY = "nexus.gcs.packing.lingerMillis";
+
+  /**
+   * Use this property in 'nexus.properties' to store the content of new blobs once per SHA-1, shared by every blob
+   * with the same content, with reference counts in Datastore. Content already in the blob store is not uploaded
+   * again, and copies only write attributes. Applies to blob stores that do not set {@link #DEDUPLICATION_KEY}
+   * themselves. Each blob records whether its content is deduplicated, so it can be turned off again later, and
+   * blobs written while it was off are unaffected. Default is false.
+   */
+  public static final String DEDUPLICATION_PROPERTY = "nexus.gcs.deduplication.enabled";
+
+  /**
+   * Use this property in 'nexus.properties' to deflate the content of new blobs in the allow-list (see
+   * {@link #COMPRESSION_ALLOW_LIST_PROPERTY}) while it streams to the bucket. Content is decompressed transparently on
+   * read, and blob metrics keep the original size. Blobs that are staged, packed or deduplicated are not compressed.
+   * Applies to blob stores that do not set {@link #COMPRESSION_KEY} themselves. Default is false.
+   */
+  public static final String COMPRESSION_ENABLED_PROPERTY = "nexus.gcs.compression.enabled";
+
+  /**
+   * Use this property in 'nexus.properties' to set the deflate level of {@link #COMPRESSION_ENABLED_PROPERTY}, from 1
+   * (fastest) to 9 (smallest), for blob stores that do not set {@link #COMPRESSION_LEVEL_KEY}. Default is 6.
+   */
+  public static final String COMPRESSION_LEVEL_PROPERTY = "nexus.gcs.compression.level";
+
+  /**
+   * Use this property in 'nexus.properties' to set the comma separated content types ({@code text/*} matches every
+   * subtype) and name extensions (starting with a dot) to compress, for blob stores that do not set
+   * {@link #COMPRESSION_ALLOW_LIST_KEY}. Default is {@value #DEFAULT_COMPRESSION_ALLOW_LIST}.
+   */
+  public static final String COMPRESSION_ALLOW_LIST_PROPERTY = "nexus.gcs.compression.allowList";
+
+  /**
+   * Use this property in 'nexus.properties' to let {@link #getSignedUrl(BlobId)} issue V4 signed URLs, so downloads
+   * can be redirected straight to the bucket instead of streaming through Nexus. The storage credentials must be able
+   * to sign, such as a service account key. Default is false.
+   */
+  public static final String SIGNED_URLS_ENABLED_PROPERTY = "nexus.gcs.signedUrls.enabled";
+
+  /**
+   * Use this property in 'nexus.properties' to set how long, in seconds, signed URLs are valid for. URLs are reused for
+   * half of this time. Default is 900.
+   */
+  public static final String SIGNED_URLS_EXPIRY_PROPERTY = "nexus.gcs.signedUrls.expirySeconds";
+
+  /**
+   * Use this property in 'nexus.properties' to set how many signed URLs to keep for reuse. Default is 10000.
+   */
+  public static final String SIGNED_URLS_CACHE_SIZE_PROPERTY = "nexus.gcs.signedUrls.cacheSize";
+
+  /**
+   * Use this property in 'nexus.properties' to check the SHA-1 Nexus supplies when it creates a blob from a local
+   * file, at the cost of reading the file once more. Default is false, trusting the supplied hash. The hash is always
+   * checked while deduplication is enabled, since it decides which stored content the blob refers to.
+   */
+  public static final String FILE_VERIFY_HASH_PROPERTY = "nexus.gcs.createFromFile.verifyHash";
+
+  static final String DEFAULT_COMPRESSION_ALLOW_LIST =
+      "text/*,application/xml,application/json,application/x-maven-pom+xml,.pom,.xml,.json,.txt,.module,.spdx";
+
+  /**
+   * Google Cloud Storage limit on the number of calls in one batch request.
+   */
+  static final int BATCH_REQUEST_LIMIT = 100;
+
   private final GoogleCloudStorageFactory storageFactory;
 
   private ShardedCounterMetricsStore metricsStore;
@@ -121,6 +372,10 @@ public class GoogleCloudBlobStore
 
   private GoogleCloudDatastoreFactory datastoreFactory;
 
+  private Datastore datastore;
+
+  private GoogleCloudCallMetrics callMetrics = GoogleCloudCallMetrics.disabled();
+
   private DeletedBlobIndex deletedBlobIndex;
 
   private LoadingCache<BlobId, GoogleCloudStorageBlob> liveBlobs;
@@ -133,6 +388,10 @@ public class GoogleCloudBlobStore
 
   private final Uploader uploader;
 
+  private final HedgedReadExecutor hedgedReads;
+
+  private HedgedReadExecutor.Latency attributeReadLatency;
+
   private PeriodicJob quotaCheckingJob;
 
   private final int quotaCheckInterval;
@@ -141,10 +400,117 @@ public class GoogleCloudBlobStore
 
   private final int metricsFlushDelaySeconds;
 
+  private final int readChunkSize;
+
+  private final boolean pipelinedWrites;
+
+  private final boolean verifyIntegrity;
+
+  private final int copyMegabytesPerCall;
+
+  private final long metadataProbeIntervalMillis;
+
+  private final int bulkLookupConcurrency;
+
+  private CompletableFuture<Void> startup;
+
+  private volatile String bucketName;
+
+  private final long contentCacheBytes;
+
+  private final Path contentCacheDirectory;
+
+  @Nullable
+  private ContentCache contentCache;
+
+  private final long smallContentCacheBytes;
+
+  private final int smallContentCacheMaxBlobBytes;
+
+  @Nullable
+  private OffHeapContentCache smallContentCache;
+
+  private final boolean stagingEnabled;
+
+  private final Path stagingDirectory;
+
+  private final int stagingFlushThreads;
+
+  @Nullable
+  private WriteBackStaging staging;
+
+  private final int packingMaxBlobBytes;
+
+  private final long packingSegmentBytes;
+
+  private final long packingLingerMillis;
+
+  /**
+   * The largest blob that may have been packed, from {@link #PACKED_MAX_BLOB_BYTES_KEY}, at least
+   * {@link #packingMaxBlobBytes}.
+   */
+  private int packedMaxBlobBytes;
+
+  @Nullable
+  private PackedBlobIndex packedBlobIndex;
+
+  @Nullable
+  private SegmentPacker packer;
+
+  private final boolean deduplicationDefault;
+
+  /**
+   * Whether new content is deduplicated, from {@link #DEDUPLICATION_KEY} or else {@link #DEDUPLICATION_PROPERTY}.
+   */
+  private boolean deduplicationEnabled;
+
+  /**
+   * Whether any blob may have deduplicated content, from {@link #DEDUPLICATED_KEY}.
+   */
+  private boolean deduplicatedContent;
+
+  @Nullable
+  private ContentReferences contentReferences;
+
+  private final AtomicLong deduplicatedWrites = new AtomicLong();
+
+  private final AtomicLong deduplicatedBytes = new AtomicLong();
+
+  private final boolean compressionDefault;
+
+  private final int compressionLevelDefault;
+
+  private final String compressionAllowListDefault;
+
+  /**
+   * How new content is compressed, from {@link #COMPRESSION_KEY} or else {@link #COMPRESSION_ENABLED_PROPERTY}; null
+   * if it is not.
+   */
+  @Nullable
+  private ContentCompression compression;
+
+  private final boolean signedUrlsEnabled;
+
+  private final int signedUrlExpirySeconds;
+
+  private final int signedUrlCacheSize;
+
+  private final boolean fileVerifyHash;
+
+  @Nullable
+  private SignedUrlIssuer signedUrls;
+
+  private ExecutorService executorService;
+
   private PeriodicJob flushJob;
 
   private static final int FLUSH_FREQUENCY_IN_SECONDS = 5;
 
+  /**
+   * Marks a {@link GoogleCloudStorageBlob} looked up in the {@link PackedBlobIndex} and not found.
+   */
+  private static final PackedBlobIndex.Location NOT_PACKED = new PackedBlobIndex.Location("", -1, 0);
+
   private final RawObjectAccess rawObjectAccess = new UnimplementedRawObjectAccess();
 
   public GoogleCloudBlobStore(final GoogleCloudStorageFactory storageFactory,
@@ -158,8 +524,23 @@ public class GoogleCloudBlobStore
                               final int quotaCheckInterval)
   {
     this(storageFactory, blobIdLocationResolver, periodicJobService, datastoreFactory, dryRunPrefix, uploader,
-            metricRegistry, quotaService, quotaCheckInterval, DeletedBlobIndex.DEFAULT_CONTENT_QUERY_LIMIT,
-            ShardedCounterMetricsStore.DEFAULT_FLUSH_DELAY_SECONDS);
+        metricRegistry, quotaService, quotaCheckInterval, GoogleCloudBlobStoreOptions.builder().build());
+  }
+
+  public GoogleCloudBlobStore(final GoogleCloudStorageFactory storageFactory,
+                              final BlobIdLocationResolver blobIdLocationResolver,
+                              final PeriodicJobService periodicJobService,
+                              final GoogleCloudDatastoreFactory datastoreFactory,
+                              final DryRunPrefix dryRunPrefix,
+                              final Uploader uploader,
+                              final MetricRegistry metricRegistry,
+                              final BlobStoreQuotaService quotaService,
+                              final int quotaCheckInterval,
+                              final GoogleCloudBlobStoreOptions options)
+  {
+    this(storageFactory, blobIdLocationResolver, periodicJobService, datastoreFactory, dryRunPrefix, uploader,
+        metricRegistry, quotaService, HedgedReadExecutor.disabled(metricRegistry), options, quotaCheckInterval,
+        DeletedBlobIndex.DEFAULT_CONTENT_QUERY_LIMIT, ShardedCounterMetricsStore.DEFAULT_FLUSH_DELAY_SECONDS);
   }
 
   @Inject
@@ -171,6 +552,8 @@ public class GoogleCloudBlobStore
                               final Uploader uploader,
                               final MetricRegistry metricRegistry,
                               final BlobStoreQuotaService quotaService,
+                              final HedgedReadExecutor hedgedReads,
+                              final GoogleCloudBlobStoreOptions options,
                               @Named("${nexus.blobstore.quota.warnIntervalSeconds:-60}")
                               final int quotaCheckInterval,
                               @Named("${nexus.gcs.deletedBlobIndex.contentQueryLimit:-100000}")
@@ -185,26 +568,68 @@ public class GoogleCloudBlobStore
     this.uploader = uploader;
     this.metricRegistry = metricRegistry;
     this.quotaService = quotaService;
+    this.hedgedReads = checkNotNull(hedgedReads);
     this.quotaCheckInterval = quotaCheckInterval;
     this.deletedBlobQueryLimit = deletedBlobQueryLimit;
     this.metricsFlushDelaySeconds = metricsFlushDelaySeconds;
+    checkNotNull(options);
+    this.readChunkSize = options.getReadChunkSize();
+    checkArgument(readChunkSize >= 0, READ_CHUNK_SIZE_PROPERTY + " cannot be negative");
+    this.pipelinedWrites = options.isPipelinedWrites();
+    this.verifyIntegrity = options.isVerifyIntegrity();
+    this.copyMegabytesPerCall = options.getCopyMegabytesPerCall();
+    checkArgument(copyMegabytesPerCall >= 0, COPY_CHUNK_SIZE_PROPERTY + " cannot be negative");
+    checkArgument(options.getMetadataProbeIntervalHours() >= 0,
+        METADATA_PROBE_INTERVAL_PROPERTY + " cannot be negative");
+    this.metadataProbeIntervalMillis = TimeUnit.HOURS.toMillis(options.getMetadataProbeIntervalHours());
+    this.bulkLookupConcurrency = options.getBulkLookupConcurrency();
+    checkArgument(bulkLookupConcurrency > 0, BULK_LOOKUP_CONCURRENCY_PROPERTY + " must be greater than 0");
+    checkArgument(options.getContentCacheMegabytes() >= 0, CONTENT_CACHE_SIZE_PROPERTY + " cannot be negative");
+    this.contentCacheBytes = options.getContentCacheMegabytes() * 1024L * 1024L;
+    this.contentCacheDirectory = Strings.isNullOrEmpty(options.getContentCacheDirectory()) ?
+        Paths.get(System.getProperty("karaf.data", "."), "cache", "google-cloud-blobstore") :
+        Paths.get(options.getContentCacheDirectory());
+    checkArgument(options.getSmallContentCacheMegabytes() >= 0,
+        SMALL_CONTENT_CACHE_SIZE_PROPERTY + " cannot be negative");
+    checkArgument(options.getSmallContentCacheMaxBlobBytes() > 0,
+        SMALL_CONTENT_CACHE_MAX_BLOB_PROPERTY + " must be greater than 0");
+    this.smallContentCacheBytes = options.getSmallContentCacheMegabytes() * 1024L * 1024L;
+    this.smallContentCacheMaxBlobBytes = options.getSmallContentCacheMaxBlobBytes();
+    checkArgument(options.getStagingFlushThreads() > 0, STAGING_FLUSH_THREADS_PROPERTY + " must be greater than 0");
+    this.stagingEnabled = options.isStagingEnabled();
+    this.stagingDirectory = Strings.isNullOrEmpty(options.getStagingDirectory()) ?
+        Paths.get(System.getProperty("karaf.data", "."), "staging", "google-cloud-blobstore") :
+        Paths.get(options.getStagingDirectory());
+    this.stagingFlushThreads = options.getStagingFlushThreads();
+    checkArgument(options.getPackingMaxBlobBytes() >= 0, PACKING_MAX_BLOB_PROPERTY + " cannot be negative");
+    checkArgument(options.getPackingMaxBlobBytes() == 0 ||
+            options.getPackingSegmentMegabytes() * 1024L * 1024L >= options.getPackingMaxBlobBytes(),
+        PACKING_SEGMENT_SIZE_PROPERTY + " is smaller than " + PACKING_MAX_BLOB_PROPERTY);
+    checkArgument(options.getPackingLingerMillis() >= 0, PACKING_LINGER_PROPERTY + " cannot be negative");
+    this.packingMaxBlobBytes = options.getPackingMaxBlobBytes();
+    this.packingSegmentBytes = options.getPackingSegmentMegabytes() * 1024L * 1024L;
+    this.packingLingerMillis = options.getPackingLingerMillis();
+    this.deduplicationDefault = options.isDeduplicationEnabled();
+    this.compressionDefault = options.isCompressionEnabled();
+    this.compressionLevelDefault = options.getCompressionLevel();
+    this.compressionAllowListDefault = options.getCompressionAllowList();
+    // V4 signed URLs are valid for 7 days at most
+    checkArgument(options.getSignedUrlExpirySeconds() > 1 &&
+            options.getSignedUrlExpirySeconds() <= TimeUnit.DAYS.toSeconds(7),
+        SIGNED_URLS_EXPIRY_PROPERTY + " must be between 2 seconds and 7 days");
+    checkArgument(options.getSignedUrlCacheSize() >= 0, SIGNED_URLS_CACHE_SIZE_PROPERTY + " cannot be negative");
+    this.signedUrlsEnabled = options.isSignedUrlsEnabled();
+    this.signedUrlExpirySeconds = options.getSignedUrlExpirySeconds();
+    this.signedUrlCacheSize = options.getSignedUrlCacheSize();
+    this.fileVerifyHash = options.isFileVerifyHash();
   }
 
   @Override
   protected void doStart() throws Exception {
     log.info("starting " + getBlobStoreConfiguration().getName());
-    GoogleCloudPropertiesFile metadata = new GoogleCloudPropertiesFile(bucket, METADATA_FILENAME);
-    if (metadata.exists()) {
-      metadata.load();
-      String type = metadata.getProperty(TYPE_KEY);
-      checkState(TYPE_V1.equals(type) || FILE_V1.equals(type),
-          "Unsupported blob store type/version: %s in %s", type, metadata);
-    }
-    else {
-      // assumes new blobstore, write out type
-      metadata.setProperty(TYPE_KEY, TYPE_V1);
-      metadata.store();
-    }
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    awaitStartup();
+    log.info("{} metadata ready after waiting {}", getBlobStoreConfiguration().getName(), stopwatch);
     liveBlobs = CacheBuilder.newBuilder().weakValues().recordStats().build(from(GoogleCloudStorageBlob::new));
 
     wrapWithGauge("liveBlobsCache.size", () -> liveBlobs.size());
@@ -213,9 +638,70 @@ public class GoogleCloudBlobStore
     wrapWithGauge("liveBlobsCache.totalLoadTime", () -> liveBlobs.stats().totalLoadTime());
     wrapWithGauge("liveBlobsCache.evictionCount", () -> liveBlobs.stats().evictionCount());
     wrapWithGauge("liveBlobsCache.requestCount", () -> liveBlobs.stats().requestCount());
+    if (contentCache != null) {
+      ContentCache cache = contentCache;
+      wrapWithGauge("contentCache.hitCount", cache::getHitCount);
+      wrapWithGauge("contentCache.missCount", cache::getMissCount);
+      wrapWithGauge("contentCache.hitRate", () -> {
+        long requests = cache.getHitCount() + cache.getMissCount();
+        return requests == 0 ? 0d : (double) cache.getHitCount() / requests;
+      });
+      wrapWithGauge("contentCache.bytesSaved", cache::getBytesSaved);
+      wrapWithGauge("contentCache.evictionCount", cache::getEvictionCount);
+      wrapWithGauge("contentCache.size", cache::getSize);
+      wrapWithGauge("contentCache.entryCount", cache::getEntryCount);
+    }
+    if (smallContentCache != null) {
+      OffHeapContentCache cache = smallContentCache;
+      wrapWithGauge("smallContentCache.hitCount", cache::getHitCount);
+      wrapWithGauge("smallContentCache.missCount", cache::getMissCount);
+      wrapWithGauge("smallContentCache.evictionCount", cache::getEvictionCount);
+      wrapWithGauge("smallContentCache.entryCount", cache::getEntryCount);
+      wrapWithGauge("smallContentCache.allocatedBytes", cache::getAllocatedBytes);
+    }
+    if (signedUrlsEnabled) {
+      ServiceAccountSigner signer = SignedUrlIssuer.signerOf(storage);
+      if (signer != null) {
+        signedUrls = new SignedUrlIssuer(storage, signer, signedUrlExpirySeconds, signedUrlCacheSize);
+        SignedUrlIssuer issuer = signedUrls;
+        wrapWithGauge("signedUrls.signedCount", issuer::getSignedCount);
+        wrapWithGauge("signedUrls.hitCount", issuer::getHitCount);
+        wrapWithGauge("signedUrls.size", issuer::getSize);
+      }
+      else {
+        log.warn("Signed URLs are disabled for {}, its credentials cannot sign", getBlobStoreConfiguration().getName());
+      }
+    }
+    if (compression != null) {
+      ContentCompression deflate = compression;
+      wrapWithGauge("compression.blobsCompressed", deflate::getBlobsCompressed);
+      wrapWithGauge("compression.bytesIn", deflate::getBytesIn);
+      wrapWithGauge("compression.bytesStored", deflate::getBytesStored);
+    }
+    if (contentReferences != null) {
+      wrapWithGauge("deduplication.writes", deduplicatedWrites::get);
+      wrapWithGauge("deduplication.bytesSaved", deduplicatedBytes::get);
+    }
+    if (packedBlobIndex != null) {
+      // reads and lookups must cover blobs packed under a higher limit than the current one
+      packer = new SegmentPacker(storage, getConfiguredBucketName(), packedBlobIndex, packedMaxBlobBytes,
+          Math.max(packingSegmentBytes, packedMaxBlobBytes), packingLingerMillis);
+      SegmentPacker segments = packer;
+      wrapWithGauge("packing.segmentsWritten", segments::getSegmentsWritten);
+      wrapWithGauge("packing.blobsPacked", segments::getBlobsPacked);
+      wrapWithGauge("packing.segmentsCompacted", segments::getSegmentsCompacted);
+      wrapWithGauge("packing.segmentsDeleted", segments::getSegmentsDeleted);
+    }
+    if (staging != null) {
+      staging.start(this::upload);
+      WriteBackStaging writeBack = staging;
+      wrapWithGauge("staging.depth", writeBack::getDepth);
+      wrapWithGauge("staging.bytes", writeBack::getStagedBytes);
+      wrapWithGauge("staging.flushLagMillis", writeBack::getFlushLagMillis);
+      wrapWithGauge("staging.flushedCount", writeBack::getFlushedCount);
+      wrapWithGauge("staging.failureCount", writeBack::getFailureCount);
+    }
     log.debug("liveBlobs cache initialized for " + getBlobStoreConfiguration().getName());
-    initializeMetadataStores();
-    log.debug("deleted blobs index and metrics store initialized for " + getBlobStoreConfiguration().getName());
     periodicJobService.startUsing();
     this.quotaCheckingJob = periodicJobService.schedule(createQuotaCheckJob(this, quotaService, log), quotaCheckInterval);
     this.flushJob = periodicJobService.schedule(() -> metricsStore.flush(), FLUSH_FREQUENCY_IN_SECONDS);
@@ -223,9 +709,55 @@ public class GoogleCloudBlobStore
     log.info(getBlobStoreConfiguration().getName() + " started");
   }
 
+  /**
+   * Wait for the metadata initialization started by {@link #doInit(BlobStoreConfiguration)}, or run it now if this is
+   * a restart.
+   */
+  private void awaitStartup() throws Exception {
+    executor();
+    if (startup == null) {
+      initializeMetadata();
+      return;
+    }
+    try {
+      startup.join();
+    }
+    catch (CompletionException e) {
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new GoogleCloudProjectException("Failed to initialize blob store metadata", e.getCause());
+    }
+    finally {
+      startup = null;
+    }
+  }
+
+  /**
+   * @return the executor for this blob store's background work, created if necessary
+   */
+  private ExecutorService executor() {
+    if (executorService == null) {
+      executorService = new InstrumentedExecutorService(
+          Executors.newCachedThreadPool(new NexusThreadFactory("gcs-blobstore", "nexus-blobstore-google-cloud")),
+          metricRegistry,
+          format("%s@%s.%s", GoogleCloudBlobStore.class.getName(), getBlobStoreConfiguration().getName(),
+              "executor-service"));
+    }
+    return executorService;
+  }
+
   @Override
   protected void doStop() throws Exception {
     log.info("stopping " + getBlobStoreConfiguration().getName());
+    if (staging != null) {
+      // uploads need the live blobs for their locks
+      staging.stop();
+    }
+    if (packer != null) {
+      // writes the segment of any blobs waiting to be packed
+      packer.stop();
+      packer = null;
+    }
+    signedUrls = null;
     liveBlobs = null;
     quotaCheckingJob.cancel();
     flushJob.cancel();
@@ -233,6 +765,10 @@ public class GoogleCloudBlobStore
     log.debug("internal quota and metrics flush jobs stopped for " + getBlobStoreConfiguration().getName() + ", flushing metrics");
     // jobs canceled, flush metrics one last time
     metricsStore.flush();
+    releaseMetadataStores();
+    // let any pending attribute writes and cleanup finish
+    executorService.shutdown();
+    executorService = null;
     log.info(getBlobStoreConfiguration().getName() + " stopped");
   }
 
@@ -247,42 +783,353 @@ public class GoogleCloudBlobStore
                           final Map<String, String> headers,
                           @Nullable final BlobId blobId)
   {
-    return createInternal(headers, destination -> {
-      try (InputStream data = blobData) {
-        MetricsInputStream input = new MetricsInputStream(data);
-
-        uploader.upload(storage, getConfiguredBucketName(), destination, input);
-        return input.getMetrics();
+    // keep a copy of small content for the small content cache
+    final OffHeapContentCache.CapturingInputStream capture =
+        smallContentCache != null ? smallContentCache.capture(blobData) : null;
+    InputStream source = capture != null ? capture : blobData;
+    byte[] packable = null;
+    if (packingMaxBlobBytes > 0 && staging == null && !deduplicationEnabled) {
+      // small enough to pack if the stream ends within the limit
+      byte[] head = readHead(source, packingMaxBlobBytes + 1, blobId);
+      if (head.length <= packingMaxBlobBytes) {
+        packable = head;
+        Closeables.closeQuietly(source);
+      }
+      else {
+        source = new SequenceInputStream(new ByteArrayInputStream(head), source);
+      }
+    }
+    final InputStream content = source;
+    final Blob blob;
+    if (packable != null) {
+      blob = createPacked(packable, headers, blobId);
+    }
+    else if (staging != null) {
+      blob = createStaged(content, headers, blobId);
+    }
+    else if (deduplicationEnabled) {
+      blob = createDeduplicated(content, headers, blobId);
+    }
+    else {
+      final String encoding = compression != null && compression.accepts(headers) ? ContentCompression.DEFLATE : null;
+      blob = createInternal(headers, (destination, onContentCommitted) -> {
+        try (InputStream data = content) {
+          MetricsInputStream input = new MetricsInputStream(data);
+          // the metrics are taken before compression, so they are those of the original content
+          try (CountingInputStream stored = new CountingInputStream(
+              encoding != null ? compression.compress(input) : input)) {
+            if (!pipelinedWrites) {
+              uploader.upload(storage, getConfiguredBucketName(), destination, stored);
+              callMetrics.bytesOut(stored.getCount());
+              return input.getMetrics();
+            }
+            // the digest can only be taken once, so hold on to the metrics if they were taken on commit
+            AtomicReference<StreamMetrics> contentMetrics = new AtomicReference<>();
+            uploader.upload(storage, getConfiguredBucketName(), destination, stored, () -> {
+              contentMetrics.set(input.getMetrics());
+              onContentCommitted.accept(contentMetrics.get());
+            });
+            callMetrics.bytesOut(stored.getCount());
+            return contentMetrics.get() != null ? contentMetrics.get() : input.getMetrics();
+          }
+        }
+      }, blobId, encoding);
+    }
+    if (signedUrls != null) {
+      // the content of an overwritten blob may have moved
+      signedUrls.invalidate(blob.getId());
+    }
+    if (capture != null) {
+      byte[] captured = capture.getContent();
+      BlobMetrics metrics = blob.getMetrics();
+      if (captured != null && captured.length == metrics.getContentSize()) {
+        smallContentCache.put(blob.getId(), metrics.getSha1Hash(), captured, captured.length);
       }
-    }, blobId);
+    }
+    return blob;
   }
 
-  @Override
+  /**
+   * Asynchronous variant of {@link #create(InputStream, Map)}, which returns before the content is uploaded.
+   *
+   * New blobs get a fresh {@link BlobId} nobody else can know about until the returned future completes, so the
+   * content is uploaded through {@link Uploader#uploadAsync(Storage, String, String, InputStream)} without holding
+   * the blob lock, and the attributes are written under the blob lock on the blob store executor once the upload is
+   * done. Direct path blobs have predictable ids and may overwrite existing blobs, and staged, packed, deduplicated or
+   * compressed blobs need {@link #doCreate}, so those are created by {@link #create(InputStream, Map)} on the blob
+   * store executor instead.
+   *
+   * @return a future completed with the new {@link Blob}, or exceptionally with a {@link BlobStoreException}
+   */
   @Guarded(by = STARTED)
-  public Blob create(final Path path, final Map<String, String> map, final long size, final HashCode hash) {
-    throw new BlobStoreException("hard links not supported", null);
-  }
+  public CompletableFuture<Blob> createAsync(final InputStream blobData, final Map<String, String> headers) {
+    checkNotNull(blobData);
+    checkNotNull(headers);
+    checkArgument(headers.containsKey(BLOB_NAME_HEADER), "Missing header: %s", BLOB_NAME_HEADER);
+    checkArgument(headers.containsKey(CREATED_BY_HEADER), "Missing header: %s", CREATED_BY_HEADER);
 
-  @Override
-  @Guarded(by = STARTED)
-  public Blob copy(final BlobId blobId, final Map<String, String> headers) {
-    GoogleCloudStorageBlob sourceBlob = (GoogleCloudStorageBlob) checkNotNull(get(blobId));
+    if (headers.containsKey(DIRECT_PATH_BLOB_HEADER) || staging != null || packingMaxBlobBytes > 0 ||
+        deduplicationEnabled || (compression != null && compression.accepts(headers))) {
+      return CompletableFuture.supplyAsync(() -> create(blobData, headers), executorService);
+    }
 
-    return createInternal(headers, destination -> {
-      sourceBlob.getBlob().copyTo(getConfiguredBucketName(), destination);
-      BlobMetrics metrics = sourceBlob.getMetrics();
-      return new StreamMetrics(metrics.getContentSize(), metrics.getSha1Hash());
-    }, null);
+    final BlobId blobId = getBlobId(headers, null);
+    final GoogleCloudStorageBlob blob = liveBlobs.getUnchecked(blobId);
+    final String blobPath = blob.contentPath();
+    final String attributePath = blob.attributePath();
+    final MetricsInputStream input = new MetricsInputStream(blobData);
+    final long start = System.nanoTime();
+
+    log.debug("Writing blob {} to {} asynchronously", blobId, blobPath);
+    return uploader.uploadAsync(storage, getConfiguredBucketName(), blobPath, input)
+        .thenApplyAsync(uploaded -> {
+          final StreamMetrics streamMetrics = input.getMetrics();
+          callMetrics.bytesOut(streamMetrics.getSize());
+          final BlobMetrics metrics = new BlobMetrics(new DateTime(), streamMetrics.getSha1(), streamMetrics.getSize());
+          Lock lock = blob.lock();
+          try {
+            new GoogleCloudBlobAttributes(propertiesFile(attributePath), headers, metrics).store();
+            blob.refresh(headers, metrics);
+          }
+          catch (IOException e) {
+            throw new BlobStoreException(e, blobId);
+          }
+          finally {
+            lock.unlock();
+          }
+          if (signedUrls != null) {
+            signedUrls.invalidate(blobId);
+          }
+          metricsStore.recordAddition(blobId, metrics.getContentSize());
+          return (Blob) blob;
+        }, executorService)
+        .handle((created, failure) -> {
+          recordOperation("upload", OperationType.UPLOAD, start,
+              created != null ? created.getMetrics().getContentSize() : 0, failure == null);
+          try {
+            blobData.close();
+          }
+          catch (IOException e) {
+            log.debug("Unable to close content stream for {}", blobId, e);
+          }
+          if (failure == null) {
+            return created;
+          }
+          log.debug("Asynchronous write of blob {} failed", blobId, failure);
+          executeOrRun(() -> {
+            deleteNonExplosively(attributePath);
+            deleteNonExplosively(blobPath);
+          });
+          Throwable cause = failure instanceof CompletionException && failure.getCause() != null ?
+              failure.getCause() : failure;
+          throw new CompletionException(cause instanceof BlobStoreException ?
+              cause : new BlobStoreException("Error uploading blob", cause, blobId));
+        });
   }
 
-  @Nullable
+  /**
+   * Create a blob from a local file whose size and SHA-1 are already known, such as during an import or a migration
+   * from a file blob store. The file is uploaded through {@link Uploader#upload(Storage, String, String, Path, long)}
+   * in ranges read in parallel, and is not hashed again unless {@link #FILE_VERIFY_HASH_PROPERTY} is set or the
+   * content is deduplicated, where the hash is its address. Blobs that would be staged, packed or compressed are
+   * streamed through {@link #create(InputStream, Map)} instead.
+   */
   @Override
   @Guarded(by = STARTED)
-  public Blob get(final BlobId blobId) {
-    return get(blobId, false);
-  }
+  public Blob create(final Path sourceFile, final Map<String, String> headers, final long size, final HashCode sha1) {
+    checkNotNull(sourceFile);
+    checkNotNull(headers);
+    checkNotNull(sha1);
+    try {
+      long actualSize = Files.size(sourceFile);
+      if (actualSize != size) {
+        throw new BlobStoreException(format("Size of %s is %d, expected %d", sourceFile, actualSize, size), null);
+      }
+      // a wrong hash for deduplicated content would point the blob at the content of another
+      if (fileVerifyHash || deduplicationEnabled) {
+        HashCode actualSha1 = MoreFiles.asByteSource(sourceFile).hash(Hashing.sha1());
+        if (!actualSha1.equals(sha1)) {
+          throw new BlobStoreException(format("SHA-1 of %s is %s, expected %s", sourceFile, actualSha1, sha1), null);
+        }
+      }
+    }
+    catch (IOException e) {
+      throw new BlobStoreException("Unable to read " + sourceFile, e, null);
+    }
 
-  @Nullable
+    final boolean packable = packingMaxBlobBytes > 0 && !deduplicationEnabled && size <= packingMaxBlobBytes;
+    final boolean compressible = !deduplicationEnabled && compression != null && compression.accepts(headers);
+    if (staging != null || packable || compressible) {
+      try (InputStream content = Files.newInputStream(sourceFile)) {
+        return create(content, headers);
+      }
+      catch (IOException e) {
+        throw new BlobStoreException("Unable to read " + sourceFile, e, null);
+      }
+    }
+
+    final String bucket = getConfiguredBucketName();
+    final Blob blob;
+    if (deduplicationEnabled) {
+      // the supplied hash spares spooling the content to learn it
+      blob = storeDeduplicated(headers, null, sha1.toString(), size, path -> {
+        uploader.upload(storage, bucket, path, sourceFile, size);
+        callMetrics.bytesOut(size);
+      });
+    }
+    else {
+      blob = createInternal(headers, (destination, onContentCommitted) -> {
+        uploader.upload(storage, bucket, destination, sourceFile, size);
+        callMetrics.bytesOut(size);
+        return new StreamMetrics(size, sha1.toString());
+      }, null, null);
+    }
+    if (signedUrls != null) {
+      // the content of an overwritten blob may have moved
+      signedUrls.invalidate(blob.getId());
+    }
+    return blob;
+  }
+
+  @Override
+  @Guarded(by = STARTED)
+  public Blob copy(final BlobId blobId, final Map<String, String> headers) {
+    GoogleCloudStorageBlob sourceBlob = (GoogleCloudStorageBlob) checkNotNull(get(blobId));
+    flushStaged(blobId);
+    PackedBlobIndex.Location packed = sourceBlob.packedLocation();
+    if (packed != null) {
+      final byte[] content;
+      try {
+        content = packer.read(packed);
+      }
+      catch (IOException e) {
+        throw new BlobStoreException(e, blobId);
+      }
+      if (content.length <= packingMaxBlobBytes) {
+        return createPacked(content, headers, null);
+      }
+      // packing was lowered or turned off since the source was packed
+      return doCreate(new ByteArrayInputStream(content), headers, null);
+    }
+    if (deduplicationEnabled && sourceBlob.contentEncoding() == null) {
+      // only the attributes are written, unless the source content is not deduplicated yet; compressed content is not
+      // shared, it is copied as it is
+      BlobMetrics source = sourceBlob.getMetrics();
+      return storeDeduplicated(headers, null, source.getSha1Hash(), source.getContentSize(),
+          path -> rewrite(sourceBlob.storedContentPath(), path));
+    }
+
+    return createInternal(headers, (destination, onContentCommitted) -> {
+      com.google.cloud.storage.Blob copied = rewrite(sourceBlob.storedContentPath(), destination);
+      if (verifyIntegrity) {
+        // the copy carries the checksum of its source; a mismatch means the copy did not complete as expected
+        try {
+          com.google.cloud.storage.Blob source = storage.get(
+              com.google.cloud.storage.BlobId.of(getConfiguredBucketName(), sourceBlob.storedContentPath()),
+              BlobGetOption.fields(BlobField.CRC32C));
+          Crc32cChecksums.verify(copied, source.getCrc32c());
+        }
+        catch (BlobStoreException e) {
+          deleteNonExplosively(destination);
+          throw e;
+        }
+      }
+      BlobMetrics metrics = sourceBlob.getMetrics();
+      return new StreamMetrics(metrics.getContentSize(), metrics.getSha1Hash());
+    }, null, sourceBlob.contentEncoding());
+  }
+
+  /**
+   * Asynchronous variant of {@link #copy(BlobId, Map)}, run on the blob store executor so that copies of large blobs
+   * do not hold the calling thread.
+   *
+   * @return a future completed with the new {@link Blob}, or exceptionally with a {@link BlobStoreException}
+   */
+  @Guarded(by = STARTED)
+  public CompletableFuture<Blob> copyAsync(final BlobId blobId, final Map<String, String> headers) {
+    return CompletableFuture.supplyAsync(() -> copy(blobId, headers), executorService);
+  }
+
+  /**
+   * Copy an object within the bucket with the resumable rewrite API, one call per {@link #COPY_CHUNK_SIZE_PROPERTY}
+   * megabytes, so no single call has to copy a large object in one go.
+   *
+   * @return the copied object
+   */
+  private com.google.cloud.storage.Blob rewrite(final String source, final String destination) {
+    CopyRequest.Builder request = CopyRequest.newBuilder()
+        .setSource(com.google.cloud.storage.BlobId.of(getConfiguredBucketName(), source))
+        .setTarget(com.google.cloud.storage.BlobId.of(getConfiguredBucketName(), destination));
+    if (copyMegabytesPerCall > 0) {
+      request.setMegabytesCopiedPerChunk((long) copyMegabytesPerCall);
+    }
+    CopyWriter copyWriter = storage.copy(request.build());
+    while (!copyWriter.isDone()) {
+      copyWriter.copyChunk();
+      log.debug("Copied {} of {} bytes from {} to {}", copyWriter.getTotalBytesCopied(), copyWriter.getBlobSize(),
+          source, destination);
+    }
+    return copyWriter.getResult();
+  }
+
+  @Nullable
+  @Override
+  @Guarded(by = STARTED)
+  public Blob get(final BlobId blobId) {
+    return get(blobId, false);
+  }
+
+  /**
+   * Reads part of the content of a blob, such as for an HTTP range request or a resumed download. Only the bytes of
+   * the range are fetched from the bucket where the content is stored as it is.
+   *
+   * @param offset the position of the first byte to read
+   * @param length the most bytes to read; the range ends early at the end of the content
+   * @return the content of the range, or null if the blob does not exist
+   */
+  @Nullable
+  @Guarded(by = STARTED)
+  public InputStream getInputStream(final BlobId blobId, final long offset, final long length) {
+    GoogleCloudStorageBlob blob = (GoogleCloudStorageBlob) get(blobId);
+    return blob != null ? blob.getInputStream(offset, length) : null;
+  }
+
+  /**
+   * Channel variant of {@link Blob#getInputStream()}, see {@link GoogleCloudStorageBlob#openChannel()}. Read it into
+   * direct buffers, or transfer it to a file or socket channel, to download large blobs without heap copies.
+   *
+   * @return the content of the blob, or null if the blob does not exist
+   */
+  @Nullable
+  @Guarded(by = STARTED)
+  public ReadableByteChannel openChannel(final BlobId blobId) {
+    GoogleCloudStorageBlob blob = (GoogleCloudStorageBlob) get(blobId);
+    return blob != null ? blob.openChannel() : null;
+  }
+
+  /**
+   * A short-lived URL to download the content of a blob straight from the bucket, see
+   * {@link #SIGNED_URLS_ENABLED_PROPERTY}. The URL is valid for at least half of {@link #SIGNED_URLS_EXPIRY_PROPERTY}.
+   *
+   * @return the signed URL, or null if signed URLs are disabled, the blob does not exist, or its content is not
+   * stored as it is in an object of its own (staged, packed and compressed blobs); stream those through
+   * {@link Blob#getInputStream()} instead
+   */
+  @Nullable
+  @Guarded(by = STARTED)
+  public URL getSignedUrl(final BlobId blobId) {
+    if (signedUrls == null) {
+      return null;
+    }
+    final GoogleCloudStorageBlob blob = (GoogleCloudStorageBlob) get(blobId);
+    if (blob == null || blob.contentEncoding() != null || blob.packedLocation() != null ||
+        (staging != null && staging.get(blobId) != null)) {
+      return null;
+    }
+    return signedUrls.get(blobId, blob::getBlob);
+  }
+
+  @Nullable
   @Override
   @Guarded(by = STARTED)
   @Timed
@@ -291,30 +1138,30 @@ public class GoogleCloudBlobStore
 
     final GoogleCloudStorageBlob blob = liveBlobs.getUnchecked(blobId);
 
-    if (blob.isStale()) {
-      Lock lock = blob.lock();
-      try {
-        if (blob.isStale()) {
-          GoogleCloudBlobAttributes blobAttributes = new GoogleCloudBlobAttributes(bucket, attributePath(blobId));
-          boolean loaded = blobAttributes.load();
-          if (!loaded) {
-            log.warn("Attempt to access non-existent blob {} ({})", blobId, blobAttributes);
-            return null;
-          }
-
-          if (blobAttributes.isDeleted() && !includeDeleted) {
-            log.warn("Attempt to access soft-deleted blob {} ({})", blobId, blobAttributes);
-            return null;
-          }
-
-          blob.refresh(blobAttributes.getHeaders(), blobAttributes.getMetrics());
-        }
+    // no lock is taken here, so readers never queue behind a slow write to the same blob; a load that raced with a
+    // write is discarded by the version check in refresh and, if the write left the blob stale, retried
+    while (blob.isStale()) {
+      WriteBackStaging.StagedBlob staged = staging != null ? staging.get(blobId) : null;
+      if (staged != null) {
+        // not in the bucket yet
+        blob.refresh(staged.getHeaders(), staged.getMetrics());
+        break;
       }
-      catch (IOException e) {
-        throw new BlobStoreException(e, blobId);
+      AttributesLoad load = blob.loadAttributes();
+      GoogleCloudBlobAttributes blobAttributes = load.await(blobId);
+      if (blobAttributes == null) {
+        log.warn("Attempt to access non-existent blob {} ({})", blobId, blob.attributePath());
+        return null;
       }
-      finally {
-        lock.unlock();
+
+      if (blobAttributes.isDeleted() && !includeDeleted) {
+        log.warn("Attempt to access soft-deleted blob {} ({})", blobId, blobAttributes);
+        return null;
+      }
+
+      if (!blob.refresh(load.version, blobAttributes.getHeaders(), blobAttributes.getMetrics(),
+          blobAttributes.isDeduplicated(), blobAttributes.getContentEncoding())) {
+        log.debug("Blob {} was written while its attributes were loading", blobId);
       }
     }
 
@@ -324,13 +1171,18 @@ public class GoogleCloudBlobStore
 
   @Override
   protected boolean doDelete(final BlobId blobId, final String reason) {
+    return timed("delete", () -> softDelete(blobId, reason));
+  }
+
+  private boolean softDelete(final BlobId blobId, final String reason) {
     final GoogleCloudStorageBlob blob = liveBlobs.getUnchecked(blobId);
 
     Lock lock = blob.lock();
     try {
       log.debug("Soft deleting blob {}", blobId);
+      flushStaged(blobId);
 
-      GoogleCloudBlobAttributes blobAttributes = new GoogleCloudBlobAttributes(bucket, attributePath(blobId));
+      GoogleCloudBlobAttributes blobAttributes = new GoogleCloudBlobAttributes(propertiesFile(blob.attributePath()));
 
       boolean loaded = blobAttributes.load();
       if (!loaded) {
@@ -349,6 +1201,9 @@ public class GoogleCloudBlobStore
       // add the blobId to the soft-deleted index
       deletedBlobIndex.add(blobId);
       blob.markStale();
+      if (signedUrls != null) {
+        signedUrls.invalidate(blobId);
+      }
 
       return true;
     }
@@ -362,22 +1217,44 @@ public class GoogleCloudBlobStore
 
   @Override
   protected boolean doDeleteHard(final BlobId blobId) {
+    return timed("deleteHard", () -> hardDelete(blobId));
+  }
+
+  private boolean hardDelete(final BlobId blobId) {
     try {
       log.debug("Hard deleting blob {}", blobId);
 
-      boolean blobDeleted = storage.delete(getConfiguredBucketName(), contentPath(blobId));
+      GoogleCloudStorageBlob blob = liveBlobs.getUnchecked(blobId);
+      WriteBackStaging.StagedBlob discarded = discardStaged(blobId);
+      // a packed blob may also have an unpacked copy from before packing was enabled
+      boolean blobDeleted = unpack(blobId) | storage.delete(getConfiguredBucketName(), blob.contentPath());
+      if (!blobDeleted && contentReferences != null && deleteDeduplicated(blob)) {
+        return true;
+      }
       if (blobDeleted) {
-        String attributePath = attributePath(blobId);
         BlobAttributes attributes = getBlobAttributes(blobId);
         metricsStore.recordDeletion(blobId, attributes.getMetrics().getContentSize());
-        storage.delete(getConfiguredBucketName(), attributePath);
+        storage.delete(getConfiguredBucketName(), blob.attributePath());
         deletedBlobIndex.remove(blobId);
       }
+      else if (discarded != null) {
+        // never uploaded
+        metricsStore.recordDeletion(blobId, discarded.getMetrics().getContentSize());
+      }
 
-      return blobDeleted;
+      return blobDeleted || discarded != null;
     }
     finally {
       liveBlobs.invalidate(blobId);
+      if (contentCache != null) {
+        contentCache.invalidate(blobId);
+      }
+      if (smallContentCache != null) {
+        smallContentCache.invalidate(blobId);
+      }
+      if (signedUrls != null) {
+        signedUrls.invalidate(blobId);
+      }
     }
   }
 
@@ -403,6 +1280,18 @@ public class GoogleCloudBlobStore
           counter.get());
     });
     progressLogger.flush();
+
+    if (packer != null) {
+      log.info("Begin segment compaction");
+      packer.compact(id -> liveBlobs.getUnchecked(id).lock(), (id, location) -> {
+        GoogleCloudStorageBlob live = liveBlobs.getIfPresent(id);
+        if (live != null) {
+          live.packedAt(location);
+        }
+      });
+      log.info("Segment compaction done: {} segments rewritten and {} deleted so far",
+          packer.getSegmentsCompacted(), packer.getSegmentsDeleted());
+    }
   }
 
   @Override
@@ -412,17 +1301,27 @@ public class GoogleCloudBlobStore
 
   @Override
   protected BlobAttributes getBlobAttributes(final GoogleAttributesLocation attributesFilePath) throws IOException {
-    GoogleCloudBlobAttributes googleCloudBlobAttributes = new GoogleCloudBlobAttributes(bucket,
-        attributesFilePath.getFullPath());
+    GoogleCloudBlobAttributes googleCloudBlobAttributes = new GoogleCloudBlobAttributes(
+        propertiesFile(attributesFilePath.getFullPath()));
     googleCloudBlobAttributes.load();
     return googleCloudBlobAttributes;
   }
 
   @Override
   protected void doInit(final BlobStoreConfiguration configuration) {
+    Stopwatch stopwatch = Stopwatch.createStarted();
     migrateLegacyConfiguration(configuration);
+    // read once, rather than from the nested configuration attributes on every call
+    this.bucketName = configuration.attributes(CONFIG_KEY).require(BUCKET_NAME_KEY).toString();
+    this.deduplicationEnabled = getBoolean(configuration.attributes(CONFIG_KEY), DEDUPLICATION_KEY,
+        deduplicationDefault);
+    this.compression = newContentCompression(configuration.attributes(CONFIG_KEY));
     try {
-      this.storage = storageFactory.create(configuration);
+      this.callMetrics = new GoogleCloudCallMetrics(metricRegistry,
+          format("%s@%s.gcs", GoogleCloudBlobStore.class.getName(), configuration.getName()));
+      this.storage = callMetrics.instrument(storageFactory.create(configuration));
+      this.attributeReadLatency = hedgedReads.newLatency(
+          format("%s@%s.hedgedReads.latency", GoogleCloudBlobStore.class.getName(), configuration.getName()));
 
       String location = configuration.attributes(CONFIG_KEY).get(REGION_KEY, String.class);
       this.bucket = getOrCreateStorageBucket(location);
@@ -430,8 +1329,170 @@ public class GoogleCloudBlobStore
     catch (Exception e) {
       throw new GoogleCloudProjectException("Unable to initialize blob store bucket: " + getConfiguredBucketName(), e);
     }
+    log.info("{} bucket {} ready in {}", configuration.getName(), getConfiguredBucketName(), stopwatch);
+
+    if (contentCacheBytes > 0) {
+      contentCache = new ContentCache(contentCacheDirectory.resolve(safe(configuration.getName())), contentCacheBytes);
+      try {
+        contentCache.initialize();
+      }
+      catch (IOException e) {
+        log.warn("Unable to initialize content cache for {}, reading all content from the bucket",
+            configuration.getName(), e);
+        contentCache = null;
+      }
+    }
+    if (smallContentCacheBytes > 0) {
+      smallContentCache = new OffHeapContentCache(smallContentCacheBytes, smallContentCacheMaxBlobBytes);
+    }
+    if (stagingEnabled) {
+      // unlike the caches, staging cannot be skipped on failure; it may hold blobs not yet uploaded
+      staging = new WriteBackStaging(stagingDirectory.resolve(safe(configuration.getName())), stagingFlushThreads);
+      try {
+        staging.initialize();
+      }
+      catch (IOException e) {
+        throw new GoogleCloudProjectException("Unable to initialize staging directory for " + configuration.getName(),
+            e);
+      }
+    }
+
+    // blob stores are all initialized before any is started, so the metadata round-trips of every blob store
+    // overlap with each other; doStart waits for them
+    startup = CompletableFuture.runAsync(this::initializeMetadata, executor());
+  }
+
+  /**
+   * Read (or create) the blob store metadata file, then initialize the deleted blob index and metrics store.
+   */
+  private void initializeMetadata() {
+    final String name = blobStoreConfiguration.getName();
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    GoogleCloudPropertiesFile metadata = propertiesFile(METADATA_FILENAME);
+    try {
+      if (metadata.exists()) {
+        metadata.load();
+        String type = metadata.getProperty(TYPE_KEY);
+        checkState(TYPE_V1.equals(type) || FILE_V1.equals(type),
+            "Unsupported blob store type/version: %s in %s", type, metadata);
+      }
+      else {
+        // assumes new blobstore, write out type
+        metadata.setProperty(TYPE_KEY, TYPE_V1);
+        metadata.store();
+      }
+    }
+    catch (IOException e) {
+      throw new GoogleCloudProjectException("Unable to read blob store metadata from " + METADATA_FILENAME, e);
+    }
+    packedMaxBlobBytes = recordPacking(metadata);
+    deduplicatedContent = recordDeduplication(metadata);
+    log.info("{} {} read in {}", name, METADATA_FILENAME, stopwatch);
+
+    stopwatch.reset().start();
+    boolean probe = isMetadataProbeDue(metadata);
+    initializeMetadataStores(probe);
+    if (probe) {
+      metadata.setProperty(METADATA_STORES_PROBED_KEY, Long.toString(System.currentTimeMillis()));
+      try {
+        metadata.store();
+      }
+      catch (IOException e) {
+        // not fatal, the stores will just be probed again next start
+        log.warn("Unable to record metadata store probe time in {}", METADATA_FILENAME, e);
+      }
+    }
+    log.info("{} deleted blob index and metrics store initialized in {} ({})", name, stopwatch,
+        probe ? "probed" : "probe skipped, last probe was recent");
+  }
+
+  /**
+   * Raise {@link #PACKED_MAX_BLOB_BYTES_KEY} to the current packing limit before any blob is packed under it.
+   *
+   * @return the largest blob that may have been packed in this blob store, 0 if packing was never enabled
+   */
+  private int recordPacking(final GoogleCloudPropertiesFile metadata) {
+    int recorded = getPackedMaxBlobBytes(metadata);
+    if (packingMaxBlobBytes <= recorded) {
+      return recorded;
+    }
+    metadata.setProperty(PACKED_MAX_BLOB_BYTES_KEY, Integer.toString(packingMaxBlobBytes));
+    try {
+      metadata.store();
+    }
+    catch (IOException e) {
+      throw new GoogleCloudProjectException("Unable to record packing in " + METADATA_FILENAME, e);
+    }
+    return packingMaxBlobBytes;
+  }
+
+  private static int getPackedMaxBlobBytes(final GoogleCloudPropertiesFile metadata) {
+    String recorded = metadata.getProperty(PACKED_MAX_BLOB_BYTES_KEY);
+    if (recorded == null) {
+      return 0;
+    }
+    try {
+      return Integer.parseInt(recorded);
+    }
+    catch (NumberFormatException e) {
+      // guessing could hide packed blobs
+      throw new IllegalStateException("Invalid " + PACKED_MAX_BLOB_BYTES_KEY + " in " + metadata, e);
+    }
+  }
+
+  /**
+   * Set {@link #DEDUPLICATED_KEY} if deduplication is enabled, before any content is deduplicated.
+   *
+   * @return whether any blob in this blob store may have deduplicated content
+   */
+  private boolean recordDeduplication(final GoogleCloudPropertiesFile metadata) {
+    if (isDeduplicationRecorded(metadata)) {
+      return true;
+    }
+    if (!deduplicationEnabled) {
+      return false;
+    }
+    metadata.setProperty(DEDUPLICATED_KEY, Boolean.TRUE.toString());
+    try {
+      metadata.store();
+    }
+    catch (IOException e) {
+      throw new GoogleCloudProjectException("Unable to record deduplication in " + METADATA_FILENAME, e);
+    }
+    return true;
+  }
+
+  private static boolean isDeduplicationRecorded(final GoogleCloudPropertiesFile metadata) {
+    return Boolean.parseBoolean(metadata.getProperty(DEDUPLICATED_KEY));
+  }
+
+  /**
+   * Read {@link #METADATA_FILENAME} directly, for a blob store that may never have finished starting.
+   *
+   * @return the metadata, or null if there is none
+   */
+  @Nullable
+  private GoogleCloudPropertiesFile loadMetadata() throws IOException {
+    GoogleCloudPropertiesFile metadata = propertiesFile(METADATA_FILENAME);
+    if (!metadata.exists()) {
+      return null;
+    }
+    metadata.load();
+    return metadata;
+  }
 
-    initializeMetadataStores();
+  private boolean isMetadataProbeDue(final GoogleCloudPropertiesFile metadata) {
+    String lastProbe = metadata.getProperty(METADATA_STORES_PROBED_KEY);
+    if (lastProbe == null || metadataProbeIntervalMillis == 0) {
+      return true;
+    }
+    try {
+      return System.currentTimeMillis() - Long.parseLong(lastProbe) >= metadataProbeIntervalMillis;
+    }
+    catch (NumberFormatException e) {
+      log.debug("Ignoring malformed {} value {}", METADATA_STORES_PROBED_KEY, lastProbe);
+      return true;
+    }
   }
 
   /**
@@ -470,14 +1531,60 @@ public class GoogleCloudBlobStore
     }
   }
 
+  /**
+   * @return the value of a boolean blob store attribute, which may be stored as a string, or the default if unset
+   */
+  private static boolean getBoolean(final NestedAttributesMap config, final String key, final boolean defaultValue) {
+    Object value = config.get(key);
+    return value != null ? Boolean.parseBoolean(value.toString()) : defaultValue;
+  }
+
+  /**
+   * @return the value of a number blob store attribute, which may be stored as a string, or the default if unset
+   */
+  private static int getInt(final NestedAttributesMap config, final String key, final int defaultValue) {
+    Object value = config.get(key);
+    if (value instanceof Number) {
+      return ((Number) value).intValue();
+    }
+    return value != null && !value.toString().trim().isEmpty() ? Integer.parseInt(value.toString().trim()) :
+        defaultValue;
+  }
+
+  /**
+   * @return the value of a string blob store attribute, or the default if unset or blank
+   */
+  private static String getString(final NestedAttributesMap config, final String key, final String defaultValue) {
+    Object value = config.get(key);
+    return value != null && !value.toString().trim().isEmpty() ? value.toString() : defaultValue;
+  }
+
+  /**
+   * @return the compression of new content, from the blob store attributes or else the properties, or null if it is
+   * turned off
+   */
+  @Nullable
+  private ContentCompression newContentCompression(final NestedAttributesMap config) {
+    if (!getBoolean(config, COMPRESSION_KEY, compressionDefault)) {
+      return null;
+    }
+    return new ContentCompression(getInt(config, COMPRESSION_LEVEL_KEY, compressionLevelDefault),
+        getString(config, COMPRESSION_ALLOW_LIST_KEY, compressionAllowListDefault));
+  }
+
   /**
    * Instantiate and initialize the deleted blob index and metrics store.
+   *
+   * @param probe whether to check the stores are usable with sentinel writes; the two stores are probed concurrently
    */
-  protected void initializeMetadataStores() {
+  protected void initializeMetadataStores(final boolean probe) {
+    CompletableFuture<Void> deletedBlobIndexProbe = CompletableFuture.completedFuture(null);
     try {
       if (deletedBlobIndex == null) {
-        this.deletedBlobIndex = new DeletedBlobIndex(this.datastoreFactory, blobStoreConfiguration, this.deletedBlobQueryLimit);
-        this.deletedBlobIndex.initialize();
+        this.deletedBlobIndex = new DeletedBlobIndex(callMetrics.instrument(acquireDatastore()), blobStoreConfiguration, this.deletedBlobQueryLimit);
+        if (probe) {
+          deletedBlobIndexProbe = CompletableFuture.runAsync(deletedBlobIndex::initialize, executor());
+        }
       }
     }
     catch (Exception e) {
@@ -486,14 +1593,67 @@ public class GoogleCloudBlobStore
 
     try {
       if (metricsStore == null) {
-        this.metricsStore = new ShardedCounterMetricsStore(this.blobIdLocationResolver, this.datastoreFactory,
+        this.metricsStore = new ShardedCounterMetricsStore(this.blobIdLocationResolver,
+            callMetrics.instrument(acquireDatastore()),
             this.blobStoreConfiguration, this.metricsFlushDelaySeconds);
-        this.metricsStore.initialize();
+        if (probe) {
+          this.metricsStore.initialize();
+        }
       }
     }
     catch (Exception e) {
       throw new GoogleCloudProjectException("Failed to create blob metrics store", e);
     }
+
+    try {
+      if (packedBlobIndex == null && packedMaxBlobBytes > 0) {
+        this.packedBlobIndex = new PackedBlobIndex(callMetrics.instrument(acquireDatastore()), blobStoreConfiguration);
+      }
+    }
+    catch (Exception e) {
+      throw new GoogleCloudProjectException("Failed to create packed blob index", e);
+    }
+
+    try {
+      if (contentReferences == null && deduplicatedContent) {
+        this.contentReferences = new ContentReferences(callMetrics.instrument(acquireDatastore()),
+            blobStoreConfiguration);
+      }
+    }
+    catch (Exception e) {
+      throw new GoogleCloudProjectException("Failed to create content reference counts", e);
+    }
+
+    try {
+      deletedBlobIndexProbe.join();
+    }
+    catch (CompletionException e) {
+      throw new GoogleCloudProjectException("Failed to create deleted blob index", e.getCause());
+    }
+  }
+
+  /**
+   * @return the {@link Datastore} client this blob store holds, acquiring it from the shared registry if necessary
+   */
+  private Datastore acquireDatastore() throws Exception {
+    if (datastore == null) {
+      datastore = datastoreFactory.acquire(blobStoreConfiguration);
+    }
+    return datastore;
+  }
+
+  /**
+   * Drop the deleted blob index and metrics store, and return the {@link Datastore} client to the shared registry.
+   */
+  private void releaseMetadataStores() {
+    deletedBlobIndex = null;
+    metricsStore = null;
+    packedBlobIndex = null;
+    contentReferences = null;
+    if (datastore != null) {
+      datastoreFactory.release(datastore);
+      datastore = null;
+    }
   }
 
   protected Bucket getOrCreateStorageBucket(final String location) {
@@ -512,8 +1672,53 @@ public class GoogleCloudBlobStore
   @Override
   @Guarded(by = {NEW, STOPPED, FAILED, SHUTDOWN})
   public void remove() {
-    metricsStore.removeData();
-    deletedBlobIndex.removeData();
+    if (startup != null) {
+      // never started; let the metadata initialization from doInit settle before tearing it down
+      startup.handle((result, failure) -> null).join();
+      startup = null;
+    }
+    if (executorService != null) {
+      executorService.shutdown();
+      executorService = null;
+    }
+    try {
+      Datastore client = callMetrics.instrument(acquireDatastore());
+      new ShardedCounterMetricsStore(blobIdLocationResolver, client, blobStoreConfiguration).removeData();
+      new DeletedBlobIndex(client, blobStoreConfiguration).removeData();
+      GoogleCloudPropertiesFile metadata = loadMetadata();
+      if (packedMaxBlobBytes > 0 || (metadata != null && getPackedMaxBlobBytes(metadata) > 0)) {
+        new PackedBlobIndex(client, blobStoreConfiguration).removeData();
+      }
+      if (deduplicatedContent || (metadata != null && isDeduplicationRecorded(metadata))) {
+        new ContentReferences(client, blobStoreConfiguration).removeData();
+      }
+    }
+    catch (Exception e) {
+      throw new GoogleCloudProjectException("Failed to remove blob store metadata", e);
+    }
+    finally {
+      releaseMetadataStores();
+    }
+    if (contentCache != null) {
+      try {
+        contentCache.clear();
+      }
+      catch (IOException e) {
+        log.warn("Unable to remove content cache of {}", blobStoreConfiguration.getName(), e);
+      }
+    }
+    if (staging != null) {
+      if (staging.getDepth() > 0) {
+        log.warn("Discarding {} staged blobs of removed blob store {}", staging.getDepth(),
+            blobStoreConfiguration.getName());
+      }
+      try {
+        staging.clear();
+      }
+      catch (IOException e) {
+        log.warn("Unable to remove staging directory of {}", blobStoreConfiguration.getName(), e);
+      }
+    }
     // do not delete the bucket
   }
 
@@ -539,7 +1744,9 @@ public class GoogleCloudBlobStore
   }
 
   Stream<BlobInfo> blobStream(final String path) {
-    return stream(bucket.list(BlobListOption.prefix(path)).iterateAll()).map(c -> c);
+    // only the first page is timed; later pages are fetched as the stream is consumed
+    Page<com.google.cloud.storage.Blob> page = callMetrics.time("list", () -> bucket.list(BlobListOption.prefix(path)));
+    return stream(page.iterateAll()).map(c -> c);
   }
 
   Stream<BlobInfo> nonTempBlobPropertiesFileStream(final Stream<BlobInfo> stream) {
@@ -564,15 +1771,20 @@ public class GoogleCloudBlobStore
   }
 
   /**
-   * @return the {@link BlobAttributes} for the blob, or null
+   * @return the {@link BlobAttributes} for the blob, or null; those of a staged blob are answered from staging, without
+   * uploading it
    * @throws BlobStoreException if an {@link IOException} occurs
    */
   @Override
   @Guarded(by = STARTED)
   public BlobAttributes getBlobAttributes(final BlobId blobId) {
+    WriteBackStaging.StagedBlob staged = staging != null ? staging.get(blobId) : null;
+    if (staged != null) {
+      return new GoogleCloudBlobAttributes(propertiesFile(liveBlobs.getUnchecked(blobId).attributePath()),
+          staged.getHeaders(), staged.getMetrics());
+    }
     try {
-      GoogleCloudBlobAttributes blobAttributes = new GoogleCloudBlobAttributes(bucket, attributePath(blobId));
-      return blobAttributes.load() ? blobAttributes : null;
+      return loadAttributes(blobId);
     }
     catch (IOException e) {
       log.error("Unable to load GoogleCloudBlobAttributes for blob id: {}", blobId, e);
@@ -580,18 +1792,38 @@ public class GoogleCloudBlobStore
     }
   }
 
-  @Override
-  @Guarded(by = STARTED)
-  public void setBlobAttributes(final BlobId blobId, final BlobAttributes blobAttributes) {
-    GoogleCloudBlobAttributes existing = (GoogleCloudBlobAttributes) getBlobAttributes(blobId);
-    if (existing != null) {
-      try {
-        existing.updateFrom(blobAttributes);
-        existing.store();
-      }
-      catch (IOException e) {
-        log.error("Unable to set GoogleCloudBlobAttributes for blob id: {}", blobId, e);
-      }
+  /**
+   * Read the attributes of a blob, hedging the read if enabled via {@link HedgedReadExecutor}.
+   *
+   * @return the loaded {@link GoogleCloudBlobAttributes}, or null if the blob has no attributes file
+   */
+  @Nullable
+  private GoogleCloudBlobAttributes loadAttributes(final BlobId blobId) throws IOException {
+    return loadAttributes(liveBlobs.getUnchecked(blobId).attributePath());
+  }
+
+  @Nullable
+  private GoogleCloudBlobAttributes loadAttributes(final String attributePath) throws IOException {
+    return hedgedReads.read(attributeReadLatency, () -> {
+      GoogleCloudBlobAttributes blobAttributes = new GoogleCloudBlobAttributes(propertiesFile(attributePath));
+      return blobAttributes.load() ? blobAttributes : null;
+    });
+  }
+
+  @Override
+  @Guarded(by = STARTED)
+  public void setBlobAttributes(final BlobId blobId, final BlobAttributes blobAttributes) {
+    try {
+      // the attributes are stored in the bucket, so a staged blob goes there first
+      flushStaged(blobId);
+      GoogleCloudBlobAttributes existing = loadAttributes(blobId);
+      if (existing != null) {
+        existing.updateFrom(blobAttributes);
+        existing.store();
+      }
+    }
+    catch (IOException e) {
+      log.error("Unable to set GoogleCloudBlobAttributes for blob id: {}", blobId, e);
     }
   }
 
@@ -606,6 +1838,80 @@ public class GoogleCloudBlobStore
     return getBlobAttributes(blobId) != null;
   }
 
+  /**
+   * Bulk variant of {@link #exists(BlobId)}. Looks up attribute files in Google Cloud Storage batch requests of up
+   * to {@value #BATCH_REQUEST_LIMIT}, rather than loading each one; staged blobs are answered from staging.
+   *
+   * @return whether each of the given blobs exists, keyed by {@link BlobId}
+   */
+  @Guarded(by = STARTED)
+  public Map<BlobId, Boolean> existsAll(final Collection<BlobId> blobIds) {
+    checkNotNull(blobIds);
+    Map<BlobId, Boolean> results = new HashMap<>(blobIds.size());
+    // staged blobs are not in the bucket yet, only the others are looked up there
+    List<BlobId> unstaged = new ArrayList<>(blobIds.size());
+    for (BlobId blobId : blobIds) {
+      if (staging != null && staging.get(blobId) != null) {
+        results.put(blobId, true);
+      }
+      else {
+        unstaged.add(blobId);
+      }
+    }
+    for (List<BlobId> batch : Iterables.partition(unstaged, BATCH_REQUEST_LIMIT)) {
+      List<com.google.cloud.storage.BlobId> attributeFiles = batch.stream()
+          .map(blobId -> com.google.cloud.storage.BlobId.of(getConfiguredBucketName(),
+              liveBlobs.getUnchecked(blobId).attributePath()))
+          .collect(Collectors.toList());
+      try {
+        // storage returns null entries, in request order, for files that do not exist
+        List<com.google.cloud.storage.Blob> found = storage.get(attributeFiles);
+        for (int i = 0; i < batch.size(); i++) {
+          results.put(batch.get(i), found.get(i) != null);
+        }
+      }
+      catch (StorageException e) {
+        throw new BlobStoreException("Unable to check existence of " + batch.size() + " blobs", e, null);
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Bulk variant of {@link #getBlobAttributes(BlobId)}. Attribute files are loaded in parallel on the blob store
+   * executor, at most {@link #BULK_LOOKUP_CONCURRENCY_PROPERTY} at a time.
+   *
+   * @return the {@link BlobAttributes} of each of the given blobs that exists, keyed by {@link BlobId}
+   * @throws BlobStoreException if an attribute file could not be loaded
+   */
+  @Guarded(by = STARTED)
+  public Map<BlobId, BlobAttributes> getAttributesAll(final Collection<BlobId> blobIds) {
+    checkNotNull(blobIds);
+    if (blobIds.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    // one worker per partition bounds the number of loads in flight
+    int partitionSize = (blobIds.size() + bulkLookupConcurrency - 1) / bulkLookupConcurrency;
+    Map<BlobId, BlobAttributes> results = new ConcurrentHashMap<>(blobIds.size());
+    List<CompletableFuture<Void>> workers = new ArrayList<>();
+    for (List<BlobId> partition : Iterables.partition(blobIds, partitionSize)) {
+      workers.add(CompletableFuture.runAsync(() -> partition.forEach(blobId -> {
+        BlobAttributes attributes = getBlobAttributes(blobId);
+        if (attributes != null) {
+          results.put(blobId, attributes);
+        }
+      }), executorService));
+    }
+    try {
+      CompletableFuture.allOf(workers.toArray(new CompletableFuture[0])).join();
+    }
+    catch (CompletionException e) {
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new BlobStoreException("Unable to load attributes of " + blobIds.size() + " blobs", e.getCause(), null);
+    }
+    return results;
+  }
+
   @Override
   public boolean isStorageAvailable() {
     return true;
@@ -650,12 +1956,61 @@ public class GoogleCloudBlobStore
 
   @Override
   public Map<OperationType, OperationMetrics> getOperationMetricsDelta() {
-    return Collections.emptyMap();
+    return this.metricsStore.getOperationMetricsDelta();
   }
 
   @Override
   public void clearOperationMetrics() {
-    //no-op
+    this.metricsStore.clearOperationMetrics();
+  }
+
+  /**
+   * @return the Dropwizard {@link Timer} for an operation on this blob store, named like
+   * 'org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore@name.operations.upload'
+   */
+  private Timer operationTimer(final String operation) {
+    return metricRegistry.timer(format("%s@%s.operations.%s", GoogleCloudBlobStore.class.getName(),
+        getBlobStoreConfiguration().getName(), operation));
+  }
+
+  /**
+   * Record an operation in its Dropwizard timer and error meter, and for uploads and downloads in the
+   * {@link OperationMetrics} reported by {@link #getOperationMetricsByType()} and {@link #getOperationMetricsDelta()}.
+   *
+   * @param operation  name of the operation, used in the metric names
+   * @param type       the {@link OperationType}, or null if the operation is not an upload or download
+   * @param startNanos {@link System#nanoTime()} when the operation started
+   * @param blobSize   bytes transferred
+   * @param successful whether the operation succeeded
+   */
+  private void recordOperation(final String operation,
+                               @Nullable final OperationType type,
+                               final long startNanos,
+                               final long blobSize,
+                               final boolean successful)
+  {
+    long elapsedNanos = System.nanoTime() - startNanos;
+    operationTimer(operation).update(elapsedNanos, TimeUnit.NANOSECONDS);
+    if (!successful) {
+      metricRegistry.meter(format("%s@%s.operations.%s.errors", GoogleCloudBlobStore.class.getName(),
+          getBlobStoreConfiguration().getName(), operation)).mark();
+    }
+    if (type != null) {
+      metricsStore.recordOperation(type, blobSize, TimeUnit.NANOSECONDS.toMillis(elapsedNanos), successful);
+    }
+  }
+
+  private <T> T timed(final String operation, final Supplier<T> action) {
+    final long start = System.nanoTime();
+    boolean successful = false;
+    try {
+      T result = action.get();
+      successful = true;
+      return result;
+    }
+    finally {
+      recordOperation(operation, null, start, 0, successful);
+    }
   }
 
   @VisibleForTesting
@@ -667,9 +2022,13 @@ public class GoogleCloudBlobStore
             .map(BlobId::new);
   }
 
+  /**
+   * @param contentEncoding how the ingester compresses the content, see {@link ContentCompression}
+   */
   Blob createInternal(final Map<String, String> headers,
                       final BlobIngester ingester,
-                      @Nullable final BlobId assignedBlobId)
+                      @Nullable final BlobId assignedBlobId,
+                      @Nullable final String contentEncoding)
   {
     checkNotNull(headers);
 
@@ -678,34 +2037,494 @@ public class GoogleCloudBlobStore
 
     final BlobId blobId = getBlobId(headers, assignedBlobId);
 
-    final String blobPath = contentPath(blobId);
-    final String attributePath = attributePath(blobId);
     final GoogleCloudStorageBlob blob = liveBlobs.getUnchecked(blobId);
+    final String blobPath = blob.contentPath();
+    final String attributePath = blob.attributePath();
+    final PendingAttributes pendingAttributes = new PendingAttributes(attributePath, headers, contentEncoding);
+    final long start = System.nanoTime();
     Lock lock = blob.lock();
     try {
       log.debug("Writing blob {} to {}", blobId, blobPath);
+      unpackOverwritten(blobId, headers, assignedBlobId);
+      final String overwritten = deduplicatedOverwritten(blob, headers, assignedBlobId);
+
+      final StreamMetrics streamMetrics = ingester.ingestTo(blobPath, pendingAttributes::start);
+      final BlobMetrics metrics = pendingAttributes.await(streamMetrics);
+      blob.refresh(headers, metrics, false, contentEncoding);
+      if (overwritten != null) {
+        releaseContent(overwritten);
+      }
+
+      metricsStore.recordAddition(blobId, metrics.getContentSize());
+      recordOperation("upload", OperationType.UPLOAD, start, metrics.getContentSize(), true);
+
+      return blob;
+    }
+    catch (IOException e) {
+      recordOperation("upload", OperationType.UPLOAD, start, 0, false);
+      pendingAttributes.abandon();
+      cleanup(attributePath, blobPath);
+      throw new BlobStoreException(e, blobId);
+    }
+    catch (RuntimeException e) {
+      recordOperation("upload", OperationType.UPLOAD, start, 0, false);
+      // with pipelined writes the attributes may already be written even though the upload failed
+      if (pendingAttributes.abandon()) {
+        cleanup(attributePath, blobPath);
+      }
+      throw e;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Delete the files of a failed write; off the request thread when pipelined writes are enabled.
+   */
+  private void cleanup(final String attributePath, final String blobPath) {
+    Runnable cleanup = () -> {
+      deleteNonExplosively(attributePath);
+      deleteNonExplosively(blobPath);
+    };
+    if (pipelinedWrites) {
+      executeOrRun(cleanup);
+    }
+    else {
+      cleanup.run();
+    }
+  }
 
-      final StreamMetrics streamMetrics = ingester.ingestTo(blobPath);
-      final BlobMetrics metrics = new BlobMetrics(new DateTime(), streamMetrics.getSha1(), streamMetrics.getSize());
+  /**
+   * Run a background task on the blob store executor, or on the calling thread once the executor is stopped.
+   */
+  private void executeOrRun(final Runnable task) {
+    final ExecutorService executor = executorService;
+    if (executor != null) {
+      try {
+        executor.execute(task);
+        return;
+      }
+      catch (RejectedExecutionException e) {
+        log.debug("Blob store executor is shut down, running task on the calling thread", e);
+      }
+    }
+    task.run();
+  }
+
+  /**
+   * Write a new blob to the {@link WriteBackStaging} directory; it is uploaded to the bucket by {@link #upload}.
+   */
+  private Blob createStaged(final InputStream blobData,
+                            final Map<String, String> headers,
+                            @Nullable final BlobId assignedBlobId)
+  {
+    checkNotNull(headers);
+
+    checkArgument(headers.containsKey(BLOB_NAME_HEADER), "Missing header: %s", BLOB_NAME_HEADER);
+    checkArgument(headers.containsKey(CREATED_BY_HEADER), "Missing header: %s", CREATED_BY_HEADER);
+
+    final BlobId blobId = getBlobId(headers, assignedBlobId);
+
+    final GoogleCloudStorageBlob blob = liveBlobs.getUnchecked(blobId);
+    final long start = System.nanoTime();
+    Lock lock = blob.lock();
+    try (InputStream data = blobData) {
+      log.debug("Staging blob {}", blobId);
+      unpackOverwritten(blobId, headers, assignedBlobId);
+
+      final BlobMetrics metrics = staging.stage(blobId, headers, data).getMetrics();
       blob.refresh(headers, metrics);
 
-      GoogleCloudBlobAttributes blobAttributes = new GoogleCloudBlobAttributes(bucket, attributePath, headers, metrics);
+      metricsStore.recordAddition(blobId, metrics.getContentSize());
+      recordOperation("upload", OperationType.UPLOAD, start, metrics.getContentSize(), true);
+
+      return blob;
+    }
+    catch (IOException e) {
+      recordOperation("upload", OperationType.UPLOAD, start, 0, false);
+      throw new BlobStoreException(e, blobId);
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Upload a staged blob to the bucket, then drop it from staging. Runs under the blob lock, so a blob deleted or
+   * overwritten meanwhile is not uploaded.
+   */
+  private void upload(final WriteBackStaging.StagedBlob staged) throws IOException {
+    final GoogleCloudStorageBlob blob = liveBlobs.getUnchecked(staged.getBlobId());
+    Lock lock = blob.lock();
+    try {
+      if (!staging.isCurrent(staged)) {
+        return;
+      }
+      log.debug("Uploading staged blob {} to {}", staged.getBlobId(), blob.contentPath());
+      final String overwritten = deduplicatedContent(blob);
+      try (InputStream content = staging.open(staged)) {
+        checkState(content != null, "Staged content of %s is missing", staged.getBlobId());
+        uploader.upload(storage, getConfiguredBucketName(), blob.contentPath(), content);
+      }
+      callMetrics.bytesOut(staged.getMetrics().getContentSize());
+      new GoogleCloudBlobAttributes(propertiesFile(blob.attributePath()), staged.getHeaders(), staged.getMetrics())
+          .store();
+      if (overwritten != null) {
+        releaseContent(overwritten);
+      }
+      staging.complete(staged);
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Upload the blob now if it is staged, for operations that need it in the bucket.
+   */
+  private void flushStaged(final BlobId blobId) {
+    if (staging != null) {
+      try {
+        staging.flushNow(blobId);
+      }
+      catch (IOException e) {
+        throw new BlobStoreException(e, blobId);
+      }
+    }
+  }
+
+  /**
+   * Remove the blob from staging without uploading it.
+   *
+   * @return the discarded blob, or null if it was not staged
+   */
+  @Nullable
+  private WriteBackStaging.StagedBlob discardStaged(final BlobId blobId) {
+    if (staging == null) {
+      return null;
+    }
+    // taken so that an upload in progress finishes first, and can then be deleted from the bucket
+    Lock lock = liveBlobs.getUnchecked(blobId).lock();
+    try {
+      return staging.discard(blobId);
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Pack the content of a small blob into a segment with {@link SegmentPacker}, then write its attributes.
+   */
+  private Blob createPacked(final byte[] content,
+                            final Map<String, String> headers,
+                            @Nullable final BlobId assignedBlobId)
+  {
+    checkNotNull(headers);
+
+    checkArgument(headers.containsKey(BLOB_NAME_HEADER), "Missing header: %s", BLOB_NAME_HEADER);
+    checkArgument(headers.containsKey(CREATED_BY_HEADER), "Missing header: %s", CREATED_BY_HEADER);
+
+    final BlobId blobId = getBlobId(headers, assignedBlobId);
+
+    final GoogleCloudStorageBlob blob = liveBlobs.getUnchecked(blobId);
+    final long start = System.nanoTime();
+    Lock lock = blob.lock();
+    try {
+      log.debug("Packing blob {}", blobId);
+      final String overwritten = deduplicatedOverwritten(blob, headers, assignedBlobId);
+
+      final PackedBlobIndex.Location location = packer.pack(blobId, content);
+      callMetrics.bytesOut(content.length);
+      final BlobMetrics metrics =
+          new BlobMetrics(new DateTime(), Hashing.sha1().hashBytes(content).toString(), content.length);
+      try {
+        new GoogleCloudBlobAttributes(propertiesFile(blob.attributePath()), headers, metrics).store();
+      }
+      catch (IOException | RuntimeException e) {
+        packedBlobIndex.remove(blobId);
+        throw e;
+      }
+      blob.refresh(headers, metrics);
+      blob.packedAt(location);
+      if (overwritten != null) {
+        releaseContent(overwritten);
+      }
 
-      blobAttributes.store();
       metricsStore.recordAddition(blobId, metrics.getContentSize());
+      recordOperation("upload", OperationType.UPLOAD, start, metrics.getContentSize(), true);
 
       return blob;
     }
     catch (IOException e) {
-      deleteNonExplosively(attributePath);
-      deleteNonExplosively(blobPath);
+      recordOperation("upload", OperationType.UPLOAD, start, 0, false);
       throw new BlobStoreException(e, blobId);
     }
+    catch (RuntimeException e) {
+      recordOperation("upload", OperationType.UPLOAD, start, 0, false);
+      throw e;
+    }
     finally {
       lock.unlock();
     }
   }
 
+  /**
+   * Spool new content to a local file to learn its SHA-1, then store it once per SHA-1. Content already in the blob
+   * store is not uploaded again.
+   */
+  private Blob createDeduplicated(final InputStream blobData,
+                                  final Map<String, String> headers,
+                                  @Nullable final BlobId assignedBlobId)
+  {
+    Path spool = null;
+    try (InputStream data = blobData) {
+      spool = Files.createTempFile("gcs-deduplicated-", ".bytes");
+      MetricsInputStream input = new MetricsInputStream(data);
+      Files.copy(input, spool, StandardCopyOption.REPLACE_EXISTING);
+      final StreamMetrics streamMetrics = input.getMetrics();
+      final Path content = spool;
+      return storeDeduplicated(headers, assignedBlobId, streamMetrics.getSha1(), streamMetrics.getSize(), path -> {
+        try (InputStream upload = Files.newInputStream(content)) {
+          uploader.upload(storage, getConfiguredBucketName(), path, upload);
+        }
+        callMetrics.bytesOut(streamMetrics.getSize());
+      });
+    }
+    catch (IOException e) {
+      throw new BlobStoreException("Unable to spool blob content", e, assignedBlobId);
+    }
+    finally {
+      if (spool != null) {
+        try {
+          Files.deleteIfExists(spool);
+        }
+        catch (IOException e) {
+          log.debug("Unable to delete {}", spool, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Take a reference to the content with the given SHA-1, writing it with {@code writer} if it is not stored yet,
+   * then write the attributes of the blob.
+   */
+  private Blob storeDeduplicated(final Map<String, String> headers,
+                                 @Nullable final BlobId assignedBlobId,
+                                 final String sha1,
+                                 final long size,
+                                 final ContentWriter writer)
+  {
+    checkNotNull(headers);
+
+    checkArgument(headers.containsKey(BLOB_NAME_HEADER), "Missing header: %s", BLOB_NAME_HEADER);
+    checkArgument(headers.containsKey(CREATED_BY_HEADER), "Missing header: %s", CREATED_BY_HEADER);
+
+    final BlobId blobId = getBlobId(headers, assignedBlobId);
+
+    final GoogleCloudStorageBlob blob = liveBlobs.getUnchecked(blobId);
+    final long start = System.nanoTime();
+    Lock lock = blob.lock();
+    try {
+      log.debug("Writing deduplicated blob {} with content {}", blobId, sha1);
+
+      // an earlier write of the same blob id, whose content must be released
+      final boolean overwrite = assignedBlobId != null || headers.containsKey(DIRECT_PATH_BLOB_HEADER);
+      unpackOverwritten(blobId, headers, assignedBlobId);
+      final GoogleCloudBlobAttributes previous = overwrite ? loadAttributes(blob.attributePath()) : null;
+
+      referenceContent(sha1, size, writer);
+      final BlobMetrics metrics = new BlobMetrics(new DateTime(), sha1, size);
+      try {
+        GoogleCloudBlobAttributes attributes =
+            new GoogleCloudBlobAttributes(propertiesFile(blob.attributePath()), headers, metrics);
+        attributes.setDeduplicated(true);
+        attributes.store();
+      }
+      catch (IOException | RuntimeException e) {
+        releaseContent(sha1);
+        throw e;
+      }
+      blob.refresh(headers, metrics, true, null);
+
+      if (previous != null && previous.isDeduplicated()) {
+        releaseContent(previous.getMetrics().getSha1Hash());
+      }
+      else if (previous != null) {
+        storage.delete(getConfiguredBucketName(), blob.contentPath());
+      }
+
+      metricsStore.recordAddition(blobId, size);
+      recordOperation("upload", OperationType.UPLOAD, start, size, true);
+
+      return blob;
+    }
+    catch (IOException e) {
+      recordOperation("upload", OperationType.UPLOAD, start, 0, false);
+      throw new BlobStoreException(e, blobId);
+    }
+    catch (RuntimeException e) {
+      recordOperation("upload", OperationType.UPLOAD, start, 0, false);
+      throw e;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Add a reference to deduplicated content, storing the content unless it is already in the bucket.
+   */
+  private void referenceContent(final String sha1, final long size, final ContentWriter writer) throws IOException {
+    final String path = deduplicatedPath(sha1);
+    final boolean first = contentReferences.acquire(sha1);
+    try {
+      // the first reference always writes, in case the content is being deleted after its last reference went
+      if (first || storage.get(com.google.cloud.storage.BlobId.of(getConfiguredBucketName(), path)) == null) {
+        writer.writeTo(path);
+      }
+      else {
+        deduplicatedWrites.incrementAndGet();
+        deduplicatedBytes.addAndGet(size);
+      }
+    }
+    catch (IOException | RuntimeException e) {
+      contentReferences.release(sha1);
+      throw e;
+    }
+  }
+
+  /**
+   * Drop a reference to deduplicated content, deleting the content once nothing references it.
+   */
+  private void releaseContent(final String sha1) {
+    if (contentReferences.release(sha1) > 0) {
+      return;
+    }
+    final com.google.cloud.storage.BlobId path =
+        com.google.cloud.storage.BlobId.of(getConfiguredBucketName(), deduplicatedPath(sha1));
+    com.google.cloud.storage.Blob content = storage.get(path);
+    if (!contentReferences.removeIfUnreferenced(sha1) || content == null) {
+      return;
+    }
+    try {
+      // only the generation seen while unreferenced; a new first reference writes a new generation
+      storage.delete(path, BlobSourceOption.generationMatch(content.getGeneration()));
+    }
+    catch (StorageException e) {
+      log.debug("Deduplicated content {} was not deleted, it was written again", sha1, e);
+    }
+  }
+
+  /**
+   * Delete a deduplicated blob, which has attributes but no content object of its own.
+   *
+   * @return true if the blob was deleted
+   */
+  private boolean deleteDeduplicated(final GoogleCloudStorageBlob blob) {
+    BlobId blobId = blob.getId();
+    GoogleCloudBlobAttributes attributes;
+    try {
+      // read from the bucket directly; the blob was discarded from staging, so there is nothing to flush
+      attributes = loadAttributes(blob.attributePath());
+    }
+    catch (IOException e) {
+      throw new BlobStoreException(e, blobId);
+    }
+    // deleting the attributes succeeds only once, so the reference is not released twice
+    if (attributes == null || !attributes.isDeduplicated() ||
+        !storage.delete(getConfiguredBucketName(), blob.attributePath())) {
+      return false;
+    }
+    metricsStore.recordDeletion(blobId, attributes.getMetrics().getContentSize());
+    deletedBlobIndex.remove(blobId);
+    releaseContent(attributes.getMetrics().getSha1Hash());
+    return true;
+  }
+
+  /**
+   * @return the SHA-1 of the deduplicated content of the blob about to be overwritten, to release once the new
+   * content is in place, or null if there is none
+   */
+  @Nullable
+  private String deduplicatedOverwritten(final GoogleCloudStorageBlob blob,
+                                         final Map<String, String> headers,
+                                         @Nullable final BlobId assignedBlobId) throws IOException
+  {
+    if (assignedBlobId == null && !headers.containsKey(DIRECT_PATH_BLOB_HEADER)) {
+      return null;
+    }
+    return deduplicatedContent(blob);
+  }
+
+  /**
+   * @return the SHA-1 of the deduplicated content the attributes in the bucket refer to, or null if there is none
+   */
+  @Nullable
+  private String deduplicatedContent(final GoogleCloudStorageBlob blob) throws IOException {
+    if (contentReferences == null) {
+      return null;
+    }
+    GoogleCloudBlobAttributes attributes = loadAttributes(blob.attributePath());
+    return attributes != null && attributes.isDeduplicated() ? attributes.getMetrics().getSha1Hash() : null;
+  }
+
+  private static String deduplicatedPath(final String sha1) {
+    return DEDUPLICATED_PREFIX + "/" + sha1.substring(0, 2) + "/" + sha1 + BLOB_FILE_CONTENT_SUFFIX;
+  }
+
+  /**
+   * Remove the blob from the {@link PackedBlobIndex}, under the blob lock so it does not race with compaction.
+   *
+   * @return true if the blob was packed
+   */
+  private boolean unpack(final BlobId blobId) {
+    if (packedBlobIndex == null) {
+      return false;
+    }
+    GoogleCloudStorageBlob blob = liveBlobs.getUnchecked(blobId);
+    Lock lock = blob.lock();
+    try {
+      if (packedBlobIndex.get(blobId) == null) {
+        return false;
+      }
+      packedBlobIndex.remove(blobId);
+      blob.packedAt(null);
+      return true;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Unpack a blob id that may have been packed by an earlier write, before it is overwritten with content stored
+   * elsewhere. Called under the blob lock ahead of the write, so no reader resolves the old segment range once the
+   * new attributes are visible.
+   */
+  private void unpackOverwritten(final BlobId blobId,
+                                 final Map<String, String> headers,
+                                 @Nullable final BlobId assignedBlobId)
+  {
+    if (packer != null && (assignedBlobId != null || headers.containsKey(DIRECT_PATH_BLOB_HEADER))) {
+      unpack(blobId);
+    }
+  }
+
+  /**
+   * @return up to {@code limit} bytes from the start of the content
+   */
+  private static byte[] readHead(final InputStream content, final int limit, @Nullable final BlobId blobId) {
+    try {
+      return ByteStreams.toByteArray(ByteStreams.limit(content, limit));
+    }
+    catch (IOException e) {
+      throw new BlobStoreException("Unable to read blob content", e, blobId);
+    }
+  }
+
   long getSoftDeletedBlobCount() {
     return this.deletedBlobIndex.getContents().count();
   }
@@ -741,10 +2560,11 @@ public class GoogleCloudBlobStore
   }
 
   /**
-   * Returns path for blob-id content file relative to root directory.
+   * @return the {@link GoogleCloudPropertiesFile} at the given path in the bucket, reporting its calls to this blob
+   * store's {@link GoogleCloudCallMetrics}
    */
-  private String contentPath(final BlobId id) {
-    return getLocation(id) + BLOB_FILE_CONTENT_SUFFIX;
+  private GoogleCloudPropertiesFile propertiesFile(final String key) {
+    return new GoogleCloudPropertiesFile(bucket, key, callMetrics);
   }
 
   /**
@@ -762,30 +2582,527 @@ public class GoogleCloudBlobStore
   }
 
   private String getConfiguredBucketName() {
-    return blobStoreConfiguration.attributes(CONFIG_KEY).require(BUCKET_NAME_KEY).toString();
+    return bucketName;
   }
 
   class GoogleCloudStorageBlob
       extends BlobSupport
   {
+    /**
+     * Incremented on every change of state, see {@link #refresh(long, Map, BlobMetrics, boolean)}.
+     */
+    private long version;
+
+    private final AtomicReference<AttributesLoad> pendingLoad = new AtomicReference<>();
+
+    /**
+     * Where the content is packed, {@link #NOT_PACKED}, or null if not looked up since the blob last changed.
+     */
+    @Nullable
+    private volatile PackedBlobIndex.Location packedLocation;
+
+    private volatile boolean deduplicated;
+
+    @Nullable
+    private volatile String contentEncoding;
+
+    private final String contentPath;
+
+    private final String attributePath;
+
     GoogleCloudStorageBlob(BlobId blobId) {
       super(blobId);
+      // resolved once per blob, rather than on every read, write and delete
+      String location = getLocation(blobId);
+      this.contentPath = location + BLOB_FILE_CONTENT_SUFFIX;
+      this.attributePath = location + BLOB_FILE_ATTRIBUTES_SUFFIX;
+    }
+
+    String contentPath() {
+      return contentPath;
+    }
+
+    String attributePath() {
+      return attributePath;
+    }
+
+    /**
+     * @return where the content is stored in the bucket, unless it is packed: the shared object if it is
+     * deduplicated, otherwise {@link #contentPath()}
+     */
+    String storedContentPath() {
+      BlobMetrics metrics = getMetrics();
+      return deduplicated && metrics != null ? deduplicatedPath(metrics.getSha1Hash()) : contentPath;
+    }
+
+    synchronized long version() {
+      return version;
+    }
+
+    @Override
+    public void refresh(final Map<String, String> headers, final BlobMetrics metrics) {
+      refresh(headers, metrics, false, null);
+    }
+
+    /**
+     * @param deduplicated whether the content is stored once per SHA-1, see {@link #DEDUPLICATION_PROPERTY}
+     * @param contentEncoding how the content is compressed in the bucket, see {@link ContentCompression}
+     */
+    synchronized void refresh(final Map<String, String> headers,
+                              final BlobMetrics metrics,
+                              final boolean deduplicated,
+                              @Nullable final String contentEncoding)
+    {
+      version++;
+      packedLocation = null;
+      this.deduplicated = deduplicated;
+      this.contentEncoding = contentEncoding;
+      super.refresh(headers, metrics);
+    }
+
+    /**
+     * @return how the content is compressed in the bucket, or null if it is not compressed
+     */
+    @Nullable
+    String contentEncoding() {
+      return contentEncoding;
+    }
+
+    @Override
+    public synchronized void markStale() {
+      version++;
+      packedLocation = null;
+      super.markStale();
+    }
+
+    /**
+     * @return where the content of this blob is packed, or null if it is not packed; only small blobs are looked up
+     * in the {@link PackedBlobIndex}
+     */
+    @Nullable
+    PackedBlobIndex.Location packedLocation() {
+      BlobMetrics metrics = getMetrics();
+      if (packer == null || metrics == null || metrics.getContentSize() > packer.getMaxBlobBytes()) {
+        return null;
+      }
+      PackedBlobIndex.Location location = packedLocation;
+      if (location == null) {
+        long expectedVersion = version();
+        PackedBlobIndex.Location found = packedBlobIndex.get(getId());
+        location = found != null ? found : NOT_PACKED;
+        synchronized (this) {
+          // not kept if the blob changed during the lookup
+          if (version == expectedVersion) {
+            packedLocation = location;
+          }
+        }
+      }
+      return location != NOT_PACKED ? location : null;
+    }
+
+    /**
+     * Records where the content of this blob was packed, or that it is not packed.
+     */
+    synchronized void packedAt(@Nullable final PackedBlobIndex.Location location) {
+      packedLocation = location != null ? location : NOT_PACKED;
+    }
+
+    /**
+     * Loads the attributes of this blob, at most once at a time: callers arriving while a load is in flight share
+     * its result.
+     */
+    AttributesLoad loadAttributes() {
+      AttributesLoad load = new AttributesLoad(version());
+      while (!pendingLoad.compareAndSet(null, load)) {
+        AttributesLoad inFlight = pendingLoad.get();
+        if (inFlight != null) {
+          return inFlight;
+        }
+      }
+      try {
+        load.complete(GoogleCloudBlobStore.this.loadAttributes(attributePath));
+      }
+      catch (IOException | RuntimeException e) {
+        load.completeExceptionally(e);
+      }
+      finally {
+        pendingLoad.set(null);
+      }
+      return load;
+    }
+
+    /**
+     * Refresh from attributes read without holding the blob lock.
+     *
+     * @param expectedVersion the {@link #version()} before the attributes were read
+     * @return false, leaving the blob untouched, if it changed since the attributes were read
+     */
+    synchronized boolean refresh(final long expectedVersion,
+                                 final Map<String, String> headers,
+                                 final BlobMetrics metrics,
+                                 final boolean deduplicated,
+                                 @Nullable final String contentEncoding)
+    {
+      if (version != expectedVersion) {
+        return false;
+      }
+      refresh(headers, metrics, deduplicated, contentEncoding);
+      return true;
     }
 
     @Override
     public InputStream doGetInputStream() {
-      com.google.cloud.storage.Blob blob = getBlob();
-      ReadChannel channel = blob.reader();
-      return Channels.newInputStream(channel);
+      final long start = System.nanoTime();
+      final BlobMetrics metrics = getMetrics();
+      final String encoding = contentEncoding;
+      final boolean cacheable = contentCache != null && metrics != null && metrics.getSha1Hash() != null;
+      final boolean small = smallContentCache != null && metrics != null && metrics.getSha1Hash() != null &&
+          metrics.getContentSize() <= smallContentCache.getMaxBlobBytes();
+      boolean successful = false;
+      try {
+        InputStream staged = openStaged();
+        if (staged != null) {
+          successful = true;
+          return staged;
+        }
+        if (small) {
+          InputStream content = new ByteArrayInputStream(getSmallContent(metrics.getSha1Hash(), encoding));
+          successful = true;
+          return content;
+        }
+        if (cacheable) {
+          InputStream cached = contentCache.get(getId(), metrics.getSha1Hash());
+          if (cached != null) {
+            successful = true;
+            return cached;
+          }
+        }
+        InputStream inputStream = ContentCompression.decompress(callMetrics.meterBytesIn(openContent()), encoding);
+        if (cacheable) {
+          inputStream = contentCache.populate(getId(), metrics.getSha1Hash(), metrics.getContentSize(), inputStream);
+        }
+        successful = true;
+        return inputStream;
+      }
+      finally {
+        // the time recorded is the time to open the content, the size is that of the whole blob
+        recordOperation("download", OperationType.DOWNLOAD, start,
+            successful && metrics != null ? metrics.getContentSize() : 0, successful);
+      }
+    }
+
+    /**
+     * Channel variant of {@link #getInputStream()}. Content stored as it is in an object of its own is read from the
+     * {@link ReadChannel} straight into the caller's buffers, with no byte arrays in between. Content that is staged,
+     * small, packed, compressed or in the content cache is adapted from {@link #getInputStream()}.
+     */
+    ReadableByteChannel openChannel() {
+      final BlobMetrics metrics = getMetrics();
+      final boolean direct = metrics != null && contentEncoding == null && contentCache == null &&
+          (staging == null || staging.get(getId()) == null) &&
+          (smallContentCache == null || metrics.getContentSize() > smallContentCache.getMaxBlobBytes()) &&
+          packedLocation() == null;
+      if (!direct) {
+        return Channels.newChannel(getInputStream());
+      }
+      final long start = System.nanoTime();
+      boolean successful = false;
+      try {
+        ReadableByteChannel channel = callMetrics.meterBytesIn(openReader());
+        successful = true;
+        return channel;
+      }
+      finally {
+        recordOperation("download", OperationType.DOWNLOAD, start, successful ? metrics.getContentSize() : 0,
+            successful);
+      }
+    }
+
+    /**
+     * Ranged variant of {@link #getInputStream()}. Content stored as it is in the bucket, in an object of its own or
+     * packed in a segment, is read from {@code offset} on, fetching only the bytes of the range. Staged, cached and
+     * compressed content is read from the start and the bytes before the range are discarded.
+     *
+     * @param offset the position of the first byte to read
+     * @param length the most bytes to read; the range ends early at the end of the content
+     */
+    InputStream getInputStream(final long offset, final long length) {
+      ContentRanges.checkRange(offset, length);
+      final long start = System.nanoTime();
+      final BlobMetrics metrics = getMetrics();
+      checkState(metrics != null, "Blob %s has no metrics", getId());
+      final String encoding = contentEncoding;
+      final long rangeLength = Math.max(0, Math.min(length, metrics.getContentSize() - offset));
+      boolean successful = false;
+      try {
+        if (rangeLength == 0) {
+          successful = true;
+          return new ByteArrayInputStream(new byte[0]);
+        }
+        InputStream staged = openStaged();
+        if (staged != null) {
+          successful = true;
+          return ContentRanges.slice(staged, offset, rangeLength);
+        }
+        if (smallContentCache != null && metrics.getSha1Hash() != null &&
+            metrics.getContentSize() <= smallContentCache.getMaxBlobBytes()) {
+          byte[] content = getSmallContent(metrics.getSha1Hash(), encoding);
+          successful = true;
+          return ContentRanges.slice(new ByteArrayInputStream(content), offset, rangeLength);
+        }
+        if (contentCache != null && metrics.getSha1Hash() != null) {
+          InputStream cached = contentCache.get(getId(), metrics.getSha1Hash());
+          if (cached != null) {
+            successful = true;
+            return ContentRanges.slice(cached, offset, rangeLength);
+          }
+        }
+        InputStream range;
+        PackedBlobIndex.Location packed = packedLocation();
+        if (packed != null) {
+          range = callMetrics.meterBytesIn(packer.open(
+              new PackedBlobIndex.Location(packed.getSegment(), packed.getOffset() + offset, (int) rangeLength)));
+        }
+        else if (encoding != null) {
+          // deflated content cannot be read from the middle
+          range = ContentRanges.slice(
+              ContentCompression.decompress(callMetrics.meterBytesIn(openContent()), encoding), offset, rangeLength);
+        }
+        else {
+          range = callMetrics.meterBytesIn(ContentRanges.open(getBlob().reader(), offset, rangeLength, readChunkSize));
+        }
+        successful = true;
+        return range;
+      }
+      catch (IOException e) {
+        throw new BlobStoreException(e, getId());
+      }
+      finally {
+        recordOperation("download", OperationType.DOWNLOAD, start, successful ? rangeLength : 0, successful);
+      }
+    }
+
+    /**
+     * @return the staged content of the blob, or null if it is not staged
+     */
+    @Nullable
+    private InputStream openStaged() {
+      WriteBackStaging.StagedBlob staged = staging != null ? staging.get(getId()) : null;
+      try {
+        // null if it was uploaded meanwhile
+        return staged != null ? staging.open(staged) : null;
+      }
+      catch (IOException e) {
+        throw new BlobStoreException(e, getId());
+      }
+    }
+
+    /**
+     * @return the content of a small blob, from the small content cache or else in a single call to the bucket
+     */
+    private byte[] getSmallContent(final String sha1, @Nullable final String encoding) {
+      byte[] content = smallContentCache.get(getId(), sha1);
+      if (content == null) {
+        PackedBlobIndex.Location packed = packedLocation();
+        byte[] stored = packed != null ? readPacked(packed) : callMetrics.time("read", this::readAllBytes);
+        callMetrics.bytesIn(stored.length);
+        try {
+          content = ContentCompression.decompress(stored, encoding);
+        }
+        catch (IOException e) {
+          throw new BlobStoreException("Unable to decompress blob content", e, getId());
+        }
+        if (Hashing.sha1().hashBytes(content).toString().equals(sha1)) {
+          smallContentCache.put(getId(), sha1, content, content.length);
+        }
+        else {
+          log.debug("Not caching content of {}, it does not match the SHA-1 in its attributes", getId());
+        }
+      }
+      return content;
+    }
+
+    /**
+     * @return the content from its segment if it is packed, otherwise from its own object
+     */
+    private InputStream openContent() {
+      PackedBlobIndex.Location packed = packedLocation();
+      if (packed != null) {
+        try {
+          return packer.open(packed);
+        }
+        catch (IOException e) {
+          throw new BlobStoreException(e, getId());
+        }
+      }
+      return Channels.newInputStream(openReader());
+    }
+
+    /**
+     * @return a channel over the object holding the content, fetching {@link #READ_CHUNK_SIZE_PROPERTY} bytes per call
+     */
+    private ReadChannel openReader() {
+      ReadChannel channel = getBlob().reader();
+      if (readChunkSize > 0) {
+        channel.setChunkSize(readChunkSize);
+      }
+      return channel;
+    }
+
+    private byte[] readAllBytes() {
+      return storage.readAllBytes(com.google.cloud.storage.BlobId.of(getConfiguredBucketName(), storedContentPath()));
+    }
+
+    private byte[] readPacked(final PackedBlobIndex.Location location) {
+      try {
+        return packer.read(location);
+      }
+      catch (IOException e) {
+        throw new BlobStoreException(e, getId());
+      }
     }
 
     com.google.cloud.storage.Blob getBlob() {
-      return bucket.get(contentPath(getId()), BlobGetOption.fields(BlobField.MEDIA_LINK));
+      String path = storedContentPath();
+      return callMetrics.time("get", () -> bucket.get(path, BlobGetOption.fields(BlobField.MEDIA_LINK)));
     }
   }
 
+  /**
+   * The write of the attributes file for a blob being created. If started early (once the content has been
+   * committed, see {@link #PIPELINED_WRITES_PROPERTY}) the write runs on the blob store executor, overlapping with
+   * the rest of the upload; otherwise it is written on the calling thread when awaited.
+   */
+  private class PendingAttributes
+  {
+    private final String attributePath;
+
+    private final Map<String, String> headers;
+
+    @Nullable
+    private final String contentEncoding;
+
+    private Future<BlobMetrics> write;
+
+    PendingAttributes(final String attributePath,
+                      final Map<String, String> headers,
+                      @Nullable final String contentEncoding)
+    {
+      this.attributePath = attributePath;
+      this.headers = headers;
+      this.contentEncoding = contentEncoding;
+    }
+
+    synchronized void start(final StreamMetrics streamMetrics) {
+      if (write == null) {
+        log.debug("Content committed, writing attributes to {} ahead of upload completion", attributePath);
+        write = executorService.submit(() -> store(streamMetrics));
+      }
+    }
+
+    /**
+     * Give up on a create that failed. A write already started is waited for, whatever its outcome, so the cleanup
+     * of the failed create cannot run before the attributes file lands and leave it behind.
+     *
+     * @return true if the write had been started
+     */
+    boolean abandon() {
+      final Future<BlobMetrics> started;
+      synchronized (this) {
+        started = write;
+        if (started == null) {
+          // a late start must not write attributes for the failed create
+          write = Futures.immediateCancelledFuture();
+          return false;
+        }
+      }
+      try {
+        started.get();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      catch (ExecutionException e) {
+        log.debug("Abandoned attributes write to {} failed", attributePath, e);
+      }
+      return true;
+    }
+
+    BlobMetrics await(final StreamMetrics streamMetrics) throws IOException {
+      final Future<BlobMetrics> started;
+      synchronized (this) {
+        if (write == null) {
+          return store(streamMetrics);
+        }
+        started = write;
+      }
+      try {
+        return started.get();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted waiting for attributes write to " + attributePath, e);
+      }
+      catch (ExecutionException e) {
+        Throwables.propagateIfPossible(e.getCause(), IOException.class);
+        throw new IOException(e.getCause());
+      }
+    }
+
+    private BlobMetrics store(final StreamMetrics streamMetrics) throws IOException {
+      BlobMetrics metrics = new BlobMetrics(new DateTime(), streamMetrics.getSha1(), streamMetrics.getSize());
+      GoogleCloudBlobAttributes attributes = new GoogleCloudBlobAttributes(propertiesFile(attributePath), headers,
+          metrics);
+      attributes.setContentEncoding(contentEncoding);
+      attributes.store();
+      return metrics;
+    }
+  }
+
+  /**
+   * An attribute file load, tagged with the {@link GoogleCloudStorageBlob#version()} it started from.
+   */
+  private static class AttributesLoad
+      extends CompletableFuture<GoogleCloudBlobAttributes>
+  {
+    private final long version;
+
+    AttributesLoad(final long version) {
+      this.version = version;
+    }
+
+    @Nullable
+    GoogleCloudBlobAttributes await(final BlobId blobId) {
+      try {
+        return get();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new BlobStoreException("Interrupted waiting for attributes", e, blobId);
+      }
+      catch (ExecutionException e) {
+        Throwables.throwIfUnchecked(e.getCause());
+        throw new BlobStoreException(e.getCause(), blobId);
+      }
+    }
+  }
+
+  private interface ContentWriter
+  {
+    /**
+     * @param destination the bucket-relative path to write content to
+     */
+    void writeTo(String destination) throws IOException;
+  }
+
   private interface BlobIngester
   {
-    StreamMetrics ingestTo(final String destination) throws IOException;
+    /**
+     * @param destination        the bucket-relative path to write content to
+     * @param onContentCommitted may be called with the content metrics once the content has been committed to
+     *                           {@code destination}, before the upload has returned
+     */
+    StreamMetrics ingestTo(final String destination, final Consumer<StreamMetrics> onContentCommitted)
+        throws IOException;
   }
 }
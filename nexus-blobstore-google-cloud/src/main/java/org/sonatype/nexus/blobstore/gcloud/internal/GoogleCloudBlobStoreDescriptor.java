@@ -14,6 +14,7 @@ package org.sonatype.nexus.blobstore.gcloud.internal;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.zip.Deflater;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -22,7 +23,9 @@ import org.sonatype.goodies.i18n.I18N;
 import org.sonatype.goodies.i18n.MessageBundle;
 import org.sonatype.nexus.blobstore.BlobStoreDescriptorSupport;
 import org.sonatype.nexus.blobstore.quota.BlobStoreQuotaService;
+import org.sonatype.nexus.formfields.CheckboxFormField;
 import org.sonatype.nexus.formfields.FormField;
+import org.sonatype.nexus.formfields.NumberTextFormField;
 import org.sonatype.nexus.formfields.StringTextFormField;
 
 @Named(GoogleCloudBlobStore.TYPE)
@@ -52,11 +55,39 @@ public class GoogleCloudBlobStoreDescriptor
 
     @DefaultMessage("Absolute path to Google Application Credentials JSON file")
     String credentialHelp();
+
+    @DefaultMessage("Deduplication")
+    String deduplicationName();
+
+    @DefaultMessage("Store the content of new blobs once per SHA-1, shared by all blobs with the same content")
+    String deduplicationHelp();
+
+    @DefaultMessage("Compression")
+    String compressionName();
+
+    @DefaultMessage("Deflate the content of new text blobs in the bucket, decompressing it transparently on read")
+    String compressionHelp();
+
+    @DefaultMessage("Compression Level")
+    String compressionLevelName();
+
+    @DefaultMessage("From 1 (fastest) to 9 (smallest); defaults to 6")
+    String compressionLevelHelp();
+
+    @DefaultMessage("Compressed Types")
+    String compressionAllowListName();
+
+    @DefaultMessage("Comma separated content types (text/* matches every subtype) and extensions, such as .pom")
+    String compressionAllowListHelp();
   }
 
   private final FormField bucket;
   private final FormField location;
   private final FormField credentialFile;
+  private final FormField deduplication;
+  private final FormField compression;
+  private final FormField compressionLevel;
+  private final FormField compressionAllowList;
 
   private static final Messages messages = I18N.create(Messages.class);
 
@@ -83,6 +114,34 @@ public class GoogleCloudBlobStoreDescriptor
         messages.credentialHelp(),
         FormField.OPTIONAL
     );
+
+    deduplication = new CheckboxFormField(
+        GoogleCloudBlobStore.DEDUPLICATION_KEY,
+        messages.deduplicationName(),
+        messages.deduplicationHelp(),
+        FormField.OPTIONAL
+    );
+
+    compression = new CheckboxFormField(
+        GoogleCloudBlobStore.COMPRESSION_KEY,
+        messages.compressionName(),
+        messages.compressionHelp(),
+        FormField.OPTIONAL
+    );
+
+    compressionLevel = new NumberTextFormField(
+        GoogleCloudBlobStore.COMPRESSION_LEVEL_KEY,
+        messages.compressionLevelName(),
+        messages.compressionLevelHelp(),
+        FormField.OPTIONAL
+    ).withMinimumValue(Deflater.BEST_SPEED).withMaximumValue(Deflater.BEST_COMPRESSION);
+
+    compressionAllowList = new StringTextFormField(
+        GoogleCloudBlobStore.COMPRESSION_ALLOW_LIST_KEY,
+        messages.compressionAllowListName(),
+        messages.compressionAllowListHelp(),
+        FormField.OPTIONAL
+    );
   }
 
   @Override
@@ -97,6 +156,7 @@ public class GoogleCloudBlobStoreDescriptor
 
   @Override
   public List<FormField> getFormFields() {
-    return Arrays.asList(bucket, location, credentialFile);
+    return Arrays.asList(bucket, location, credentialFile, deduplication, compression, compressionLevel,
+        compressionAllowList);
   }
 }
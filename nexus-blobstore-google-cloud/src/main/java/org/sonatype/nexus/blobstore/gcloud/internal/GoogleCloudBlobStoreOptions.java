@@ -0,0 +1,470 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.BULK_LOOKUP_CONCURRENCY_PROPERTY;
+import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.COMPRESSION_ALLOW_LIST_PROPERTY;
+import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.COMPRESSION_ENABLED_PROPERTY;
+import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.COMPRESSION_LEVEL_PROPERTY;
+import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.CONTENT_CACHE_DIRECTORY_PROPERTY;
+import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.CONTENT_CACHE_SIZE_PROPERTY;
+import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.COPY_CHUNK_SIZE_PROPERTY;
+import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.DEDUPLICATION_PROPERTY;
+import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.DEFAULT_COMPRESSION_ALLOW_LIST;
+import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.FILE_VERIFY_HASH_PROPERTY;
+import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.METADATA_PROBE_INTERVAL_PROPERTY;
+import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.PACKING_LINGER_PROPERTY;
+import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.PACKING_MAX_BLOB_PROPERTY;
+import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.PACKING_SEGMENT_SIZE_PROPERTY;
+import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.PIPELINED_WRITES_PROPERTY;
+import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.READ_CHUNK_SIZE_PROPERTY;
+import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.SIGNED_URLS_CACHE_SIZE_PROPERTY;
+import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.SIGNED_URLS_ENABLED_PROPERTY;
+import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.SIGNED_URLS_EXPIRY_PROPERTY;
+import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.SMALL_CONTENT_CACHE_MAX_BLOB_PROPERTY;
+import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.SMALL_CONTENT_CACHE_SIZE_PROPERTY;
+import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.STAGING_DIRECTORY_PROPERTY;
+import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.STAGING_ENABLED_PROPERTY;
+import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.STAGING_FLUSH_THREADS_PROPERTY;
+
+/**
+ * The tuning settings of {@link GoogleCloudBlobStore}, read once from 'nexus.properties'. See the
+ * {@code ..._PROPERTY} constants of {@link GoogleCloudBlobStore} for what each setting does.
+ */
+@Named
+@Singleton
+public class GoogleCloudBlobStoreOptions
+{
+  private final int readChunkSize;
+
+  private final boolean pipelinedWrites;
+
+  private final boolean verifyIntegrity;
+
+  private final int copyMegabytesPerCall;
+
+  private final int metadataProbeIntervalHours;
+
+  private final int bulkLookupConcurrency;
+
+  private final int contentCacheMegabytes;
+
+  @Nullable
+  private final String contentCacheDirectory;
+
+  private final int smallContentCacheMegabytes;
+
+  private final int smallContentCacheMaxBlobBytes;
+
+  private final boolean stagingEnabled;
+
+  @Nullable
+  private final String stagingDirectory;
+
+  private final int stagingFlushThreads;
+
+  private final int packingMaxBlobBytes;
+
+  private final int packingSegmentMegabytes;
+
+  private final int packingLingerMillis;
+
+  private final boolean deduplicationEnabled;
+
+  private final boolean compressionEnabled;
+
+  private final int compressionLevel;
+
+  private final String compressionAllowList;
+
+  private final boolean signedUrlsEnabled;
+
+  private final int signedUrlExpirySeconds;
+
+  private final int signedUrlCacheSize;
+
+  private final boolean fileVerifyHash;
+
+  @Inject
+  public GoogleCloudBlobStoreOptions(
+      @Named("${" + READ_CHUNK_SIZE_PROPERTY + ":-0}")
+      final int readChunkSize,
+      @Named("${" + PIPELINED_WRITES_PROPERTY + ":-false}")
+      final boolean pipelinedWrites,
+      @Named("${" + MultipartUploader.INTEGRITY_CHECK_PROPERTY + ":-false}")
+      final boolean verifyIntegrity,
+      @Named("${" + COPY_CHUNK_SIZE_PROPERTY + ":-0}")
+      final int copyMegabytesPerCall,
+      @Named("${" + METADATA_PROBE_INTERVAL_PROPERTY + ":-24}")
+      final int metadataProbeIntervalHours,
+      @Named("${" + BULK_LOOKUP_CONCURRENCY_PROPERTY + ":-16}")
+      final int bulkLookupConcurrency,
+      @Named("${" + CONTENT_CACHE_SIZE_PROPERTY + ":-0}")
+      final int contentCacheMegabytes,
+      @Nullable @Named("${" + CONTENT_CACHE_DIRECTORY_PROPERTY + ":-}")
+      final String contentCacheDirectory,
+      @Named("${" + SMALL_CONTENT_CACHE_SIZE_PROPERTY + ":-0}")
+      final int smallContentCacheMegabytes,
+      @Named("${" + SMALL_CONTENT_CACHE_MAX_BLOB_PROPERTY + ":-8192}")
+      final int smallContentCacheMaxBlobBytes,
+      @Named("${" + STAGING_ENABLED_PROPERTY + ":-false}")
+      final boolean stagingEnabled,
+      @Nullable @Named("${" + STAGING_DIRECTORY_PROPERTY + ":-}")
+      final String stagingDirectory,
+      @Named("${" + STAGING_FLUSH_THREADS_PROPERTY + ":-4}")
+      final int stagingFlushThreads,
+      @Named("${" + PACKING_MAX_BLOB_PROPERTY + ":-0}")
+      final int packingMaxBlobBytes,
+      @Named("${" + PACKING_SEGMENT_SIZE_PROPERTY + ":-16}")
+      final int packingSegmentMegabytes,
+      @Named("${" + PACKING_LINGER_PROPERTY + ":-20}")
+      final int packingLingerMillis,
+      @Named("${" + DEDUPLICATION_PROPERTY + ":-false}")
+      final boolean deduplicationEnabled,
+      @Named("${" + COMPRESSION_ENABLED_PROPERTY + ":-false}")
+      final boolean compressionEnabled,
+      @Named("${" + COMPRESSION_LEVEL_PROPERTY + ":-6}")
+      final int compressionLevel,
+      @Named("${" + COMPRESSION_ALLOW_LIST_PROPERTY + ":-" + DEFAULT_COMPRESSION_ALLOW_LIST + "}")
+      final String compressionAllowList,
+      @Named("${" + SIGNED_URLS_ENABLED_PROPERTY + ":-false}")
+      final boolean signedUrlsEnabled,
+      @Named("${" + SIGNED_URLS_EXPIRY_PROPERTY + ":-900}")
+      final int signedUrlExpirySeconds,
+      @Named("${" + SIGNED_URLS_CACHE_SIZE_PROPERTY + ":-10000}")
+      final int signedUrlCacheSize,
+      @Named("${" + FILE_VERIFY_HASH_PROPERTY + ":-false}")
+      final boolean fileVerifyHash)
+  {
+    this.readChunkSize = readChunkSize;
+    this.pipelinedWrites = pipelinedWrites;
+    this.verifyIntegrity = verifyIntegrity;
+    this.copyMegabytesPerCall = copyMegabytesPerCall;
+    this.metadataProbeIntervalHours = metadataProbeIntervalHours;
+    this.bulkLookupConcurrency = bulkLookupConcurrency;
+    this.contentCacheMegabytes = contentCacheMegabytes;
+    this.contentCacheDirectory = contentCacheDirectory;
+    this.smallContentCacheMegabytes = smallContentCacheMegabytes;
+    this.smallContentCacheMaxBlobBytes = smallContentCacheMaxBlobBytes;
+    this.stagingEnabled = stagingEnabled;
+    this.stagingDirectory = stagingDirectory;
+    this.stagingFlushThreads = stagingFlushThreads;
+    this.packingMaxBlobBytes = packingMaxBlobBytes;
+    this.packingSegmentMegabytes = packingSegmentMegabytes;
+    this.packingLingerMillis = packingLingerMillis;
+    this.deduplicationEnabled = deduplicationEnabled;
+    this.compressionEnabled = compressionEnabled;
+    this.compressionLevel = compressionLevel;
+    this.compressionAllowList = compressionAllowList;
+    this.signedUrlsEnabled = signedUrlsEnabled;
+    this.signedUrlExpirySeconds = signedUrlExpirySeconds;
+    this.signedUrlCacheSize = signedUrlCacheSize;
+    this.fileVerifyHash = fileVerifyHash;
+  }
+
+  /**
+   * @return a builder of options for tests and benchmarks, which do not read 'nexus.properties'; settings that are
+   * not set keep their defaults
+   */
+  static Builder builder() {
+    return new Builder();
+  }
+
+  int getReadChunkSize() {
+    return readChunkSize;
+  }
+
+  boolean isPipelinedWrites() {
+    return pipelinedWrites;
+  }
+
+  boolean isVerifyIntegrity() {
+    return verifyIntegrity;
+  }
+
+  int getCopyMegabytesPerCall() {
+    return copyMegabytesPerCall;
+  }
+
+  int getMetadataProbeIntervalHours() {
+    return metadataProbeIntervalHours;
+  }
+
+  int getBulkLookupConcurrency() {
+    return bulkLookupConcurrency;
+  }
+
+  int getContentCacheMegabytes() {
+    return contentCacheMegabytes;
+  }
+
+  @Nullable
+  String getContentCacheDirectory() {
+    return contentCacheDirectory;
+  }
+
+  int getSmallContentCacheMegabytes() {
+    return smallContentCacheMegabytes;
+  }
+
+  int getSmallContentCacheMaxBlobBytes() {
+    return smallContentCacheMaxBlobBytes;
+  }
+
+  boolean isStagingEnabled() {
+    return stagingEnabled;
+  }
+
+  @Nullable
+  String getStagingDirectory() {
+    return stagingDirectory;
+  }
+
+  int getStagingFlushThreads() {
+    return stagingFlushThreads;
+  }
+
+  int getPackingMaxBlobBytes() {
+    return packingMaxBlobBytes;
+  }
+
+  int getPackingSegmentMegabytes() {
+    return packingSegmentMegabytes;
+  }
+
+  int getPackingLingerMillis() {
+    return packingLingerMillis;
+  }
+
+  boolean isDeduplicationEnabled() {
+    return deduplicationEnabled;
+  }
+
+  boolean isCompressionEnabled() {
+    return compressionEnabled;
+  }
+
+  int getCompressionLevel() {
+    return compressionLevel;
+  }
+
+  String getCompressionAllowList() {
+    return compressionAllowList;
+  }
+
+  boolean isSignedUrlsEnabled() {
+    return signedUrlsEnabled;
+  }
+
+  int getSignedUrlExpirySeconds() {
+    return signedUrlExpirySeconds;
+  }
+
+  int getSignedUrlCacheSize() {
+    return signedUrlCacheSize;
+  }
+
+  boolean isFileVerifyHash() {
+    return fileVerifyHash;
+  }
+
+  static class Builder
+  {
+    private int readChunkSize;
+
+    private boolean pipelinedWrites;
+
+    private boolean verifyIntegrity;
+
+    private int copyMegabytesPerCall;
+
+    private int metadataProbeIntervalHours = 24;
+
+    private int bulkLookupConcurrency = 16;
+
+    private int contentCacheMegabytes;
+
+    @Nullable
+    private String contentCacheDirectory;
+
+    private int smallContentCacheMegabytes;
+
+    private int smallContentCacheMaxBlobBytes = 8192;
+
+    private boolean stagingEnabled;
+
+    @Nullable
+    private String stagingDirectory;
+
+    private int stagingFlushThreads = 4;
+
+    private int packingMaxBlobBytes;
+
+    private int packingSegmentMegabytes = 16;
+
+    private int packingLingerMillis = 20;
+
+    private boolean deduplicationEnabled;
+
+    private boolean compressionEnabled;
+
+    private int compressionLevel = 6;
+
+    private String compressionAllowList = DEFAULT_COMPRESSION_ALLOW_LIST;
+
+    private boolean signedUrlsEnabled;
+
+    private int signedUrlExpirySeconds = 900;
+
+    private int signedUrlCacheSize = 10000;
+
+    private boolean fileVerifyHash;
+
+    private Builder() {
+    }
+
+    Builder withReadChunkSize(final int readChunkSize) {
+      this.readChunkSize = readChunkSize;
+      return this;
+    }
+
+    Builder withPipelinedWrites(final boolean pipelinedWrites) {
+      this.pipelinedWrites = pipelinedWrites;
+      return this;
+    }
+
+    Builder withVerifyIntegrity(final boolean verifyIntegrity) {
+      this.verifyIntegrity = verifyIntegrity;
+      return this;
+    }
+
+    Builder withCopyMegabytesPerCall(final int copyMegabytesPerCall) {
+      this.copyMegabytesPerCall = copyMegabytesPerCall;
+      return this;
+    }
+
+    Builder withMetadataProbeIntervalHours(final int metadataProbeIntervalHours) {
+      this.metadataProbeIntervalHours = metadataProbeIntervalHours;
+      return this;
+    }
+
+    Builder withBulkLookupConcurrency(final int bulkLookupConcurrency) {
+      this.bulkLookupConcurrency = bulkLookupConcurrency;
+      return this;
+    }
+
+    Builder withContentCacheMegabytes(final int contentCacheMegabytes) {
+      this.contentCacheMegabytes = contentCacheMegabytes;
+      return this;
+    }
+
+    Builder withContentCacheDirectory(@Nullable final String contentCacheDirectory) {
+      this.contentCacheDirectory = contentCacheDirectory;
+      return this;
+    }
+
+    Builder withSmallContentCacheMegabytes(final int smallContentCacheMegabytes) {
+      this.smallContentCacheMegabytes = smallContentCacheMegabytes;
+      return this;
+    }
+
+    Builder withSmallContentCacheMaxBlobBytes(final int smallContentCacheMaxBlobBytes) {
+      this.smallContentCacheMaxBlobBytes = smallContentCacheMaxBlobBytes;
+      return this;
+    }
+
+    Builder withStagingEnabled(final boolean stagingEnabled) {
+      this.stagingEnabled = stagingEnabled;
+      return this;
+    }
+
+    Builder withStagingDirectory(@Nullable final String stagingDirectory) {
+      this.stagingDirectory = stagingDirectory;
+      return this;
+    }
+
+    Builder withStagingFlushThreads(final int stagingFlushThreads) {
+      this.stagingFlushThreads = stagingFlushThreads;
+      return this;
+    }
+
+    Builder withPackingMaxBlobBytes(final int packingMaxBlobBytes) {
+      this.packingMaxBlobBytes = packingMaxBlobBytes;
+      return this;
+    }
+
+    Builder withPackingSegmentMegabytes(final int packingSegmentMegabytes) {
+      this.packingSegmentMegabytes = packingSegmentMegabytes;
+      return this;
+    }
+
+    Builder withPackingLingerMillis(final int packingLingerMillis) {
+      this.packingLingerMillis = packingLingerMillis;
+      return this;
+    }
+
+    Builder withDeduplicationEnabled(final boolean deduplicationEnabled) {
+      this.deduplicationEnabled = deduplicationEnabled;
+      return this;
+    }
+
+    Builder withCompressionEnabled(final boolean compressionEnabled) {
+      this.compressionEnabled = compressionEnabled;
+      return this;
+    }
+
+    Builder withCompressionLevel(final int compressionLevel) {
+      this.compressionLevel = compressionLevel;
+      return this;
+    }
+
+    Builder withCompressionAllowList(final String compressionAllowList) {
+      this.compressionAllowList = compressionAllowList;
+      return this;
+    }
+
+    Builder withSignedUrlsEnabled(final boolean signedUrlsEnabled) {
+      this.signedUrlsEnabled = signedUrlsEnabled;
+      return this;
+    }
+
+    Builder withSignedUrlExpirySeconds(final int signedUrlExpirySeconds) {
+      this.signedUrlExpirySeconds = signedUrlExpirySeconds;
+      return this;
+    }
+
+    Builder withSignedUrlCacheSize(final int signedUrlCacheSize) {
+      this.signedUrlCacheSize = signedUrlCacheSize;
+      return this;
+    }
+
+    Builder withFileVerifyHash(final boolean fileVerifyHash) {
+      this.fileVerifyHash = fileVerifyHash;
+      return this;
+    }
+
+    GoogleCloudBlobStoreOptions build() {
+      return new GoogleCloudBlobStoreOptions(readChunkSize, pipelinedWrites, verifyIntegrity, copyMegabytesPerCall,
+          metadataProbeIntervalHours, bulkLookupConcurrency, contentCacheMegabytes, contentCacheDirectory,
+          smallContentCacheMegabytes, smallContentCacheMaxBlobBytes, stagingEnabled, stagingDirectory,
+          stagingFlushThreads, packingMaxBlobBytes, packingSegmentMegabytes, packingLingerMillis, deduplicationEnabled,
+          compressionEnabled, compressionLevel, compressionAllowList, signedUrlsEnabled, signedUrlExpirySeconds,
+          signedUrlCacheSize, fileVerifyHash);
+    }
+  }
+}
@@ -0,0 +1,238 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import javax.annotation.Nullable;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.cloud.BaseServiceException;
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Transaction;
+import com.google.cloud.storage.Storage;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableSet;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Records latency, error status codes and bytes transferred for the Google Cloud Storage and Datastore calls made on
+ * behalf of one blob store.
+ *
+ * Each API method gets a {@link Timer} named '&lt;prefix&gt;.&lt;method&gt;' (for example 'prefix.get',
+ * 'prefix.compose', 'prefix.run', 'prefix.transaction.commit'). Failed calls also increment a counter named
+ * '&lt;prefix&gt;.&lt;method&gt;.errors.&lt;status code&gt;'. Bytes are metered as '&lt;prefix&gt;.bytesIn' and
+ * '&lt;prefix&gt;.bytesOut'.
+ */
+class GoogleCloudCallMetrics
+{
+  /**
+   * {@link Storage} methods that do not call the service, or whose calls happen later through a channel.
+   */
+  private static final Set<String> LOCAL_STORAGE_METHODS = ImmutableSet.of("getOptions", "batch", "reader", "signUrl");
+
+  private static final Set<String> LOCAL_DATASTORE_METHODS = ImmutableSet.of("getOptions", "newKeyFactory", "newBatch");
+
+  /**
+   * Only these {@link Transaction} methods call the service; writes are buffered until commit.
+   */
+  private static final Set<String> REMOTE_TRANSACTION_METHODS = ImmutableSet.of("commit", "rollback", "get", "fetch",
+      "run");
+
+  private static final GoogleCloudCallMetrics DISABLED = new GoogleCloudCallMetrics(null, null);
+
+  @Nullable
+  private final MetricRegistry metricRegistry;
+
+  private final String prefix;
+
+  private final Meter bytesIn;
+
+  private final Meter bytesOut;
+
+  /**
+   * @param metricRegistry the registry to report to
+   * @param prefix         prefix for all metric names
+   */
+  GoogleCloudCallMetrics(@Nullable final MetricRegistry metricRegistry, @Nullable final String prefix) {
+    this.metricRegistry = metricRegistry;
+    this.prefix = prefix;
+    this.bytesIn = metricRegistry != null ? metricRegistry.meter(prefix + ".bytesIn") : null;
+    this.bytesOut = metricRegistry != null ? metricRegistry.meter(prefix + ".bytesOut") : null;
+  }
+
+  /**
+   * @return an instance that records nothing
+   */
+  static GoogleCloudCallMetrics disabled() {
+    return DISABLED;
+  }
+
+  /**
+   * Time a call to the named API method, counting failures by status code.
+   */
+  <T> T time(final String method, final Supplier<T> call) {
+    if (metricRegistry == null) {
+      return call.get();
+    }
+    Timer.Context context = metricRegistry.timer(prefix + "." + method).time();
+    try {
+      return call.get();
+    }
+    catch (BaseServiceException e) {
+      metricRegistry.counter(prefix + "." + method + ".errors." + e.getCode()).inc();
+      throw e;
+    }
+    finally {
+      context.stop();
+    }
+  }
+
+  void bytesIn(final long bytes) {
+    if (bytesIn != null) {
+      bytesIn.mark(bytes);
+    }
+  }
+
+  void bytesOut(final long bytes) {
+    if (bytesOut != null) {
+      bytesOut.mark(bytes);
+    }
+  }
+
+  /**
+   * @return a stream that meters the bytes read from {@code content} as bytes in
+   */
+  InputStream meterBytesIn(final InputStream content) {
+    if (bytesIn == null) {
+      return content;
+    }
+    return new FilterInputStream(content)
+    {
+      @Override
+      public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+          bytesIn.mark();
+        }
+        return b;
+      }
+
+      @Override
+      public int read(final byte[] b, final int off, final int len) throws IOException {
+        int read = super.read(b, off, len);
+        if (read > 0) {
+          bytesIn.mark(read);
+        }
+        return read;
+      }
+    };
+  }
+
+  /**
+   * Channel variant of {@link #meterBytesIn(InputStream)}.
+   */
+  ReadableByteChannel meterBytesIn(final ReadableByteChannel content) {
+    if (bytesIn == null) {
+      return content;
+    }
+    return new ReadableByteChannel()
+    {
+      @Override
+      public int read(final ByteBuffer dst) throws IOException {
+        int read = content.read(dst);
+        if (read > 0) {
+          bytesIn.mark(read);
+        }
+        return read;
+      }
+
+      @Override
+      public boolean isOpen() {
+        return content.isOpen();
+      }
+
+      @Override
+      public void close() throws IOException {
+        content.close();
+      }
+    };
+  }
+
+  /**
+   * @return a {@link Storage} that times every call it makes to Google Cloud Storage
+   */
+  Storage instrument(final Storage storage) {
+    if (metricRegistry == null) {
+      return storage;
+    }
+    return proxy(Storage.class, checkNotNull(storage), "", LOCAL_STORAGE_METHODS::contains);
+  }
+
+  /**
+   * @return a {@link Datastore} that times every call it makes to Datastore, including calls on its transactions
+   */
+  Datastore instrument(final Datastore datastore) {
+    if (metricRegistry == null) {
+      return datastore;
+    }
+    return proxy(Datastore.class, checkNotNull(datastore), "", LOCAL_DATASTORE_METHODS::contains);
+  }
+
+  private <T> T proxy(final Class<T> type,
+                      final T delegate,
+                      final String methodPrefix,
+                      final Predicate<String> isLocal)
+  {
+    InvocationHandler handler = (proxy, method, args) -> {
+      if (method.getDeclaringClass() == Object.class || isLocal.test(method.getName())) {
+        return invoke(delegate, method, args);
+      }
+      Object result = time(methodPrefix + method.getName(), () -> invoke(delegate, method, args));
+      if (result instanceof Transaction) {
+        return proxy(Transaction.class, (Transaction) result, "transaction.",
+            name -> !REMOTE_TRANSACTION_METHODS.contains(name));
+      }
+      return result;
+    };
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler));
+  }
+
+  private static Object invoke(final Object delegate, final Method method, final Object[] args) {
+    try {
+      return method.invoke(delegate, args);
+    }
+    catch (InvocationTargetException e) {
+      // Storage and Datastore methods do not declare checked exceptions
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IllegalStateException(e.getCause());
+    }
+    catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -13,25 +13,61 @@
 package org.sonatype.nexus.blobstore.gcloud.internal;
 
 import java.io.FileInputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
 
+import javax.inject.Inject;
 import javax.inject.Named;
+import javax.inject.Singleton;
 
 import org.sonatype.nexus.blobstore.api.BlobStoreConfiguration;
 
 import com.google.auth.oauth2.ServiceAccountCredentials;
+import com.google.cloud.TransportOptions;
 import com.google.cloud.datastore.Datastore;
 import com.google.cloud.datastore.DatastoreOptions;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import org.apache.http.client.HttpClient;
 import org.apache.shiro.util.StringUtils;
 
 import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.CONFIG_KEY;
 import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.CREDENTIAL_FILE_PATH_KEY;
 
+/**
+ * Creates {@link Datastore} clients for Google Cloud blob stores.
+ *
+ * Blob stores obtain their client via {@link #acquire(BlobStoreConfiguration)}, which shares a single client (and
+ * its HTTP connection pool) between every blob store configured with the same credentials. Clients are reference
+ * counted and shut down once the last holder calls {@link #release(Datastore)}.
+ */
 @Named
+@Singleton
 public class GoogleCloudDatastoreFactory extends AbstractGoogleClientFactory
 {
+  private final Map<String, SharedDatastore> sharedClients = new HashMap<>();
+
+  public GoogleCloudDatastoreFactory() {
+    super();
+  }
+
+  @Inject
+  public GoogleCloudDatastoreFactory(final RetryPolicy retryPolicy) {
+    super(DEFAULT_SOCKET_BUFFER_SIZE, DEFAULT_MAX_CONNECTIONS, retryPolicy);
+  }
 
   Datastore create(final BlobStoreConfiguration configuration) throws Exception {
-    DatastoreOptions.Builder builder = DatastoreOptions.newBuilder().setTransportOptions(transportOptions());
+    return create(configuration, transportOptions());
+  }
+
+  Datastore create(final BlobStoreConfiguration configuration, final TransportOptions transportOptions)
+      throws Exception
+  {
+    DatastoreOptions.Builder builder = DatastoreOptions.newBuilder()
+        .setTransportOptions(transportOptions)
+        .setRetrySettings(retrySettings());
 
     String credentialFile = configuration.attributes(CONFIG_KEY).get(CREDENTIAL_FILE_PATH_KEY, String.class);
     if (StringUtils.hasText(credentialFile)) {
@@ -43,4 +79,79 @@ public class GoogleCloudDatastoreFactory extends AbstractGoogleClientFactory
 
     return builder.build().getService();
   }
+
+  /**
+   * @param configuration the blob store configuration
+   * @return a {@link Datastore} client shared by all blob stores using the same credentials; must be returned with
+   * {@link #release(Datastore)} when no longer needed
+   */
+  synchronized Datastore acquire(final BlobStoreConfiguration configuration) throws Exception {
+    String key = clientKey(configuration);
+    SharedDatastore shared = sharedClients.get(key);
+    if (shared == null) {
+      HttpClient httpClient = newHttpClient();
+      try {
+        shared = new SharedDatastore(create(configuration, transportOptions(httpClient)), httpClient);
+      }
+      catch (Exception e) {
+        httpClient.getConnectionManager().shutdown();
+        throw e;
+      }
+      sharedClients.put(key, shared);
+      logger.debug("created shared Google Datastore client for credentials {}", key);
+    }
+    shared.references++;
+    logger.debug("acquired shared Google Datastore client for credentials {}, {} references", key, shared.references);
+    return shared.datastore;
+  }
+
+  /**
+   * Returns a client obtained from {@link #acquire(BlobStoreConfiguration)}. The client is shut down when it is no
+   * longer referenced by any blob store.
+   */
+  synchronized void release(final Datastore datastore) {
+    Iterator<Entry<String, SharedDatastore>> iterator = sharedClients.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Entry<String, SharedDatastore> entry = iterator.next();
+      SharedDatastore shared = entry.getValue();
+      if (shared.datastore == datastore) {
+        shared.references--;
+        logger.debug("released shared Google Datastore client for credentials {}, {} references", entry.getKey(),
+            shared.references);
+        if (shared.references <= 0) {
+          iterator.remove();
+          shared.httpClient.getConnectionManager().shutdown();
+          logger.debug("shut down shared Google Datastore client for credentials {}", entry.getKey());
+        }
+        return;
+      }
+    }
+    logger.warn("attempt to release unknown Google Datastore client {}", datastore);
+  }
+
+  @VisibleForTesting
+  synchronized int getSharedClientCount() {
+    return sharedClients.size();
+  }
+
+  /**
+   * Clients only differ by the credentials they are built with.
+   */
+  private String clientKey(final BlobStoreConfiguration configuration) {
+    return Strings.nullToEmpty(configuration.attributes(CONFIG_KEY).get(CREDENTIAL_FILE_PATH_KEY, String.class));
+  }
+
+  private static class SharedDatastore
+  {
+    private final Datastore datastore;
+
+    private final HttpClient httpClient;
+
+    private int references;
+
+    SharedDatastore(final Datastore datastore, final HttpClient httpClient) {
+      this.datastore = datastore;
+      this.httpClient = httpClient;
+    }
+  }
 }
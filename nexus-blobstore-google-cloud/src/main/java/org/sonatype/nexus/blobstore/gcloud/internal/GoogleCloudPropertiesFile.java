@@ -41,18 +41,25 @@ public class GoogleCloudPropertiesFile
 
   private final String key;
 
+  private final GoogleCloudCallMetrics callMetrics;
+
   public GoogleCloudPropertiesFile(final Bucket bucket, final String key) {
+    this(bucket, key, GoogleCloudCallMetrics.disabled());
+  }
+
+  GoogleCloudPropertiesFile(final Bucket bucket, final String key, final GoogleCloudCallMetrics callMetrics) {
     this.bucket = checkNotNull(bucket);
     this.key = checkNotNull(key);
+    this.callMetrics = checkNotNull(callMetrics);
   }
 
   @Override
   public void load() throws IOException {
     log.debug("Loading properties: {}", key);
 
-    Blob blob = bucket.get(key, BlobGetOption.fields(BlobField.MEDIA_LINK));
+    Blob blob = callMetrics.time("get", () -> bucket.get(key, BlobGetOption.fields(BlobField.MEDIA_LINK)));
     try (ReadChannel channel = blob.reader()) {
-      load(Channels.newInputStream(channel));
+      load(callMetrics.meterBytesIn(Channels.newInputStream(channel)));
     }
   }
 
@@ -66,18 +73,19 @@ public class GoogleCloudPropertiesFile
     byte[] buffer = bufferStream.toByteArray();
 
     // upload the buffer to the bucket
-    bucket.create(key, buffer);
+    callMetrics.time("create", () -> bucket.create(key, buffer));
+    callMetrics.bytesOut(buffer.length);
   }
 
   @Override
   public boolean exists() throws IOException {
-    return bucket.get(key) != null;
+    return callMetrics.time("get", () -> bucket.get(key)) != null;
   }
 
   public void remove() throws IOException {
-    Blob blob = bucket.get(key);
+    Blob blob = callMetrics.time("get", () -> bucket.get(key));
     if (blob != null) {
-      blob.delete();
+      callMetrics.time("delete", () -> blob.delete());
     }
   }
 
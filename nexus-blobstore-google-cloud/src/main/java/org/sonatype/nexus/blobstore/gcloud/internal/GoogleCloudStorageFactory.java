@@ -14,6 +14,7 @@ package org.sonatype.nexus.blobstore.gcloud.internal;
 
 import java.io.FileInputStream;
 
+import javax.inject.Inject;
 import javax.inject.Named;
 
 import org.sonatype.nexus.blobstore.api.BlobStoreConfiguration;
@@ -29,9 +30,35 @@ import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.
 @Named
 public class GoogleCloudStorageFactory extends AbstractGoogleClientFactory
 {
+  /**
+   * Use this property in 'nexus.properties' to control the size (in bytes) of the HTTP session buffers used for
+   * Google Cloud Storage traffic. Default is 8 KB; larger values reduce per-read overhead for large downloads.
+   */
+  public static final String SOCKET_BUFFER_SIZE_PROPERTY = "nexus.gcs.http.socketBufferSize";
+
+  /**
+   * Use this property in 'nexus.properties' to control the maximum number of pooled HTTP connections used for
+   * Google Cloud Storage traffic. Default is 200.
+   */
+  public static final String MAX_CONNECTIONS_PROPERTY = "nexus.gcs.http.maxConnections";
+
+  public GoogleCloudStorageFactory() {
+    super();
+  }
+
+  @Inject
+  public GoogleCloudStorageFactory(
+      @Named("${" + SOCKET_BUFFER_SIZE_PROPERTY + ":-8192}") final int socketBufferSize,
+      @Named("${" + MAX_CONNECTIONS_PROPERTY + ":-200}") final int maxConnections,
+      final RetryPolicy retryPolicy)
+  {
+    super(socketBufferSize, maxConnections, retryPolicy);
+  }
 
   Storage create(final BlobStoreConfiguration configuration) throws Exception {
-    StorageOptions.Builder builder = StorageOptions.newBuilder().setTransportOptions(transportOptions());
+    StorageOptions.Builder builder = StorageOptions.newBuilder()
+        .setTransportOptions(transportOptions())
+        .setRetrySettings(retrySettings());
 
     String credentialFile = configuration.attributes(CONFIG_KEY).get(CREDENTIAL_FILE_PATH_KEY, String.class);
     if (StringUtils.hasText(credentialFile)) {
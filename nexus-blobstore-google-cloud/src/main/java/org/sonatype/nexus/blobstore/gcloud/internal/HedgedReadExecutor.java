@@ -0,0 +1,277 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.sonatype.nexus.common.app.ManagedLifecycle;
+import org.sonatype.nexus.common.app.ManagedLifecycle.Phase;
+import org.sonatype.nexus.common.stateguard.StateGuardLifecycleSupport;
+import org.sonatype.nexus.thread.NexusThreadFactory;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Component that issues hedged requests for small reads from Google Cloud Storage (blob attribute files).
+ *
+ * When enabled, each read is started on a worker thread. If it has not answered within the observed latency
+ * percentile (p95 by default), a duplicate request is issued and whichever answers first wins. This trades a few
+ * percent of extra GETs for a much shorter tail latency. Disabled by default.
+ *
+ * Latency is tracked per blob store, see {@link #newLatency(String)}. Inspect the '/service/metrics/data' endpoint,
+ * specifically the timers named after each blob store and the
+ * <pre>.meters["org.sonatype.nexus.blobstore.gcloud.internal.HedgedReadExecutor.hedges"]</pre> field.
+ */
+@Named
+@ManagedLifecycle(phase = Phase.STORAGE)
+@Singleton
+public class HedgedReadExecutor
+    extends StateGuardLifecycleSupport
+{
+  /**
+   * Use this property in 'nexus.properties' to enable hedged reads of blob attributes.
+   */
+  public static final String ENABLED_PROPERTY = "nexus.gcs.hedgedReads.enabled";
+
+  /**
+   * Use this property in 'nexus.properties' to choose the latency percentile after which a read is hedged.
+   * Default is 0.95.
+   */
+  public static final String PERCENTILE_PROPERTY = "nexus.gcs.hedgedReads.percentile";
+
+  /**
+   * Use this property in 'nexus.properties' to set the minimum delay in milliseconds before a read is hedged.
+   * This protects against hedging everything while the latency sample is small. Default is 20.
+   */
+  public static final String MINIMUM_DELAY_PROPERTY = "nexus.gcs.hedgedReads.minimumDelayMillis";
+
+  /**
+   * Number of samples between recomputations of the hedge delay; taking a snapshot copies and sorts the reservoir.
+   */
+  static final int RECOMPUTE_INTERVAL = 100;
+
+  private final MetricRegistry metricRegistry;
+
+  private final boolean enabled;
+
+  private final double percentile;
+
+  private final long minimumDelayNanos;
+
+  private final Meter hedges;
+
+  private final ExecutorService executorService;
+
+  private final ScheduledExecutorService scheduler;
+
+  @Inject
+  public HedgedReadExecutor(final MetricRegistry metricRegistry,
+                            @Named("${" + ENABLED_PROPERTY + ":-false}") final boolean enabled,
+                            @Named("${" + PERCENTILE_PROPERTY + ":-0.95}") final double percentile,
+                            @Named("${" + MINIMUM_DELAY_PROPERTY + ":-20}") final long minimumDelayMillis)
+  {
+    checkArgument(percentile > 0.0 && percentile < 1.0, PERCENTILE_PROPERTY + " must be between 0 and 1");
+    checkArgument(minimumDelayMillis >= 0, MINIMUM_DELAY_PROPERTY + " cannot be negative");
+    this.enabled = enabled;
+    this.percentile = percentile;
+    this.minimumDelayNanos = TimeUnit.MILLISECONDS.toNanos(minimumDelayMillis);
+    this.metricRegistry = metricRegistry;
+    this.hedges = metricRegistry.meter(MetricRegistry.name(HedgedReadExecutor.class, "hedges"));
+    if (enabled) {
+      this.executorService = Executors.newCachedThreadPool(
+          new NexusThreadFactory("hedged-read", "nexus-blobstore-google-cloud"));
+      this.scheduler = Executors.newSingleThreadScheduledExecutor(
+          new NexusThreadFactory("hedged-read-timer", "nexus-blobstore-google-cloud"));
+    }
+    else {
+      this.executorService = null;
+      this.scheduler = null;
+    }
+  }
+
+  /**
+   * @return a disabled instance, which runs every read once on the calling thread
+   */
+  static HedgedReadExecutor disabled(final MetricRegistry metricRegistry) {
+    return new HedgedReadExecutor(metricRegistry, false, 0.95, 20);
+  }
+
+  @Override
+  protected void doStart() {
+    if (enabled) {
+      log.info("hedged reads from Google Cloud Storage enabled at p{}", percentile * 100);
+    }
+  }
+
+  @Override
+  protected void doStop() {
+    if (enabled) {
+      scheduler.shutdownNow();
+      executorService.shutdownNow();
+    }
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @param name the name of the latency timer in the metric registry, unique to the caller
+   * @return a latency tracker for the reads of one caller, such as a blob store
+   */
+  public Latency newLatency(final String name) {
+    return new Latency(metricRegistry.timer(name));
+  }
+
+  /**
+   * Run a read, hedging it with a duplicate request when it is slower than the configured percentile.
+   *
+   * The read must be idempotent and must not share mutable state between invocations.
+   *
+   * @param latency the latency of the caller's reads, which this read is recorded in
+   * @param read    the read to perform
+   * @return the result of whichever attempt answered first
+   * @throws IOException if every attempt failed
+   */
+  @Nullable
+  public <T> T read(final Latency latency, final Callable<T> read) throws IOException {
+    if (!enabled) {
+      return timed(latency, read);
+    }
+
+    CompletableFuture<T> result = new CompletableFuture<>();
+    AtomicInteger outstanding = new AtomicInteger(1);
+    executorService.execute(() -> attempt(latency, read, result, outstanding));
+    ScheduledFuture<?> hedge = scheduler.schedule(() -> {
+      if (!result.isDone()) {
+        outstanding.incrementAndGet();
+        hedges.mark();
+        executorService.execute(() -> attempt(latency, read, result, outstanding));
+      }
+    }, latency.hedgeDelayNanos(), TimeUnit.NANOSECONDS);
+
+    try {
+      return result.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted waiting for read", e);
+    }
+    catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IOException(e.getCause());
+    }
+    finally {
+      hedge.cancel(false);
+    }
+  }
+
+  @VisibleForTesting
+  long getHedgeCount() {
+    return hedges.getCount();
+  }
+
+  private <T> void attempt(final Latency latency,
+                           final Callable<T> read,
+                           final CompletableFuture<T> result,
+                           final AtomicInteger outstanding)
+  {
+    if (result.isDone()) {
+      return;
+    }
+    try {
+      result.complete(timed(latency, read));
+    }
+    catch (Exception e) {
+      // only fail once no other attempt can still answer
+      if (outstanding.decrementAndGet() == 0) {
+        result.completeExceptionally(e);
+      }
+      else {
+        log.debug("hedged read attempt failed, waiting on remaining attempt", e);
+      }
+    }
+  }
+
+  private <T> T timed(final Latency latency, final Callable<T> read) throws IOException {
+    long start = System.nanoTime();
+    try {
+      return read.call();
+    }
+    catch (IOException | RuntimeException e) {
+      throw e;
+    }
+    catch (Exception e) {
+      throw new IOException(e);
+    }
+    finally {
+      latency.record(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Read latency of one caller. The hedge delay is kept in a field and recomputed from the timer every
+   * {@link #RECOMPUTE_INTERVAL} samples, so reads never take a snapshot of the timer themselves.
+   */
+  public final class Latency
+  {
+    private final Timer timer;
+
+    private final AtomicLong samples = new AtomicLong();
+
+    private volatile long percentileNanos;
+
+    private Latency(final Timer timer) {
+      this.timer = timer;
+    }
+
+    @VisibleForTesting
+    void record(final long nanos) {
+      timer.update(nanos, TimeUnit.NANOSECONDS);
+      // the first sample, and every interval after it
+      if (samples.getAndIncrement() % RECOMPUTE_INTERVAL == 0) {
+        percentileNanos = (long) timer.getSnapshot().getValue(percentile);
+      }
+    }
+
+    /**
+     * @return the delay after which an outstanding read is hedged, never less than the configured minimum
+     */
+    @VisibleForTesting
+    long hedgeDelayNanos() {
+      return Math.max(minimumDelayNanos, percentileNanos);
+    }
+  }
+}
@@ -14,10 +14,13 @@ package org.sonatype.nexus.blobstore.gcloud.internal;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 
@@ -43,6 +46,10 @@ import com.google.cloud.storage.Storage.BlobTargetOption;
 import com.google.cloud.storage.Storage.BlobWriteOption;
 import com.google.cloud.storage.Storage.ComposeRequest;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.MoreFiles;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
@@ -50,6 +57,7 @@ import com.google.common.util.concurrent.MoreExecutors;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static java.lang.String.format;
+import static java.nio.file.StandardOpenOption.READ;
 import static org.sonatype.nexus.common.stateguard.StateGuardLifecycleSupport.State.STARTED;
 
 /**
@@ -71,11 +79,25 @@ public class MultipartUploader
    */
   public static final String CHUNK_SIZE_PROPERTY = "nexus.gcs.multipartupload.chunksize";
 
+  /**
+   * Use this property in 'nexus.properties' to verify every upload against the CRC32C checksum Google Cloud Storage
+   * computes for the stored (or composed) object. The client-side checksum is computed while streaming, so no
+   * content is read back. Default is false. Mismatches are counted in the
+   * <pre>.counters["org.sonatype.nexus.blobstore.gcloud.internal.MultipartUploader.integrityFailures"]</pre> field.
+   */
+  public static final String INTEGRITY_CHECK_PROPERTY = "nexus.gcs.integrityCheck.enabled";
+
   /**
    * This is a hard limit on the number of components to a compose request enforced by Google Cloud Storage API.
    */
   static final int COMPOSE_REQUEST_LIMIT = 32;
 
+  /**
+   * Smallest part {@link #upload(Storage, String, String, Path, long)} splits a local file into when no
+   * {@link #CHUNK_SIZE_PROPERTY} is configured.
+   */
+  static final int FILE_PART_SIZE = 16 * 1024 * 1024;
+
   /**
    * While an invocation of {@link #upload(Storage, String, String, InputStream)} is in-flight, the individual
    * chunks of the file will have names like 'destination.chunkPartNumber", like
@@ -89,15 +111,25 @@ public class MultipartUploader
 
   private final int chunkSize;
 
+  private final boolean verifyIntegrity;
+
   private final Histogram numberOfChunks;
 
   private final Counter composeLimitHitCounter;
 
+  private final Counter integrityFailureCounter;
+
+  public MultipartUploader(final MetricRegistry metricRegistry, final int chunkSize) {
+    this(metricRegistry, chunkSize, false);
+  }
+
   @Inject
   public MultipartUploader(final MetricRegistry metricRegistry,
-                           @Named("${"+CHUNK_SIZE_PROPERTY +":-0}") final int chunkSize) {
+                           @Named("${"+CHUNK_SIZE_PROPERTY +":-0}") final int chunkSize,
+                           @Named("${" + INTEGRITY_CHECK_PROPERTY + ":-false}") final boolean verifyIntegrity) {
     checkArgument(chunkSize >= 0, CHUNK_SIZE_PROPERTY + " cannot be negative");
     this.chunkSize = chunkSize;
+    this.verifyIntegrity = verifyIntegrity;
     this.executorService = MoreExecutors.listeningDecorator(
         new InstrumentedExecutorService(
           Executors.newCachedThreadPool(
@@ -105,6 +137,8 @@ public class MultipartUploader
           metricRegistry, format("%s.%s", MultipartUploader.class.getName(), "executor-service")));
     this.numberOfChunks = metricRegistry.histogram(MetricRegistry.name(MultipartUploader.class, "chunks"));
     this.composeLimitHitCounter = metricRegistry.counter(MetricRegistry.name(MultipartUploader.class, "composeLimitHits"));
+    this.integrityFailureCounter =
+        metricRegistry.counter(MetricRegistry.name(MultipartUploader.class, "integrityFailures"));
   }
 
   @Override
@@ -136,43 +170,213 @@ public class MultipartUploader
     return getChunkSize() > 0;
   }
 
+  /**
+   * @return the value for the {@link #INTEGRITY_CHECK_PROPERTY}
+   */
+  public boolean isVerifyIntegrity() {
+    return verifyIntegrity;
+  }
+
+  /**
+   * @return the number of uploads whose stored checksum did not match the uploaded content
+   */
+  public long getNumberOfIntegrityFailures() {
+    return integrityFailureCounter.getCount();
+  }
+
   /**
    * @param storage an initialized {@link Storage} instance
    * @param bucket the name of the bucket
    * @param destination the the destination (relative to the bucket)
    * @param contents the stream of data to store
    * @return the successfully stored {@link Blob}
-   * @throws BlobStoreException if any part of the upload failed
+   * @throws BlobStoreException if any part of the upload failed, or the stored object failed the integrity check
    */
   @Override
   @Guarded(by = STARTED)
   public Blob upload(final Storage storage, final String bucket, final String destination, final InputStream contents) {
+    return upload(storage, bucket, destination, contents, () -> {});
+  }
+
+  /**
+   * @param storage an initialized {@link Storage} instance
+   * @param bucket the name of the bucket
+   * @param destination the the destination (relative to the bucket)
+   * @param contents the stream of data to store
+   * @param onCommitted called once the single part or the final compose has landed at {@code destination} and, with
+   *                    the integrity check enabled, has been verified
+   * @return the successfully stored {@link Blob}
+   * @throws BlobStoreException if any part of the upload failed, or the stored object failed the integrity check
+   */
+  @Override
+  @Guarded(by = STARTED)
+  public Blob upload(final Storage storage,
+                     final String bucket,
+                     final String destination,
+                     final InputStream contents,
+                     final Runnable onCommitted)
+  {
+    if (!verifyIntegrity) {
+      return doUpload(storage, bucket, destination, contents, onCommitted);
+    }
+    HashingInputStream hashing = Crc32cChecksums.hashing(contents);
+    Blob result = verified(storage, bucket, destination, doUpload(storage, bucket, destination, hashing, () -> {}),
+        hashing.hash());
+    onCommitted.run();
+    return result;
+  }
+
+  /**
+   * Uploads a local file as up to {@link #COMPOSE_REQUEST_LIMIT} parts of at least {@link #getChunkSize()} (or
+   * {@link #FILE_PART_SIZE}) bytes. Each part is read with positional {@link FileChannel} reads on this uploader's
+   * threads and streamed straight to the bucket, so no part is buffered on the heap; the parts are then composed
+   * into the destination. This does not require {@link #isParallel()}.
+   *
+   * @param storage an initialized {@link Storage} instance
+   * @param bucket the name of the bucket
+   * @param destination the the destination (relative to the bucket)
+   * @param file the local file to store
+   * @param size the size of the file
+   * @return the successfully stored {@link Blob}
+   * @throws BlobStoreException if any part of the upload failed, or the stored object failed the integrity check
+   */
+  @Override
+  @Guarded(by = STARTED)
+  public Blob upload(final Storage storage, final String bucket, final String destination, final Path file,
+                     final long size)
+  {
+    long partSize = Math.max(isParallel() ? chunkSize : FILE_PART_SIZE, divideUp(size, COMPOSE_REQUEST_LIMIT));
+    int parts = (int) Math.max(1, divideUp(size, partSize));
+    log.debug("Starting upload of {} for destination {} in bucket {} as {} parts", file, destination, bucket, parts);
+    // this must represent the bucket-relative paths to the chunks, in order of composition
+    List<String> chunkNames = new ArrayList<>();
+
+    try (FileChannel channel = FileChannel.open(file, READ)) {
+      Blob result;
+      if (parts == 1) {
+        BlobInfo blobInfo = BlobInfo.newBuilder(bucket, destination).build();
+        result = storage.create(blobInfo, new FileRangeInputStream(channel, 0, size),
+            BlobWriteOption.disableGzipContent());
+      }
+      else {
+        List<ListenableFuture<Blob>> chunkFutures = new ArrayList<>();
+        for (int partNumber = 1; partNumber <= parts; partNumber++) {
+          final String chunkName = toChunkName(destination, partNumber);
+          final long offset = (partNumber - 1) * partSize;
+          final long length = Math.min(partSize, size - offset);
+          chunkNames.add(chunkName);
+          chunkFutures.add(executorService.submit(() -> {
+            BlobInfo blobInfo = BlobInfo.newBuilder(bucket, chunkName).build();
+            return storage.create(blobInfo, new FileRangeInputStream(channel, offset, length),
+                BlobWriteOption.disableGzipContent());
+          }));
+        }
+        // wait for every part, even after a failure, so none is still running when the channel closes
+        Futures.successfulAsList(chunkFutures).get();
+        for (ListenableFuture<Blob> chunkFuture : chunkFutures) {
+          Futures.getDone(chunkFuture);
+        }
+        result = storage.compose(ComposeRequest.of(bucket, chunkNames, destination));
+      }
+      Long stored = result.getSize();
+      if (stored != null && stored != size) {
+        // the file changed underneath us
+        throw new IOException(format("Uploaded %d bytes of %s, expected %d", stored, file, size));
+      }
+      log.debug("Upload of {} complete", destination);
+      if (verifyIntegrity) {
+        // a sequential pass over the local file, usually still in the page cache
+        return verified(storage, bucket, destination, result, MoreFiles.asByteSource(file).hash(Hashing.crc32c()));
+      }
+      return result;
+    }
+    catch (BlobStoreException e) {
+      throw e;
+    }
+    catch (Exception e) {
+      throw new BlobStoreException("Error uploading blob", e, null);
+    }
+    finally {
+      numberOfChunks.update(Math.max(1, chunkNames.size()));
+      deferredCleanup(storage, bucket, chunkNames);
+    }
+  }
+
+  private Blob verified(final Storage storage, final String bucket, final String destination, final Blob result,
+                        final HashCode crc32c)
+  {
+    try {
+      Crc32cChecksums.verify(result, Crc32cChecksums.encode(crc32c));
+    }
+    catch (BlobStoreException e) {
+      integrityFailureCounter.inc();
+      log.error("Integrity check failed for upload of {}, deleting it", destination, e);
+      storage.delete(bucket, destination);
+      throw e;
+    }
+    return result;
+  }
+
+  private static long divideUp(final long dividend, final long divisor) {
+    return (dividend + divisor - 1) / divisor;
+  }
+
+  private Blob doUpload(final Storage storage,
+                        final String bucket,
+                        final String destination,
+                        final InputStream contents,
+                        final Runnable onCommitted)
+  {
     if(isParallel()) {
-      return parallelUpload(storage, bucket, destination, contents);
+      return parallelUpload(storage, bucket, destination, contents, onCommitted);
     }
     log.debug("Starting upload for destination {} in bucket {}", destination, bucket);
     BlobInfo blobInfo = BlobInfo.newBuilder(bucket, destination).build();
     Blob result = storage.create(blobInfo, contents, BlobWriteOption.disableGzipContent());
+    onCommitted.run();
     log.debug("Upload of {} complete", destination);
     return result;
   }
 
+  /**
+   * Runs {@link #upload(Storage, String, String, InputStream)} on this uploader's threads, releasing the caller.
+   *
+   * @return a future completed with the successfully stored {@link Blob}, or exceptionally with a
+   * {@link BlobStoreException} if any part of the upload failed
+   */
+  @Override
+  @Guarded(by = STARTED)
+  public CompletableFuture<Blob> uploadAsync(final Storage storage,
+                                             final String bucket,
+                                             final String destination,
+                                             final InputStream contents)
+  {
+    return CompletableFuture.supplyAsync(() -> upload(storage, bucket, destination, contents), executorService);
+  }
+
   /**
    * @param storage an initialized {@link Storage} instance
    * @param bucket the name of the bucket
    * @param destination the the destination (relative to the bucket)
    * @param contents the stream of data to store
+   * @param onCommitted called once the single part or the final compose has landed at {@code destination}
    * @return the successfully stored {@link Blob}
    * @throws BlobStoreException if any part of the upload failed
    */
-  Blob parallelUpload(final Storage storage, final String bucket, final String destination, final InputStream contents) {
+  Blob parallelUpload(final Storage storage,
+                      final String bucket,
+                      final String destination,
+                      final InputStream contents,
+                      final Runnable onCommitted)
+  {
     log.debug("Starting parallel multipart upload for destination {} in bucket {}", destination, bucket);
     // this must represent the bucket-relative paths to the chunks, in order of composition
     List<String> chunkNames = new ArrayList<>();
 
-    Optional<Blob> singleChunk = Optional.empty();
     try (InputStream current = contents) {
       List<ListenableFuture<Blob>> chunkFutures = new ArrayList<>();
+      // the first part is held back until we know whether more parts follow
+      byte[] firstChunk = EMPTY;
       // MUST respect hard limit of 32 chunks per compose request
       for (int partNumber = 1; partNumber <= COMPOSE_REQUEST_LIMIT; partNumber++) {
         final byte[] chunk;
@@ -205,44 +409,45 @@ public class MultipartUploader
         chunkNames.add(chunkName);
 
         if (partNumber == 1) {
-          // upload the first part on the current thread
-          BlobInfo blobInfo = BlobInfo.newBuilder(bucket, chunkName).build();
-          Blob blob = storage.create(blobInfo, chunk, BlobTargetOption.disableGzipContent());
-          singleChunk = Optional.of(blob);
+          firstChunk = chunk;
         }
         else {
-          singleChunk = Optional.empty();
+          if (partNumber == 2) {
+            // there is more than one part; upload the first off the current thread too, so reading carries on
+            chunkFutures.add(uploadChunk(storage, bucket, destination, 1, firstChunk));
+          }
           // 2nd through N chunks will happen off current thread in parallel
-          final int chunkIndex = partNumber;
-          chunkFutures.add(executorService.submit(() -> {
-            log.debug("Uploading chunk {} for {} of {} bytes", chunkIndex, destination, chunk.length);
-            BlobInfo blobInfo = BlobInfo.newBuilder(
-                bucket, chunkName).build();
-            return storage.create(blobInfo, chunk, BlobTargetOption.disableGzipContent());
-          }));
+          chunkFutures.add(uploadChunk(storage, bucket, chunkName, partNumber, chunk));
         }
       }
 
-      // return the single result if it exists; otherwise finalize the parallel multipart workers
-      return singleChunk.orElseGet(() -> {
-        CountDownLatch block = new CountDownLatch(1);
-        Futures.whenAllComplete(chunkFutures).run(() -> block.countDown() , MoreExecutors.directExecutor());
-        // wait for all the futures to complete
-        log.debug("waiting for {} remaining chunks to complete", chunkFutures.size());
-        try {
-          block.await();
-        }
-        catch (InterruptedException e) {
-          log.error("caught InterruptedException waiting for multipart upload to complete on {}", destination);
-          throw new RuntimeException(e);
-        }
-        log.debug("chunk uploads completed, sending compose request");
+      if (chunkFutures.isEmpty()) {
+        // single part; upload on the current thread rather than paying for the hand-off
+        BlobInfo blobInfo = BlobInfo.newBuilder(bucket, destination).build();
+        Blob singleChunk = storage.create(blobInfo, firstChunk, BlobTargetOption.disableGzipContent());
+        onCommitted.run();
+        return singleChunk;
+      }
+
+      // finalize the parallel multipart workers
+      CountDownLatch block = new CountDownLatch(1);
+      Futures.whenAllComplete(chunkFutures).run(() -> block.countDown() , MoreExecutors.directExecutor());
+      // wait for all the futures to complete
+      log.debug("waiting for {} remaining chunks to complete", chunkFutures.size());
+      try {
+        block.await();
+      }
+      catch (InterruptedException e) {
+        log.error("caught InterruptedException waiting for multipart upload to complete on {}", destination);
+        throw new RuntimeException(e);
+      }
+      log.debug("chunk uploads completed, sending compose request");
 
-        // finalize with compose request to coalesce the chunks
-        Blob finalBlob = storage.compose(ComposeRequest.of(bucket, chunkNames, destination));
-        log.debug("Parallel multipart upload of {} complete", destination);
-        return finalBlob;
-      });
+      // finalize with compose request to coalesce the chunks
+      Blob finalBlob = storage.compose(ComposeRequest.of(bucket, chunkNames, destination));
+      onCommitted.run();
+      log.debug("Parallel multipart upload of {} complete", destination);
+      return finalBlob;
     }
     catch(Exception e) {
       throw new BlobStoreException("Error uploading blob", e, null);
@@ -255,6 +460,19 @@ public class MultipartUploader
     }
   }
 
+  private ListenableFuture<Blob> uploadChunk(final Storage storage,
+                                             final String bucket,
+                                             final String chunkName,
+                                             final int chunkIndex,
+                                             final byte[] chunk)
+  {
+    return executorService.submit(() -> {
+      log.debug("Uploading chunk {} for {} of {} bytes", chunkIndex, chunkName, chunk.length);
+      BlobInfo blobInfo = BlobInfo.newBuilder(bucket, chunkName).build();
+      return storage.create(blobInfo, chunk, BlobTargetOption.disableGzipContent());
+    });
+  }
+
   @VisibleForTesting
   Histogram numberOfChunksHistogram() {
     return this.numberOfChunks;
@@ -308,4 +526,51 @@ public class MultipartUploader
       return EMPTY;
     }
   }
+
+  /**
+   * Reads one range of a file with positional reads, which leave the channel's position alone, so the parts of a
+   * file can be read concurrently from a single {@link FileChannel}.
+   */
+  private static class FileRangeInputStream
+      extends InputStream
+  {
+    private final FileChannel channel;
+
+    private final long end;
+
+    private long position;
+
+    FileRangeInputStream(final FileChannel channel, final long offset, final long length) {
+      this.channel = channel;
+      this.position = offset;
+      this.end = offset + length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] single = new byte[1];
+      return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (position >= end) {
+        return -1;
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(b, off, (int) Math.min(len, end - position));
+      int read = channel.read(buffer, position);
+      if (read > 0) {
+        position += read;
+      }
+      return read;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(end - position, Integer.MAX_VALUE);
+    }
+  }
 }
@@ -0,0 +1,322 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import org.sonatype.nexus.blobstore.api.BlobId;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * In-memory cache of small blob content, held outside the Java heap.
+ *
+ * Memory is taken from the operating system in pages of direct memory, up to the configured budget, and never
+ * returned. Each page is cut into equal slots of one size class (a power of two, from {@link #MIN_SLOT_SIZE} up to
+ * the maximum blob size), so cached content costs the garbage collector nothing beyond a small index entry. When a
+ * size class has no free slot and no page is left to give it, its least recently used entry is evicted.
+ *
+ * Reads copy the content onto the heap, so an entry can be evicted while its content is being streamed.
+ */
+class OffHeapContentCache
+{
+  static final int MIN_SLOT_SIZE = 256;
+
+  private static final int PAGE_SIZE = 1024 * 1024;
+
+  private final int maxBlobBytes;
+
+  private final int maxPages;
+
+  private final int pageSize;
+
+  private final SizeClass[] sizeClasses;
+
+  private int pages;
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @param budgetBytes  the most direct memory to use
+   * @param maxBlobBytes the largest blob to cache
+   */
+  OffHeapContentCache(final long budgetBytes, final int maxBlobBytes) {
+    checkArgument(maxBlobBytes > 0, "maximum blob size must be greater than 0");
+    int largestSlot = slotSize(maxBlobBytes);
+    checkArgument(budgetBytes >= largestSlot, "budget is smaller than the maximum blob size");
+    this.maxBlobBytes = maxBlobBytes;
+    this.pageSize = Math.max(PAGE_SIZE, largestSlot);
+    this.maxPages = (int) Math.min(Integer.MAX_VALUE, Math.max(1, budgetBytes / pageSize));
+    int classes = Integer.numberOfTrailingZeros(largestSlot) - Integer.numberOfTrailingZeros(MIN_SLOT_SIZE) + 1;
+    this.sizeClasses = new SizeClass[classes];
+    for (int i = 0; i < classes; i++) {
+      sizeClasses[i] = new SizeClass(MIN_SLOT_SIZE << i);
+    }
+  }
+
+  int getMaxBlobBytes() {
+    return maxBlobBytes;
+  }
+
+  /**
+   * @param sha1 the SHA-1 of the blob content, from its attributes
+   * @return a copy of the cached content of the blob, or null if it is not cached
+   */
+  @Nullable
+  byte[] get(final BlobId blobId, final String sha1) {
+    for (SizeClass sizeClass : sizeClasses) {
+      byte[] content = sizeClass.get(blobId, sha1);
+      if (content != null) {
+        hits.incrementAndGet();
+        return content;
+      }
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Caches content of at most {@link #getMaxBlobBytes()} bytes, replacing any previous content of the blob.
+   *
+   * @param sha1 the SHA-1 of the content
+   */
+  void put(final BlobId blobId, final String sha1, final byte[] content, final int length) {
+    if (length > maxBlobBytes) {
+      return;
+    }
+    invalidate(blobId);
+    classFor(length).put(blobId, sha1, content, length);
+  }
+
+  void invalidate(final BlobId blobId) {
+    for (SizeClass sizeClass : sizeClasses) {
+      sizeClass.remove(blobId);
+    }
+  }
+
+  /**
+   * @return a stream over {@code source} that keeps a copy of the content while it is no larger than
+   * {@link #getMaxBlobBytes()}
+   */
+  CapturingInputStream capture(final InputStream source) {
+    return new CapturingInputStream(source);
+  }
+
+  long getHitCount() {
+    return hits.get();
+  }
+
+  long getMissCount() {
+    return misses.get();
+  }
+
+  long getEvictionCount() {
+    return evictions.get();
+  }
+
+  long getEntryCount() {
+    long count = 0;
+    for (SizeClass sizeClass : sizeClasses) {
+      count += sizeClass.getEntryCount();
+    }
+    return count;
+  }
+
+  /**
+   * @return the bytes of direct memory taken so far
+   */
+  synchronized long getAllocatedBytes() {
+    return (long) pages * pageSize;
+  }
+
+  private SizeClass classFor(final int length) {
+    int index = Integer.numberOfTrailingZeros(slotSize(length)) - Integer.numberOfTrailingZeros(MIN_SLOT_SIZE);
+    return sizeClasses[index];
+  }
+
+  private static int slotSize(final int length) {
+    return Math.max(MIN_SLOT_SIZE, Integer.highestOneBit(Math.max(1, length - 1)) << 1);
+  }
+
+  /**
+   * @return a new page, or null if the budget is spent
+   */
+  @Nullable
+  private synchronized ByteBuffer allocatePage() {
+    if (pages >= maxPages) {
+      return null;
+    }
+    pages++;
+    return ByteBuffer.allocateDirect(pageSize);
+  }
+
+  private class SizeClass
+  {
+    private final int slotSize;
+
+    private final Deque<ByteBuffer> freeSlots = new ArrayDeque<>();
+
+    /**
+     * Entries in least to most recently used order.
+     */
+    private final LinkedHashMap<BlobId, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    SizeClass(final int slotSize) {
+      this.slotSize = slotSize;
+    }
+
+    @Nullable
+    synchronized byte[] get(final BlobId blobId, final String sha1) {
+      Entry entry = entries.get(blobId);
+      if (entry == null || !entry.sha1.equals(sha1)) {
+        return null;
+      }
+      byte[] content = new byte[entry.length];
+      ByteBuffer slot = entry.slot.duplicate();
+      slot.get(content);
+      return content;
+    }
+
+    synchronized void put(final BlobId blobId, final String sha1, final byte[] content, final int length) {
+      ByteBuffer slot = freeSlots.poll();
+      if (slot == null) {
+        ByteBuffer page = allocatePage();
+        if (page != null) {
+          // positioned through Buffer, whose methods return Buffer on every Java version
+          Buffer view = page;
+          for (int offset = 0; offset + slotSize <= page.capacity(); offset += slotSize) {
+            view.limit(offset + slotSize);
+            view.position(offset);
+            freeSlots.add(page.slice());
+          }
+          slot = freeSlots.poll();
+        }
+      }
+      if (slot == null) {
+        Iterator<Map.Entry<BlobId, Entry>> eldest = entries.entrySet().iterator();
+        if (!eldest.hasNext()) {
+          // every page belongs to other size classes
+          return;
+        }
+        slot = eldest.next().getValue().slot;
+        eldest.remove();
+        evictions.incrementAndGet();
+      }
+      ((Buffer) slot).clear();
+      slot.put(content, 0, length);
+      ((Buffer) slot).flip();
+      entries.put(blobId, new Entry(slot, length, sha1));
+    }
+
+    synchronized void remove(final BlobId blobId) {
+      Entry entry = entries.remove(blobId);
+      if (entry != null) {
+        freeSlots.add(entry.slot);
+      }
+    }
+
+    synchronized int getEntryCount() {
+      return entries.size();
+    }
+  }
+
+  private static class Entry
+  {
+    private final ByteBuffer slot;
+
+    private final int length;
+
+    private final String sha1;
+
+    Entry(final ByteBuffer slot, final int length, final String sha1) {
+      this.slot = slot;
+      this.length = length;
+      this.sha1 = sha1;
+    }
+  }
+
+  /**
+   * Keeps a copy of the content read through it, until it grows beyond {@link #getMaxBlobBytes()}.
+   */
+  class CapturingInputStream
+      extends FilterInputStream
+  {
+    private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+    CapturingInputStream(final InputStream source) {
+      super(source);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0 && copy != null) {
+        copy.write(b);
+        checkSize();
+      }
+      return b;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0 && copy != null) {
+        copy.write(b, off, n);
+        checkSize();
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+      copy = null;
+      return super.skip(n);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    /**
+     * @return the content read so far, or null if it was too large or skipped
+     */
+    @Nullable
+    byte[] getContent() {
+      return copy != null ? copy.toByteArray() : null;
+    }
+
+    private void checkSize() {
+      if (copy.size() > maxBlobBytes) {
+        copy = null;
+      }
+    }
+  }
+}
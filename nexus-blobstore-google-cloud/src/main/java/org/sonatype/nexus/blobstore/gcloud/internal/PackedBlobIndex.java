@@ -0,0 +1,221 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.annotation.Nullable;
+
+import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.blobstore.api.BlobId;
+import org.sonatype.nexus.blobstore.api.BlobStoreConfiguration;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.FullEntity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.LongValue;
+import com.google.cloud.datastore.Query;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.StringValue;
+import com.google.common.collect.Lists;
+
+import static org.sonatype.nexus.blobstore.gcloud.internal.DatastoreKeyHierarchy.NAMESPACE_PREFIX;
+import static org.sonatype.nexus.blobstore.gcloud.internal.DatastoreKeyHierarchy.NXRM_ROOT;
+import static org.sonatype.nexus.blobstore.gcloud.internal.Namespace.safe;
+
+/**
+ * Index of the {@link BlobId}s whose content is packed into segment objects by {@link SegmentPacker}, stored in
+ * Google Datastore.
+ *
+ * The key ancestry looks like:
+ * <pre>
+ [namespace: blobstore-/BlobStoreConfiguration.getName()/]
+ kind=Sonatype,name=Nexus Repository Manager
+ --> kind=PackedBlobs
+ * </pre>
+ *
+ * Each entity holds the segment, offset and length of the content of one blob. The properties are not indexed, as
+ * the index is only ever read by key or in full.
+ */
+class PackedBlobIndex
+    extends ComponentSupport
+{
+  private static final String PACKED_BLOBS = "PackedBlobs";
+
+  private static final String SEGMENT = "segment";
+
+  private static final String OFFSET = "offset";
+
+  private static final String LENGTH = "length";
+
+  /**
+   * Datastore limit on the number of entities written in one call.
+   */
+  static final int MAX_BATCH_SIZE = 500;
+
+  private final Datastore datastore;
+
+  private final KeyFactory keyFactory;
+
+  private final String namespace;
+
+  PackedBlobIndex(final Datastore datastore, final BlobStoreConfiguration blobStoreConfiguration) {
+    this.datastore = datastore;
+    this.namespace = NAMESPACE_PREFIX + safe(blobStoreConfiguration.getName());
+    this.keyFactory = datastore.newKeyFactory()
+        .addAncestors(NXRM_ROOT)
+        .setNamespace(namespace)
+        .setKind(PACKED_BLOBS);
+  }
+
+  /**
+   * @return where the content of the blob is packed, or null if it is not packed
+   */
+  @Nullable
+  Location get(final BlobId blobId) {
+    Entity entity = datastore.get(key(blobId));
+    return entity != null ? location(entity) : null;
+  }
+
+  void put(final BlobId blobId, final Location location) {
+    datastore.put(entity(blobId, location));
+  }
+
+  /**
+   * Record the locations of the blobs packed into one segment, in as few calls as possible.
+   */
+  void putAll(final Map<BlobId, Location> locations) {
+    List<FullEntity<?>> entities = locations.entrySet().stream()
+        .map(entry -> entity(entry.getKey(), entry.getValue()))
+        .collect(Collectors.toList());
+    for (List<FullEntity<?>> partition : Lists.partition(entities, MAX_BATCH_SIZE)) {
+      datastore.put(partition.toArray(new FullEntity<?>[0]));
+    }
+  }
+
+  void remove(final BlobId blobId) {
+    datastore.delete(key(blobId));
+  }
+
+  /**
+   * @return every packed blob and its location; reads the whole index, so only meant for compaction
+   */
+  Stream<Entry<BlobId, Location>> getContents() {
+    Query<Entity> query = Query.newEntityQueryBuilder()
+        .setNamespace(namespace)
+        .setKind(PACKED_BLOBS)
+        .build();
+    QueryResults<Entity> results = datastore.run(query);
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(results, Spliterator.ORDERED), false)
+        .map(entity -> new SimpleImmutableEntry<>(new BlobId(entity.getKey().getName()), location(entity)));
+  }
+
+  /**
+   * Removes all entries of this index.
+   */
+  void removeData() {
+    log.warn("removing all entries in the index of packed blobs...");
+    Query<Key> query = Query.newKeyQueryBuilder()
+        .setNamespace(namespace)
+        .setKind(PACKED_BLOBS)
+        .build();
+    // small operation - key only
+    QueryResults<Key> results = datastore.run(query);
+    List<Key> keys = new ArrayList<>();
+    results.forEachRemaining(keys::add);
+    for (List<Key> partition : Lists.partition(keys, MAX_BATCH_SIZE)) {
+      datastore.delete(partition.toArray(new Key[0]));
+    }
+    log.warn("deleted {} blobIds from the packed blob index", keys.size());
+  }
+
+  private Key key(final BlobId blobId) {
+    return keyFactory.newKey(blobId.asUniqueString());
+  }
+
+  private FullEntity<?> entity(final BlobId blobId, final Location location) {
+    return Entity.newBuilder(key(blobId))
+        .set(SEGMENT, StringValue.newBuilder(location.getSegment()).setExcludeFromIndexes(true).build())
+        .set(OFFSET, LongValue.newBuilder(location.getOffset()).setExcludeFromIndexes(true).build())
+        .set(LENGTH, LongValue.newBuilder(location.getLength()).setExcludeFromIndexes(true).build())
+        .build();
+  }
+
+  private static Location location(final Entity entity) {
+    return new Location(entity.getString(SEGMENT), entity.getLong(OFFSET), (int) entity.getLong(LENGTH));
+  }
+
+  /**
+   * The range of a segment object holding the content of one blob.
+   */
+  static class Location
+  {
+    private final String segment;
+
+    private final long offset;
+
+    private final int length;
+
+    Location(final String segment, final long offset, final int length) {
+      this.segment = segment;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    String getSegment() {
+      return segment;
+    }
+
+    long getOffset() {
+      return offset;
+    }
+
+    int getLength() {
+      return length;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      Location that = (Location) o;
+      return offset == that.offset && length == that.length && segment.equals(that.segment);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(segment, offset, length);
+    }
+
+    @Override
+    public String toString() {
+      return segment + "[" + offset + "+" + length + "]";
+    }
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import com.google.api.gax.retrying.RetrySettings;
+import com.google.cloud.ServiceOptions;
+import org.threeten.bp.Duration;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Client-side retry policy applied to the Google Cloud Storage and Datastore clients.
+ *
+ * Failed requests are retried with exponential, jittered backoff until either the maximum number of attempts or the
+ * overall deadline is reached. The defaults match the Google client defaults; each value can be overridden in
+ * 'nexus.properties'.
+ *
+ * @see ServiceOptions#getDefaultRetrySettings()
+ */
+@Named
+@Singleton
+public class RetryPolicy
+{
+  /**
+   * Maximum number of attempts per request, including the first. Default is 6.
+   */
+  public static final String MAX_ATTEMPTS_PROPERTY = "nexus.gcs.retry.maxAttempts";
+
+  /**
+   * Delay in milliseconds before the first retry. Default is 1000.
+   */
+  public static final String INITIAL_DELAY_PROPERTY = "nexus.gcs.retry.initialDelayMillis";
+
+  /**
+   * Factor applied to the delay after every retry. Default is 2.0.
+   */
+  public static final String DELAY_MULTIPLIER_PROPERTY = "nexus.gcs.retry.delayMultiplier";
+
+  /**
+   * Upper bound in milliseconds for the delay between two attempts. Default is 32000.
+   */
+  public static final String MAX_DELAY_PROPERTY = "nexus.gcs.retry.maxDelayMillis";
+
+  /**
+   * Deadline in milliseconds for a request, across all of its attempts. Default is 50000.
+   */
+  public static final String DEADLINE_PROPERTY = "nexus.gcs.retry.deadlineMillis";
+
+  static final RetryPolicy DEFAULT = new RetryPolicy(6, 1000L, 2.0, 32_000L, 50_000L);
+
+  private final int maxAttempts;
+
+  private final long initialDelayMillis;
+
+  private final double delayMultiplier;
+
+  private final long maxDelayMillis;
+
+  private final long deadlineMillis;
+
+  @Inject
+  public RetryPolicy(@Named("${" + MAX_ATTEMPTS_PROPERTY + ":-6}") final int maxAttempts,
+                     @Named("${" + INITIAL_DELAY_PROPERTY + ":-1000}") final long initialDelayMillis,
+                     @Named("${" + DELAY_MULTIPLIER_PROPERTY + ":-2.0}") final double delayMultiplier,
+                     @Named("${" + MAX_DELAY_PROPERTY + ":-32000}") final long maxDelayMillis,
+                     @Named("${" + DEADLINE_PROPERTY + ":-50000}") final long deadlineMillis)
+  {
+    checkArgument(maxAttempts > 0, MAX_ATTEMPTS_PROPERTY + " must be greater than 0");
+    checkArgument(initialDelayMillis >= 0, INITIAL_DELAY_PROPERTY + " cannot be negative");
+    checkArgument(delayMultiplier >= 1.0, DELAY_MULTIPLIER_PROPERTY + " must be at least 1.0");
+    checkArgument(maxDelayMillis >= initialDelayMillis, MAX_DELAY_PROPERTY + " must be at least "
+        + INITIAL_DELAY_PROPERTY);
+    checkArgument(deadlineMillis > 0, DEADLINE_PROPERTY + " must be greater than 0");
+    this.maxAttempts = maxAttempts;
+    this.initialDelayMillis = initialDelayMillis;
+    this.delayMultiplier = delayMultiplier;
+    this.maxDelayMillis = maxDelayMillis;
+    this.deadlineMillis = deadlineMillis;
+  }
+
+  /**
+   * @return {@link RetrySettings} for use with the builders of {@link ServiceOptions} subtypes
+   */
+  RetrySettings toRetrySettings() {
+    return ServiceOptions.getDefaultRetrySettings().toBuilder()
+        .setMaxAttempts(maxAttempts)
+        .setInitialRetryDelay(Duration.ofMillis(initialDelayMillis))
+        .setRetryDelayMultiplier(delayMultiplier)
+        .setMaxRetryDelay(Duration.ofMillis(maxDelayMillis))
+        .setTotalTimeout(Duration.ofMillis(deadlineMillis))
+        .build();
+  }
+
+  @Override
+  public String toString() {
+    return "RetryPolicy{" +
+        "maxAttempts=" + maxAttempts +
+        ", initialDelayMillis=" + initialDelayMillis +
+        ", delayMultiplier=" + delayMultiplier +
+        ", maxDelayMillis=" + maxDelayMillis +
+        ", deadlineMillis=" + deadlineMillis +
+        '}';
+  }
+}
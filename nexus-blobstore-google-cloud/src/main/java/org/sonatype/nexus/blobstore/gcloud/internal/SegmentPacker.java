@@ -0,0 +1,373 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.Nullable;
+
+import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.blobstore.api.BlobId;
+import org.sonatype.nexus.blobstore.gcloud.internal.PackedBlobIndex.Location;
+import org.sonatype.nexus.thread.NexusThreadFactory;
+
+import com.google.cloud.ReadChannel;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.Storage.BlobListOption;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.ByteStreams;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Packs the content of small blobs into larger segment objects, so a small blob costs one object (its attributes)
+ * rather than two.
+ *
+ * Blobs are packed in groups: the first blob to arrive opens a batch, which is written as one segment object once it
+ * reaches the segment size or after the linger time, whichever comes first. Every writer in the batch waits for the
+ * segment and the {@link PackedBlobIndex} entries to be written, so a blob is never acknowledged before its content is
+ * in the bucket. Reads fetch just the range of the segment holding the blob.
+ *
+ * Deleting a packed blob only removes its index entry. {@link #compact} deletes segments with no live blobs left, and
+ * rewrites those where less than {@link #COMPACTION_LIVE_PERCENT} percent of the bytes are still live.
+ */
+class SegmentPacker
+    extends ComponentSupport
+{
+  static final String SEGMENT_PREFIX = "segments/";
+
+  static final String SEGMENT_SUFFIX = ".segment";
+
+  static final int COMPACTION_LIVE_PERCENT = 50;
+
+  /**
+   * Segments younger than this are left alone by {@link #compact}, as their index entries may still be being written.
+   */
+  static final long COMPACTION_MIN_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  private final Storage storage;
+
+  private final String bucketName;
+
+  private final PackedBlobIndex index;
+
+  private final int maxBlobBytes;
+
+  private final long segmentBytes;
+
+  private final long lingerMillis;
+
+  private final ScheduledExecutorService scheduler;
+
+  @Nullable
+  private Batch current;
+
+  private final AtomicLong segmentsWritten = new AtomicLong();
+
+  private final AtomicLong blobsPacked = new AtomicLong();
+
+  private final AtomicLong segmentsCompacted = new AtomicLong();
+
+  private final AtomicLong segmentsDeleted = new AtomicLong();
+
+  /**
+   * @param maxBlobBytes the largest blob to pack
+   * @param segmentBytes the size at which a batch is written without waiting for the linger time
+   * @param lingerMillis how long a batch waits for more blobs
+   */
+  SegmentPacker(final Storage storage,
+                final String bucketName,
+                final PackedBlobIndex index,
+                final int maxBlobBytes,
+                final long segmentBytes,
+                final long lingerMillis)
+  {
+    checkArgument(maxBlobBytes > 0, "maximum blob size must be greater than 0");
+    checkArgument(segmentBytes >= maxBlobBytes, "segment size is smaller than the maximum blob size");
+    checkArgument(lingerMillis >= 0, "linger time cannot be negative");
+    this.storage = checkNotNull(storage);
+    this.bucketName = checkNotNull(bucketName);
+    this.index = checkNotNull(index);
+    this.maxBlobBytes = maxBlobBytes;
+    this.segmentBytes = segmentBytes;
+    this.lingerMillis = lingerMillis;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(
+        new NexusThreadFactory("gcs-segment-packer", "nexus-blobstore-google-cloud"));
+  }
+
+  int getMaxBlobBytes() {
+    return maxBlobBytes;
+  }
+
+  /**
+   * Writes any open batch and stops the linger timer.
+   */
+  void stop() {
+    Batch batch;
+    synchronized (this) {
+      batch = current;
+      current = null;
+    }
+    if (batch != null) {
+      write(batch);
+    }
+    scheduler.shutdownNow();
+  }
+
+  /**
+   * Packs the content of a blob, returning once it is in a segment in the bucket and in the index.
+   */
+  Location pack(final BlobId blobId, final byte[] content) throws IOException {
+    checkArgument(content.length <= maxBlobBytes, "%s is too large to pack", blobId);
+    final Batch batch;
+    final boolean full;
+    synchronized (this) {
+      if (current == null) {
+        Batch opened = new Batch();
+        current = opened;
+        scheduler.schedule(() -> seal(opened), lingerMillis, TimeUnit.MILLISECONDS);
+      }
+      batch = current;
+      batch.add(blobId, content);
+      full = batch.size() >= segmentBytes || batch.count() >= PackedBlobIndex.MAX_BATCH_SIZE;
+      if (full) {
+        current = null;
+      }
+    }
+    if (full) {
+      write(batch);
+    }
+    return batch.await(blobId);
+  }
+
+  /**
+   * @return the packed content
+   */
+  byte[] read(final Location location) throws IOException {
+    try (InputStream in = open(location)) {
+      return ByteStreams.toByteArray(in);
+    }
+  }
+
+  /**
+   * @return a stream over the range of the segment holding the content
+   */
+  InputStream open(final Location location) throws IOException {
+    ReadChannel channel = storage.reader(bucketName, location.getSegment());
+    // fetch just the blob rather than the default chunk
+    channel.setChunkSize(Math.max(location.getLength(), 1));
+    channel.seek(location.getOffset());
+    return ByteStreams.limit(Channels.newInputStream(channel), location.getLength());
+  }
+
+  /**
+   * Deletes segments with no live blobs, and rewrites those that are mostly dead.
+   *
+   * @param lockFor takes the lock of a blob, so relocations do not race with writes and deletes of the blob
+   * @param relocated called under the blob lock with the new location of every blob moved
+   */
+  void compact(final Function<BlobId, Lock> lockFor, final LocationListener relocated) {
+    compact(lockFor, relocated, COMPACTION_MIN_AGE_MILLIS);
+  }
+
+  @VisibleForTesting
+  void compact(final Function<BlobId, Lock> lockFor, final LocationListener relocated, final long minAgeMillis) {
+    Map<String, List<Entry<BlobId, Location>>> live;
+    try (Stream<Entry<BlobId, Location>> contents = index.getContents()) {
+      live = contents.collect(Collectors.groupingBy(entry -> entry.getValue().getSegment()));
+    }
+    long cutoff = System.currentTimeMillis() - minAgeMillis;
+    for (Blob segment : storage.list(bucketName, BlobListOption.prefix(SEGMENT_PREFIX)).iterateAll()) {
+      if (minAgeMillis > 0 && (segment.getCreateTime() == null || segment.getCreateTime() > cutoff)) {
+        continue;
+      }
+      List<Entry<BlobId, Location>> entries = live.getOrDefault(segment.getName(), Collections.emptyList());
+      long liveBytes = entries.stream().mapToLong(entry -> entry.getValue().getLength()).sum();
+      try {
+        if (liveBytes == 0) {
+          log.debug("Deleting segment {}, none of its blobs are live", segment.getName());
+          storage.delete(segment.getBlobId());
+          segmentsDeleted.incrementAndGet();
+        }
+        else if (liveBytes * 100 < segment.getSize() * COMPACTION_LIVE_PERCENT) {
+          rewrite(segment, entries, lockFor, relocated);
+        }
+      }
+      catch (Exception e) {
+        log.warn("Unable to compact segment {}", segment.getName(), e);
+      }
+    }
+  }
+
+  long getSegmentsWritten() {
+    return segmentsWritten.get();
+  }
+
+  long getBlobsPacked() {
+    return blobsPacked.get();
+  }
+
+  long getSegmentsCompacted() {
+    return segmentsCompacted.get();
+  }
+
+  long getSegmentsDeleted() {
+    return segmentsDeleted.get();
+  }
+
+  private void rewrite(final Blob segment,
+                       final List<Entry<BlobId, Location>> entries,
+                       final Function<BlobId, Lock> lockFor,
+                       final LocationListener relocated)
+  {
+    log.debug("Rewriting segment {}, {} of its {} bytes are live", segment.getName(),
+        entries.stream().mapToLong(entry -> entry.getValue().getLength()).sum(), segment.getSize());
+    byte[] content = storage.readAllBytes(segment.getBlobId());
+    Batch batch = new Batch();
+    for (Entry<BlobId, Location> entry : entries) {
+      Location location = entry.getValue();
+      byte[] blob = new byte[location.getLength()];
+      System.arraycopy(content, (int) location.getOffset(), blob, 0, blob.length);
+      batch.add(entry.getKey(), blob);
+    }
+    Map<BlobId, Location> moved = writeSegment(batch);
+    for (Entry<BlobId, Location> entry : entries) {
+      BlobId blobId = entry.getKey();
+      Lock lock = lockFor.apply(blobId);
+      try {
+        // skip blobs deleted or rewritten since the index was read
+        if (entry.getValue().equals(index.get(blobId))) {
+          index.put(blobId, moved.get(blobId));
+          relocated.relocated(blobId, moved.get(blobId));
+        }
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+    storage.delete(segment.getBlobId());
+    segmentsCompacted.incrementAndGet();
+  }
+
+  /**
+   * Closes the batch if it is still open, then writes it.
+   */
+  private void seal(final Batch batch) {
+    synchronized (this) {
+      if (current != batch) {
+        // already written because it filled up
+        return;
+      }
+      current = null;
+    }
+    write(batch);
+  }
+
+  private void write(final Batch batch) {
+    try {
+      Map<BlobId, Location> locations = writeSegment(batch);
+      index.putAll(locations);
+      blobsPacked.addAndGet(locations.size());
+      batch.result.complete(locations);
+    }
+    catch (RuntimeException e) {
+      batch.result.completeExceptionally(e);
+    }
+  }
+
+  /**
+   * Writes the content of a batch as a new segment object.
+   *
+   * @return the location of each blob in the segment
+   */
+  private Map<BlobId, Location> writeSegment(final Batch batch) {
+    String name = SEGMENT_PREFIX + UUID.randomUUID() + SEGMENT_SUFFIX;
+    storage.create(BlobInfo.newBuilder(bucketName, name).build(), batch.content.toByteArray());
+    segmentsWritten.incrementAndGet();
+    Map<BlobId, Location> locations = new LinkedHashMap<>();
+    batch.ranges.forEach((blobId, range) -> locations.put(blobId, new Location(name, range[0], (int) range[1])));
+    log.debug("Wrote segment {} holding {} blobs", name, locations.size());
+    return locations;
+  }
+
+  /**
+   * Called with the new location of a blob moved by {@link #compact}.
+   */
+  interface LocationListener
+  {
+    void relocated(BlobId blobId, Location location);
+  }
+
+  /**
+   * Blobs waiting to be written to the same segment.
+   */
+  private static class Batch
+  {
+    private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+    /**
+     * Offset and length of each blob in {@link #content}.
+     */
+    private final Map<BlobId, long[]> ranges = new LinkedHashMap<>();
+
+    private final CompletableFuture<Map<BlobId, Location>> result = new CompletableFuture<>();
+
+    void add(final BlobId blobId, final byte[] blob) {
+      ranges.put(blobId, new long[]{content.size(), blob.length});
+      content.write(blob, 0, blob.length);
+    }
+
+    long size() {
+      return content.size();
+    }
+
+    int count() {
+      return ranges.size();
+    }
+
+    Location await(final BlobId blobId) throws IOException {
+      try {
+        return result.get().get(blobId);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while packing " + blobId, e);
+      }
+      catch (ExecutionException e) {
+        throw new IOException("Unable to pack " + blobId, e.getCause());
+      }
+    }
+  }
+}
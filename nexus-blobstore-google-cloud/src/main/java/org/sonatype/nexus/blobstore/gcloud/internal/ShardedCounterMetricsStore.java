@@ -101,64 +101,63 @@ class ShardedCounterMetricsStore
 
   private final BlobIdLocationResolver locationResolver;
 
-  private final GoogleCloudDatastoreFactory datastoreFactory;
+  private final Datastore datastore;
 
-  private Datastore datastore;
-
-  private Key shardRoot;
+  private final Key shardRoot;
 
   private Queue<Mutation> pending = new ConcurrentLinkedDeque<>();
 
   private final RateLimiter rateLimiter;
 
-  private String namespace;
+  private final String namespace;
 
-  private BlobStoreConfiguration blobStoreConfiguration;
+  private final Map<OperationType, OperationMetrics> operationMetrics = newOperationMetrics();
 
-  private Map<OperationType, OperationMetrics> operationMetrics = new EnumMap<>(OperationType.class);
+  private Map<OperationType, OperationMetrics> operationMetricsDelta = newOperationMetrics();
 
   static final int DEFAULT_FLUSH_DELAY_SECONDS = 1;
 
   /**
    * @param locationResolver
-   * @param datastoreFactory
+   * @param datastore
    * @param blobStoreConfiguration
    */
   ShardedCounterMetricsStore(final BlobIdLocationResolver locationResolver,
-                             final GoogleCloudDatastoreFactory datastoreFactory,
+                             final Datastore datastore,
                              final BlobStoreConfiguration blobStoreConfiguration) {
-    this(locationResolver, datastoreFactory, blobStoreConfiguration, DEFAULT_FLUSH_DELAY_SECONDS);
+    this(locationResolver, datastore, blobStoreConfiguration, DEFAULT_FLUSH_DELAY_SECONDS);
   }
 
   /**
    * @param locationResolver
-   * @param datastoreFactory
+   * @param datastore
    * @param blobStoreConfiguration
    * @param flushDelaySeconds
    */
   ShardedCounterMetricsStore(final BlobIdLocationResolver locationResolver,
-                             final GoogleCloudDatastoreFactory datastoreFactory,
+                             final Datastore datastore,
                              final BlobStoreConfiguration blobStoreConfiguration,
                              final int flushDelaySeconds) {
     this.locationResolver = locationResolver;
-    this.datastoreFactory = datastoreFactory;
-    this.blobStoreConfiguration = blobStoreConfiguration;
+    this.datastore = datastore;
     this.rateLimiter = RateLimiter.create(flushDelaySeconds);
-  }
-
-  void initialize() throws Exception {
-    this.datastore = datastoreFactory.create(blobStoreConfiguration);
     this.namespace = NAMESPACE_PREFIX + safe(blobStoreConfiguration.getName());
     this.shardRoot = datastore.newKeyFactory()
         .addAncestors(NXRM_ROOT)
         .setNamespace(namespace)
         .setKind(METRICS_STORE)
         .newKey(1L);
+  }
 
+  private static Map<OperationType, OperationMetrics> newOperationMetrics() {
+    Map<OperationType, OperationMetrics> metrics = new EnumMap<>(OperationType.class);
     for (OperationType type : OperationType.values()) {
-      operationMetrics.put(type, new OperationMetrics());
+      metrics.put(type, new OperationMetrics());
     }
+    return metrics;
+  }
 
+  void initialize() {
     try {
       getMetrics();
     }
@@ -212,8 +211,70 @@ class ShardedCounterMetricsStore
     return new GoogleBlobStoreMetrics(count, size);
   }
 
-  Map<OperationType, OperationMetrics> getOperationMetricsByType() {
-    return operationMetrics;
+  /**
+   * @return a snapshot of the {@link OperationMetrics} recorded since startup
+   */
+  synchronized Map<OperationType, OperationMetrics> getOperationMetricsByType() {
+    return copyOf(operationMetrics);
+  }
+
+  /**
+   * @return a snapshot of the {@link OperationMetrics} recorded since the last {@link #clearOperationMetrics()}
+   */
+  synchronized Map<OperationType, OperationMetrics> getOperationMetricsDelta() {
+    return copyOf(operationMetricsDelta);
+  }
+
+  /**
+   * Start a new delta.
+   */
+  synchronized void clearOperationMetrics() {
+    operationMetricsDelta = newOperationMetrics();
+  }
+
+  /**
+   * Record a completed upload or download in both the cumulative and delta {@link OperationMetrics}.
+   *
+   * @param type       the type of operation
+   * @param blobSize   bytes transferred; ignored for failed operations
+   * @param timeMillis time taken
+   * @param successful whether the operation succeeded
+   */
+  synchronized void recordOperation(final OperationType type,
+                                    final long blobSize,
+                                    final long timeMillis,
+                                    final boolean successful)
+  {
+    record(operationMetrics.get(type), blobSize, timeMillis, successful);
+    record(operationMetricsDelta.get(type), blobSize, timeMillis, successful);
+  }
+
+  private static Map<OperationType, OperationMetrics> copyOf(final Map<OperationType, OperationMetrics> metrics) {
+    Map<OperationType, OperationMetrics> copy = new EnumMap<>(OperationType.class);
+    metrics.forEach((type, recorded) -> {
+      OperationMetrics snapshot = new OperationMetrics();
+      snapshot.setBlobSize(recorded.getBlobSize());
+      snapshot.setErrorRequests(recorded.getErrorRequests());
+      snapshot.setSuccessfulRequests(recorded.getSuccessfulRequests());
+      snapshot.setTimeOnRequests(recorded.getTimeOnRequests());
+      copy.put(type, snapshot);
+    });
+    return Collections.unmodifiableMap(copy);
+  }
+
+  private static void record(final OperationMetrics metrics,
+                             final long blobSize,
+                             final long timeMillis,
+                             final boolean successful)
+  {
+    if (successful) {
+      metrics.addSuccessfulRequest();
+      metrics.addBlobSize(blobSize);
+    }
+    else {
+      metrics.addErrorRequest();
+    }
+    metrics.addTimeOnRequests(timeMillis);
   }
 
   /**
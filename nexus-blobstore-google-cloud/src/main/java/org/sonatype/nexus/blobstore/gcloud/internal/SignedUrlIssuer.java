@@ -0,0 +1,129 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal;
+
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.annotation.Nullable;
+
+import org.sonatype.nexus.blobstore.api.BlobId;
+
+import com.google.auth.Credentials;
+import com.google.auth.ServiceAccountSigner;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.HttpMethod;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.Storage.SignUrlOption;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Issues short-lived V4 signed URLs to download content objects straight from the bucket.
+ *
+ * The {@link ServiceAccountSigner} is resolved once from the storage credentials, rather than on every call. URLs are
+ * cached per {@link BlobId} for half of their lifetime, so a hot artifact is signed about once per half lifetime
+ * however often it is requested, and every URL handed out stays valid for at least half of its lifetime.
+ */
+class SignedUrlIssuer
+{
+  private final Storage storage;
+
+  private final ServiceAccountSigner signer;
+
+  private final long expirySeconds;
+
+  private final Cache<BlobId, URL> urls;
+
+  private final AtomicLong signed = new AtomicLong();
+
+  private final AtomicLong hits = new AtomicLong();
+
+  /**
+   * @param expirySeconds how long the URLs are valid for
+   * @param cacheSize     the most URLs to cache
+   */
+  SignedUrlIssuer(final Storage storage,
+                  final ServiceAccountSigner signer,
+                  final long expirySeconds,
+                  final long cacheSize)
+  {
+    checkArgument(expirySeconds > 1, "expiry must be greater than 1 second");
+    checkArgument(cacheSize >= 0, "cache size cannot be negative");
+    this.storage = storage;
+    this.signer = signer;
+    this.expirySeconds = expirySeconds;
+    this.urls = CacheBuilder.newBuilder()
+        .maximumSize(cacheSize)
+        .expireAfterWrite(expirySeconds / 2, TimeUnit.SECONDS)
+        .build();
+  }
+
+  /**
+   * @return the {@link ServiceAccountSigner} of the storage credentials, or null if they cannot sign, such as user
+   * credentials
+   */
+  @Nullable
+  static ServiceAccountSigner signerOf(final Storage storage) {
+    Credentials credentials = storage.getOptions().getCredentials();
+    return credentials instanceof ServiceAccountSigner ? (ServiceAccountSigner) credentials : null;
+  }
+
+  /**
+   * @param content looks up the content object of the blob, only when no URL is cached; may return null
+   * @return a URL to GET the content, or null if there is no content object
+   */
+  @Nullable
+  URL get(final BlobId blobId, final Supplier<BlobInfo> content) {
+    URL url = urls.getIfPresent(blobId);
+    if (url != null) {
+      hits.incrementAndGet();
+      return url;
+    }
+    BlobInfo object = content.get();
+    if (object == null) {
+      return null;
+    }
+    // concurrent misses may both sign, which is cheaper than making one wait for the other
+    url = storage.signUrl(BlobInfo.newBuilder(object.getBucket(), object.getName()).build(), expirySeconds,
+        TimeUnit.SECONDS, SignUrlOption.withV4Signature(), SignUrlOption.signWith(signer),
+        SignUrlOption.httpMethod(HttpMethod.GET));
+    signed.incrementAndGet();
+    urls.put(blobId, url);
+    return url;
+  }
+
+  /**
+   * Forget the URL of a blob whose content moved or should no longer be handed out. URLs already handed out stay
+   * valid until they expire.
+   */
+  void invalidate(final BlobId blobId) {
+    urls.invalidate(blobId);
+  }
+
+  long getSignedCount() {
+    return signed.get();
+  }
+
+  long getHitCount() {
+    return hits.get();
+  }
+
+  long getSize() {
+    return urls.size();
+  }
+}
@@ -12,7 +12,15 @@
  */
 package org.sonatype.nexus.blobstore.gcloud.internal;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+
+import org.sonatype.nexus.blobstore.api.BlobStoreException;
 
 import com.google.cloud.storage.Blob;
 import com.google.cloud.storage.Storage;
@@ -31,4 +39,73 @@ public interface Uploader
    * @return the google {@link Blob} pointing to the content in the bucket.
    */
   Blob upload(Storage storage, String bucket, String destination, InputStream contents);
+
+  /**
+   * As {@link #upload(Storage, String, String, InputStream)}, running {@code onCommitted} as soon as the content has
+   * been committed to {@code destination}, before the upload returns.
+   *
+   * @param storage
+   * @param bucket
+   * @param destination
+   * @param contents
+   * @param onCommitted called on the uploading thread once the content is in place at {@code destination}
+   * @return the google {@link Blob} pointing to the content in the bucket.
+   */
+  default Blob upload(Storage storage,
+                      String bucket,
+                      String destination,
+                      InputStream contents,
+                      Runnable onCommitted)
+  {
+    Blob blob = upload(storage, bucket, destination, contents);
+    onCommitted.run();
+    return blob;
+  }
+
+  /**
+   * Channel variant of {@link #upload(Storage, String, String, InputStream)}. The default implementation adapts the
+   * channel to a stream; {@link Channels#newInputStream(ReadableByteChannel)} reads straight into the byte arrays of
+   * the HTTP transport, so no copy is added.
+   *
+   * @return the google {@link Blob} pointing to the content in the bucket.
+   */
+  default Blob upload(Storage storage, String bucket, String destination, ReadableByteChannel contents) {
+    return upload(storage, bucket, destination, Channels.newInputStream(contents));
+  }
+
+  /**
+   * Local file variant of {@link #upload(Storage, String, String, InputStream)}, for content whose size is already
+   * known. The default implementation streams the file; implementations may read ranges of it in parallel instead.
+   *
+   * @return the google {@link Blob} pointing to the content in the bucket.
+   */
+  default Blob upload(Storage storage, String bucket, String destination, Path file, long size) {
+    try (InputStream contents = Files.newInputStream(file)) {
+      return upload(storage, bucket, destination, contents);
+    }
+    catch (IOException e) {
+      throw new BlobStoreException("Unable to read " + file, e, null);
+    }
+  }
+
+  /**
+   * Asynchronous variant of {@link #upload(Storage, String, String, InputStream)}. The default implementation
+   * uploads on the calling thread and returns a completed future; implementations with their own threads should
+   * override it.
+   *
+   * @return a future completed with the google {@link Blob} pointing to the content in the bucket, or exceptionally
+   * if the upload failed.
+   */
+  default CompletableFuture<Blob> uploadAsync(Storage storage, String bucket, String destination,
+                                              InputStream contents)
+  {
+    CompletableFuture<Blob> result = new CompletableFuture<>();
+    try {
+      result.complete(upload(storage, bucket, destination, contents));
+    }
+    catch (RuntimeException e) {
+      result.completeExceptionally(e);
+    }
+    return result;
+  }
 }
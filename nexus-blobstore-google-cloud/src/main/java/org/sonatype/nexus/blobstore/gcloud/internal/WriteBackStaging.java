@@ -0,0 +1,504 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import org.sonatype.goodies.common.ComponentSupport;
+import org.sonatype.nexus.blobstore.api.BlobId;
+import org.sonatype.nexus.blobstore.api.BlobMetrics;
+import org.sonatype.nexus.thread.NexusThreadFactory;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.joda.time.DateTime;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Durable local staging of new blobs, uploaded to Google Cloud Storage in the background.
+ *
+ * {@link #stage} writes the content and a journal entry holding the headers and metrics of the blob to local disk,
+ * and forces both to the device before returning, so a blob is not lost once it has been acknowledged. Staged blobs
+ * are handed to a {@link Flusher} on a pool of {@code flushThreads} threads, and removed once the flusher calls
+ * {@link #complete}; failed flushes are retried after {@link #RETRY_DELAY_SECONDS}. Journal entries left behind by a
+ * crash are loaded by {@link #initialize} and flushed again after {@link #start}.
+ *
+ * Files are named {@code <hash of the blob id>-<unique suffix>.content} and {@code .properties}, so an overwrite of a
+ * staged blob never touches the files of the previous version.
+ */
+class WriteBackStaging
+    extends ComponentSupport
+{
+  /**
+   * Uploads a staged blob; must call {@link #complete} once the blob is in the bucket.
+   */
+  interface Flusher
+  {
+    void flush(StagedBlob blob) throws IOException;
+  }
+
+  static final long RETRY_DELAY_SECONDS = 10;
+
+  private static final String CONTENT_SUFFIX = ".content";
+
+  private static final String JOURNAL_SUFFIX = ".properties";
+
+  private static final String PARTIAL_SUFFIX = ".partial";
+
+  private static final String BLOB_ID_KEY = "blobId";
+
+  private static final String SHA1_KEY = "sha1";
+
+  private static final String SIZE_KEY = "size";
+
+  private static final String CREATED_KEY = "created";
+
+  private static final String SEQUENCE_KEY = "sequence";
+
+  private static final String HEADER_PREFIX = "header.";
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final Path directory;
+
+  private final int flushThreads;
+
+  private final Map<BlobId, StagedBlob> staged = new ConcurrentHashMap<>();
+
+  /**
+   * Orders the journal entries, so the latest version of a blob staged more than once within the same millisecond is
+   * the one recovered.
+   */
+  private final AtomicLong sequence = new AtomicLong();
+
+  private final AtomicLong flushed = new AtomicLong();
+
+  private final AtomicLong failures = new AtomicLong();
+
+  private Flusher flusher;
+
+  private ScheduledExecutorService executor;
+
+  WriteBackStaging(final Path directory, final int flushThreads) {
+    checkArgument(flushThreads > 0, "flush threads must be greater than 0");
+    this.directory = checkNotNull(directory);
+    this.flushThreads = flushThreads;
+  }
+
+  /**
+   * Creates the staging directory, or loads the blobs left in it by a previous run.
+   */
+  synchronized void initialize() throws IOException {
+    Files.createDirectories(directory);
+    List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+      stream.forEach(files::add);
+    }
+    for (Path file : files) {
+      String name = file.getFileName().toString();
+      if (name.endsWith(PARTIAL_SUFFIX)) {
+        // a journal entry that was never acknowledged
+        Files.deleteIfExists(file);
+      }
+      else if (name.endsWith(JOURNAL_SUFFIX)) {
+        recover(file);
+      }
+    }
+    for (Path file : files) {
+      String name = file.getFileName().toString();
+      if (name.endsWith(CONTENT_SUFFIX) && !Files.exists(journalFor(file))) {
+        // content of a blob whose journal entry was never written
+        Files.deleteIfExists(file);
+      }
+    }
+    log.info("Staging in {} holds {} blobs to upload", directory, staged.size());
+  }
+
+  /**
+   * Starts flushing the staged blobs, including any recovered by {@link #initialize}.
+   */
+  synchronized void start(final Flusher flusher) {
+    checkState(executor == null, "already started");
+    this.flusher = checkNotNull(flusher);
+    this.executor = Executors.newScheduledThreadPool(flushThreads,
+        new NexusThreadFactory("gcs-staging-flush", "nexus-blobstore-google-cloud"));
+    staged.values().forEach(blob -> schedule(blob, 0));
+  }
+
+  /**
+   * Stops flushing, interrupting the uploads in progress. Blobs not yet flushed stay staged for the next start.
+   */
+  void stop() throws InterruptedException {
+    ScheduledExecutorService stopping;
+    synchronized (this) {
+      stopping = executor;
+      executor = null;
+    }
+    if (stopping != null) {
+      stopping.shutdownNow();
+      if (!stopping.awaitTermination(1, TimeUnit.MINUTES)) {
+        log.warn("Uploads of staged blobs in {} did not stop in time", directory);
+      }
+    }
+  }
+
+  /**
+   * Writes a blob to local disk and schedules its upload. Once this returns the blob survives a crash.
+   */
+  StagedBlob stage(final BlobId blobId, final Map<String, String> headers, final InputStream content)
+      throws IOException
+  {
+    final String name = key(blobId) + '-' + UUID.randomUUID();
+    final Path contentFile = directory.resolve(name + CONTENT_SUFFIX);
+    final Path journal = directory.resolve(name + JOURNAL_SUFFIX);
+    final Path partial = directory.resolve(name + PARTIAL_SUFFIX);
+    try {
+      Hasher hasher = Hashing.sha1().newHasher();
+      long size = 0;
+      try (FileChannel channel = FileChannel.open(contentFile, StandardOpenOption.CREATE_NEW,
+          StandardOpenOption.WRITE)) {
+        OutputStream out = Channels.newOutputStream(channel);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = content.read(buffer)) >= 0) {
+          hasher.putBytes(buffer, 0, n);
+          out.write(buffer, 0, n);
+          size += n;
+        }
+        channel.force(true);
+      }
+      BlobMetrics metrics = new BlobMetrics(new DateTime(), hasher.hash().toString(), size);
+
+      Properties properties = new Properties();
+      properties.setProperty(BLOB_ID_KEY, blobId.asUniqueString());
+      properties.setProperty(SHA1_KEY, metrics.getSha1Hash());
+      properties.setProperty(SIZE_KEY, Long.toString(size));
+      properties.setProperty(CREATED_KEY, Long.toString(metrics.getCreationTime().getMillis()));
+      final long order = sequence.incrementAndGet();
+      properties.setProperty(SEQUENCE_KEY, Long.toString(order));
+      headers.forEach((header, value) -> properties.setProperty(HEADER_PREFIX + header, value));
+      try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE_NEW,
+          StandardOpenOption.WRITE)) {
+        properties.store(Channels.newOutputStream(channel), null);
+        channel.force(true);
+      }
+      // the blob is staged once its journal entry has its final name
+      Files.move(partial, journal, StandardCopyOption.ATOMIC_MOVE);
+      syncDirectory();
+
+      StagedBlob blob = new StagedBlob(blobId, headers, metrics, order, contentFile, journal);
+      StagedBlob previous = staged.put(blobId, blob);
+      if (previous != null) {
+        delete(previous);
+      }
+      schedule(blob, 0);
+      return blob;
+    }
+    catch (IOException | RuntimeException e) {
+      deleteQuietly(partial);
+      deleteQuietly(journal);
+      deleteQuietly(contentFile);
+      throw e;
+    }
+  }
+
+  /**
+   * @return the staged blob, or null if it is not staged
+   */
+  @Nullable
+  StagedBlob get(final BlobId blobId) {
+    return staged.get(blobId);
+  }
+
+  /**
+   * @return true if the blob is staged and not yet flushed, discarded or replaced
+   */
+  boolean isCurrent(final StagedBlob blob) {
+    return staged.get(blob.getBlobId()) == blob;
+  }
+
+  /**
+   * @return the staged content, or null if the blob was flushed or discarded in the meantime
+   */
+  @Nullable
+  InputStream open(final StagedBlob blob) throws IOException {
+    try {
+      return Files.newInputStream(blob.content);
+    }
+    catch (NoSuchFileException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Removes a blob uploaded by the {@link Flusher}.
+   */
+  void complete(final StagedBlob blob) {
+    if (staged.remove(blob.getBlobId(), blob)) {
+      flushed.incrementAndGet();
+      delete(blob);
+    }
+  }
+
+  /**
+   * Uploads a staged blob on the calling thread, for operations that need the blob in the bucket.
+   */
+  void flushNow(final BlobId blobId) throws IOException {
+    StagedBlob blob = staged.get(blobId);
+    if (blob != null) {
+      checkState(flusher != null, "not started");
+      flusher.flush(blob);
+    }
+  }
+
+  /**
+   * Removes a blob without uploading it.
+   *
+   * @return the discarded blob, or null if it is not staged
+   */
+  @Nullable
+  StagedBlob discard(final BlobId blobId) {
+    StagedBlob blob = staged.remove(blobId);
+    if (blob != null) {
+      delete(blob);
+    }
+    return blob;
+  }
+
+  /**
+   * Removes every staged blob and the staging directory, for a blob store that is being removed.
+   */
+  synchronized void clear() throws IOException {
+    staged.clear();
+    if (Files.isDirectory(directory)) {
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+        stream.forEach(this::deleteQuietly);
+      }
+      Files.deleteIfExists(directory);
+    }
+  }
+
+  /**
+   * @return the number of blobs waiting to be uploaded
+   */
+  int getDepth() {
+    return staged.size();
+  }
+
+  /**
+   * @return the size of the content waiting to be uploaded
+   */
+  long getStagedBytes() {
+    return staged.values().stream().mapToLong(blob -> blob.metrics.getContentSize()).sum();
+  }
+
+  /**
+   * @return how long the oldest blob waiting to be uploaded has been staged, in milliseconds
+   */
+  long getFlushLagMillis() {
+    long now = System.currentTimeMillis();
+    return staged.values().stream()
+        .mapToLong(blob -> now - blob.metrics.getCreationTime().getMillis())
+        .max()
+        .orElse(0);
+  }
+
+  long getFlushedCount() {
+    return flushed.get();
+  }
+
+  long getFailureCount() {
+    return failures.get();
+  }
+
+  private synchronized void schedule(final StagedBlob blob, final long delaySeconds) {
+    if (executor == null) {
+      // picked up by the next start
+      return;
+    }
+    try {
+      executor.schedule(() -> flush(blob), delaySeconds, TimeUnit.SECONDS);
+    }
+    catch (RejectedExecutionException e) {
+      log.debug("Not scheduling upload of staged blob {}, staging is stopping", blob.getBlobId());
+    }
+  }
+
+  private void flush(final StagedBlob blob) {
+    if (!isCurrent(blob)) {
+      return;
+    }
+    try {
+      flusher.flush(blob);
+    }
+    catch (Exception e) {
+      failures.incrementAndGet();
+      log.warn("Unable to upload staged blob {}, retrying in {} seconds: {}", blob.getBlobId(), RETRY_DELAY_SECONDS,
+          e.toString());
+      log.debug("Upload of staged blob {} failed", blob.getBlobId(), e);
+      schedule(blob, RETRY_DELAY_SECONDS);
+    }
+  }
+
+  private void recover(final Path journal) throws IOException {
+    Path contentFile = contentFor(journal);
+    if (!Files.exists(contentFile)) {
+      log.warn("Discarding staged blob {}, its content is missing", journal);
+      Files.deleteIfExists(journal);
+      return;
+    }
+    Properties properties = new Properties();
+    try (InputStream in = Files.newInputStream(journal)) {
+      properties.load(in);
+    }
+    Map<String, String> headers = new HashMap<>();
+    for (String key : properties.stringPropertyNames()) {
+      if (key.startsWith(HEADER_PREFIX)) {
+        headers.put(key.substring(HEADER_PREFIX.length()), properties.getProperty(key));
+      }
+    }
+    BlobId blobId = new BlobId(properties.getProperty(BLOB_ID_KEY));
+    BlobMetrics metrics = new BlobMetrics(new DateTime(Long.parseLong(properties.getProperty(CREATED_KEY))),
+        properties.getProperty(SHA1_KEY), Long.parseLong(properties.getProperty(SIZE_KEY)));
+    long order = Long.parseLong(properties.getProperty(SEQUENCE_KEY));
+    sequence.accumulateAndGet(order, Math::max);
+    StagedBlob blob = new StagedBlob(blobId, headers, metrics, order, contentFile, journal);
+
+    // a blob staged more than once keeps its latest version
+    StagedBlob other = staged.get(blobId);
+    if (other != null && other.sequence > order) {
+      delete(blob);
+    }
+    else {
+      staged.put(blobId, blob);
+      if (other != null) {
+        delete(other);
+      }
+    }
+  }
+
+  /**
+   * Forces the rename of a journal entry to the device, where the file system supports it.
+   */
+  private void syncDirectory() {
+    try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+      channel.force(true);
+    }
+    catch (IOException e) {
+      log.trace("Unable to sync directory {}", directory, e);
+    }
+  }
+
+  private void delete(final StagedBlob blob) {
+    // the journal entry goes first, so a crash in between leaves only orphaned content
+    deleteQuietly(blob.journal);
+    deleteQuietly(blob.content);
+  }
+
+  private void deleteQuietly(final Path file) {
+    try {
+      Files.deleteIfExists(file);
+    }
+    catch (IOException e) {
+      log.debug("Unable to delete {} from staging", file, e);
+    }
+  }
+
+  private static Path contentFor(final Path journal) {
+    String name = journal.getFileName().toString();
+    return journal.resolveSibling(name.substring(0, name.length() - JOURNAL_SUFFIX.length()) + CONTENT_SUFFIX);
+  }
+
+  private static Path journalFor(final Path content) {
+    String name = content.getFileName().toString();
+    return content.resolveSibling(name.substring(0, name.length() - CONTENT_SUFFIX.length()) + JOURNAL_SUFFIX);
+  }
+
+  private static String key(final BlobId blobId) {
+    return Hashing.sha1().hashString(blobId.asUniqueString(), StandardCharsets.UTF_8).toString();
+  }
+
+  /**
+   * A blob written to local disk and waiting to be uploaded.
+   */
+  static class StagedBlob
+  {
+    private final BlobId blobId;
+
+    private final Map<String, String> headers;
+
+    private final BlobMetrics metrics;
+
+    private final long sequence;
+
+    private final Path content;
+
+    private final Path journal;
+
+    StagedBlob(final BlobId blobId,
+               final Map<String, String> headers,
+               final BlobMetrics metrics,
+               final long sequence,
+               final Path content,
+               final Path journal)
+    {
+      this.blobId = blobId;
+      this.headers = Collections.unmodifiableMap(new HashMap<>(headers));
+      this.metrics = metrics;
+      this.sequence = sequence;
+      this.content = content;
+      this.journal = journal;
+    }
+
+    BlobId getBlobId() {
+      return blobId;
+    }
+
+    Map<String, String> getHeaders() {
+      return headers;
+    }
+
+    BlobMetrics getMetrics() {
+      return metrics;
+    }
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+import org.sonatype.nexus.blobstore.api.BlobId
+
+import com.google.common.hash.Hashing
+import com.google.common.io.ByteStreams
+import spock.lang.Specification
+
+class ContentCacheTest
+    extends Specification
+{
+
+  Path directory
+
+  ContentCache cache
+
+  def setup() {
+    directory = Files.createTempDirectory('content-cache')
+    cache = new ContentCache(directory.resolve('test'), 1000L)
+    cache.initialize()
+  }
+
+  def cleanup() {
+    directory.toFile().deleteDir()
+  }
+
+  def "content is cached once the first reader has read all of it"() {
+    given:
+      BlobId blobId = new BlobId('a')
+      byte[] content = 'hello'.bytes
+
+    when: 'the first read streams from the source'
+      def first = read(cache.populate(blobId, sha1(content), content.length, new ByteArrayInputStream(content)))
+
+    then:
+      first == content
+      cache.entryCount == 1
+      cache.size == content.length
+
+    when: 'the second is served from the cache'
+      def cached = cache.get(blobId, sha1(content))
+
+    then:
+      read(cached) == content
+      cache.hitCount == 1L
+      cache.bytesSaved == content.length
+  }
+
+  def "content is not cached when the reader stops early or the SHA-1 does not match"() {
+    given:
+      byte[] content = 'hello'.bytes
+
+    when:
+      cache.populate(new BlobId('partial'), sha1(content), content.length, new ByteArrayInputStream(content)).close()
+      read(cache.populate(new BlobId('corrupt'), sha1('other'.bytes), content.length,
+          new ByteArrayInputStream(content)))
+
+    then:
+      cache.entryCount == 0
+      cache.get(new BlobId('partial'), sha1(content)) == null
+      cache.get(new BlobId('corrupt'), sha1('other'.bytes)) == null
+      cache.missCount == 2L
+      Files.list(directory.resolve('test')).count() == 0L
+  }
+
+  def "entries with a different SHA-1 than the blob attributes are misses"() {
+    given:
+      BlobId blobId = new BlobId('a')
+      populate(blobId, 'hello'.bytes)
+
+    expect:
+      cache.get(blobId, sha1('changed'.bytes)) == null
+  }
+
+  def "least recently used entries are evicted beyond the capacity"() {
+    given:
+      byte[] content = new byte[100]
+      (1..11).each { populate(new BlobId("blob-${it}"), content) }
+
+    expect:
+      cache.size <= 1000L
+      cache.evictionCount == 1L
+      cache.get(new BlobId('blob-1'), sha1(content)) == null
+      cache.get(new BlobId('blob-11'), sha1(content)) != null
+  }
+
+  def "blobs larger than a tenth of the capacity are not cached"() {
+    given:
+      byte[] content = new byte[101]
+      InputStream source = new ByteArrayInputStream(content)
+
+    expect:
+      cache.populate(new BlobId('large'), sha1(content), content.length, source).is(source)
+  }
+
+  def "invalidation removes entries and discards copies being written"() {
+    given:
+      BlobId cached = new BlobId('cached')
+      BlobId writing = new BlobId('writing')
+      populate(cached, 'hello'.bytes)
+      InputStream inFlight = cache.populate(writing, sha1('world'.bytes), 5, new ByteArrayInputStream('world'.bytes))
+
+    when:
+      cache.invalidate(cached)
+      cache.invalidate(writing)
+      read(inFlight)
+
+    then:
+      cache.entryCount == 0
+      cache.get(cached, sha1('hello'.bytes)) == null
+      cache.get(writing, sha1('world'.bytes)) == null
+  }
+
+  def "a copy invalidated while being written does not commit over the copy that replaced it"() {
+    given: 'a reader part way through the old content'
+      BlobId blobId = new BlobId('replaced')
+      byte[] old = 'old content'.bytes
+      byte[] replaced = 'new content'.bytes
+      InputStream stale = cache.populate(blobId, sha1(old), old.length, new ByteArrayInputStream(old))
+      stale.read(new byte[4])
+
+    when: 'the blob is overwritten and read again before the first reader finishes'
+      cache.invalidate(blobId)
+      InputStream current = cache.populate(blobId, sha1(replaced), replaced.length,
+          new ByteArrayInputStream(replaced))
+      current.read(new byte[4])
+      read(stale)
+      read(current)
+
+    then:
+      cache.entryCount == 1
+      cache.get(blobId, sha1(old)) == null
+      read(cache.get(blobId, sha1(replaced))) == replaced
+      Files.list(directory.resolve('test')).count() == 1L
+  }
+
+  def "entries survive a restart"() {
+    given:
+      populate(new BlobId('a'), 'hello'.bytes)
+
+    when:
+      ContentCache restarted = new ContentCache(directory.resolve('test'), 1000L)
+      restarted.initialize()
+
+    then:
+      read(restarted.get(new BlobId('a'), sha1('hello'.bytes))) == 'hello'.bytes
+  }
+
+  private void populate(BlobId blobId, byte[] content) {
+    read(cache.populate(blobId, sha1(content), content.length, new ByteArrayInputStream(content)))
+  }
+
+  private static byte[] read(InputStream input) {
+    input.withCloseable { ByteStreams.toByteArray(it) }
+  }
+
+  private static String sha1(byte[] content) {
+    Hashing.sha1().hashBytes(content).toString()
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal
+
+import com.google.common.io.ByteStreams
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import static org.sonatype.nexus.blobstore.api.BlobStore.BLOB_NAME_HEADER
+import static org.sonatype.nexus.blobstore.api.BlobStore.CONTENT_TYPE_HEADER
+
+class ContentCompressionTest
+    extends Specification
+{
+
+  ContentCompression compression = new ContentCompression(6, 'text/*, application/json, .pom')
+
+  @Unroll
+  def "blob #name of type #type is compressed: #accepted"() {
+    given:
+      Map<String, String> headers = [:]
+      if (name) {
+        headers[BLOB_NAME_HEADER] = name
+      }
+      if (type) {
+        headers[CONTENT_TYPE_HEADER] = type
+      }
+
+    expect:
+      compression.accepts(headers) == accepted
+
+    where:
+      name                  | type                       || accepted
+      'foo/1.0/foo-1.0.pom' | null                       || true
+      'FOO-1.0.POM'         | 'application/octet-stream' || true
+      'foo-1.0.jar'         | 'application/java-archive' || false
+      'index'               | 'text/html; charset=UTF-8' || true
+      'metadata'            | 'Application/JSON'         || true
+      'metadata'            | 'application/jsonp'        || false
+      null                  | null                       || false
+  }
+
+  def "compressed content decompresses to the original and is counted"() {
+    given:
+      byte[] content = ('<project><version>1.0</version></project>\n' * 100).bytes
+
+    when:
+      byte[] stored
+      compression.compress(new ByteArrayInputStream(content)).withCloseable { stored = ByteStreams.toByteArray(it) }
+
+    then:
+      stored.length < content.length / 10
+      ContentCompression.decompress(stored, ContentCompression.DEFLATE) == content
+      ByteStreams.toByteArray(ContentCompression.decompress(new ByteArrayInputStream(stored),
+          ContentCompression.DEFLATE)) == content
+      compression.blobsCompressed == 1L
+      compression.bytesIn == content.length
+      compression.bytesStored == stored.length
+  }
+
+  def "content not read to the end is not counted"() {
+    given:
+      byte[] content = ('text' * 10000).bytes
+
+    when:
+      compression.compress(new ByteArrayInputStream(content)).withCloseable { it.read(new byte[10]) }
+
+    then:
+      compression.blobsCompressed == 0L
+      compression.bytesIn == 0L
+  }
+
+  def "content without an encoding is not decompressed"() {
+    given:
+      byte[] content = 'raw'.bytes
+
+    expect:
+      ContentCompression.decompress(content, null).is(content)
+  }
+
+  def "unknown encodings are rejected"() {
+    when:
+      ContentCompression.decompress(new ByteArrayInputStream(new byte[0]), 'zstd')
+
+    then:
+      thrown(IllegalArgumentException)
+  }
+}
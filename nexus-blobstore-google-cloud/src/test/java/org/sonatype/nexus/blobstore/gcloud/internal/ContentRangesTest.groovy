@@ -0,0 +1,115 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal
+
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+
+import com.google.common.io.ByteStreams
+import spock.lang.Specification
+
+/**
+ * {@link ContentRanges} tests against a sparse 5 GB file standing in for a large object.
+ */
+class ContentRangesTest
+    extends Specification
+{
+
+  static final long SIZE = 5L * 1024 * 1024 * 1024
+
+  static final long MARKER_OFFSET = 4L * 1024 * 1024 * 1024 + 12345
+
+  static final byte[] MARKER = 'the middle of a very large docker layer'.bytes
+
+  static Path content
+
+  def setupSpec() {
+    content = Files.createTempFile('content-ranges', '.bytes')
+    FileChannel.open(content, StandardOpenOption.WRITE).withCloseable { channel ->
+      // only the marker and the last byte take up disk space
+      channel.write(ByteBuffer.wrap(MARKER), MARKER_OFFSET)
+      channel.write(ByteBuffer.wrap([1] as byte[]), SIZE - 1)
+    }
+  }
+
+  def cleanupSpec() {
+    Files.deleteIfExists(content)
+  }
+
+  def "a range deep into a multi-GB object fetches only the bytes of the range"() {
+    given:
+      DelegatingReadChannel channel = new DelegatingReadChannel(FileChannel.open(content))
+
+    when:
+      byte[] range = ContentRanges.open(channel, MARKER_OFFSET, MARKER.length, 0).withCloseable {
+        ByteStreams.toByteArray(it)
+      }
+
+    then:
+      range == MARKER
+      channel.bytesRead == MARKER.length
+      channel.chunkSize == MARKER.length
+  }
+
+  def "a range longer than a chunk is fetched in chunks of the configured size"() {
+    given:
+      DelegatingReadChannel channel = new DelegatingReadChannel(FileChannel.open(content))
+
+    when:
+      long read = ContentRanges.open(channel, MARKER_OFFSET, 64L * 1024 * 1024, 16 * 1024 * 1024).withCloseable {
+        ByteStreams.exhaust(it)
+      }
+
+    then:
+      read == 64L * 1024 * 1024
+      channel.bytesRead == read
+      channel.chunkSize == 16 * 1024 * 1024
+  }
+
+  def "a range past the end of the object ends with the object"() {
+    given:
+      DelegatingReadChannel channel = new DelegatingReadChannel(FileChannel.open(content))
+
+    when:
+      byte[] range = ContentRanges.open(channel, SIZE - 1, 100, 0).withCloseable { ByteStreams.toByteArray(it) }
+
+    then:
+      range == [1] as byte[]
+  }
+
+  def "a slice of a stream skips the bytes before the range"() {
+    when:
+      byte[] range = ContentRanges.slice(new ByteArrayInputStream('0123456789'.bytes), 3, 4).withCloseable {
+        ByteStreams.toByteArray(it)
+      }
+
+    then:
+      new String(range) == '3456'
+  }
+
+  def "negative ranges are rejected"() {
+    when:
+      ContentRanges.slice(new ByteArrayInputStream(new byte[0]), offset, length)
+
+    then:
+      thrown(IllegalArgumentException)
+
+    where:
+      offset | length
+      -1     | 1
+      0      | -1
+  }
+}
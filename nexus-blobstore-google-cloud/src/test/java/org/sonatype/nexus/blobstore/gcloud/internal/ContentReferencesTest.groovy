@@ -0,0 +1,70 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal
+
+import org.sonatype.nexus.blobstore.MockBlobStoreConfiguration
+
+import spock.lang.Specification
+
+class ContentReferencesTest
+    extends Specification
+{
+
+  ContentReferences references = new ContentReferences(InMemoryDatastore.create(FaultInjector.none()),
+      new MockBlobStoreConfiguration(name: 'deduplicated'))
+
+  def "only the first reference is reported as first"() {
+    expect:
+      references.acquire('abc')
+      !references.acquire('abc')
+      references.count('abc') == 2L
+      !references.acquire('abc')
+      references.count('abc') == 3L
+  }
+
+  def "released content is removed once unreferenced"() {
+    given:
+      references.acquire('abc')
+      references.acquire('abc')
+
+    expect:
+      references.release('abc') == 1L
+      !references.removeIfUnreferenced('abc')
+      references.release('abc') == 0L
+      references.removeIfUnreferenced('abc')
+      references.count('abc') == 0L
+
+    and: 'the next reference is the first again'
+      references.acquire('abc')
+  }
+
+  def "a reference taken between the release and the removal keeps the content"() {
+    given:
+      references.acquire('abc')
+      references.release('abc')
+
+    when:
+      boolean first = references.acquire('abc')
+
+    then:
+      first
+      !references.removeIfUnreferenced('abc')
+      references.count('abc') == 1L
+  }
+
+  def "releasing unreferenced content does not go below zero"() {
+    expect:
+      references.release('abc') == 0L
+      references.count('abc') == 0L
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal
+
+import org.sonatype.nexus.blobstore.api.BlobStoreException
+
+import com.google.cloud.storage.BlobInfo
+import spock.lang.Specification
+
+class Crc32cChecksumsTest
+    extends Specification
+{
+
+  def "checksum is computed while streaming and encoded like Google Cloud Storage"() {
+    given:
+      def hashing = Crc32cChecksums.hashing(new ByteArrayInputStream('123456789'.bytes))
+
+    when:
+      hashing.bytes
+
+    then: 'the standard CRC32C check value 0xE3069283, base64 encoded big-endian'
+      Crc32cChecksums.encode(hashing.hash()) == '4waSgw=='
+  }
+
+  def "verify matches on equal checksums"() {
+    when:
+      Crc32cChecksums.verify(BlobInfo.newBuilder('bucket', 'name').setCrc32c('4waSgw==').build(), '4waSgw==')
+
+    then:
+      noExceptionThrown()
+  }
+
+  def "verify throws on checksum mismatch"() {
+    when:
+      Crc32cChecksums.verify(BlobInfo.newBuilder('bucket', 'name').setCrc32c('AAAAAA==').build(), '4waSgw==')
+
+    then:
+      thrown(BlobStoreException)
+  }
+}
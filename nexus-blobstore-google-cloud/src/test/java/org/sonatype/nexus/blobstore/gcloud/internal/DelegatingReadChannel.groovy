@@ -20,13 +20,18 @@ import com.google.cloud.RestorableState
 
 /**
  * Custom {@link ReadChannel} implementation useful for testing; delegates to a {@link FileChannel} so that
- * we can simulate content returned from a Google {@link com.google.cloud.storage.Blob}.
+ * we can simulate content returned from a Google {@link com.google.cloud.storage.Blob}. Seeks move the file position,
+ * and the chunk size and the bytes read are recorded.
  */
 class DelegatingReadChannel
     implements ReadChannel
 {
   private final FileChannel delegate
 
+  int chunkSize
+
+  long bytesRead
+
   DelegatingReadChannel(final FileChannel delegate) {
     this.delegate = delegate
   }
@@ -43,12 +48,12 @@ class DelegatingReadChannel
 
   @Override
   void seek(final long position) throws IOException {
-    //ignored
+    delegate.position(position)
   }
 
   @Override
   void setChunkSize(final int chunkSize) {
-    //ignored
+    this.chunkSize = chunkSize
   }
 
   @Override
@@ -58,6 +63,10 @@ class DelegatingReadChannel
 
   @Override
   int read(final ByteBuffer dst) throws IOException {
-    return delegate.read(dst)
+    int read = delegate.read(dst)
+    if (read > 0) {
+      bytesRead += read
+    }
+    return read
   }
 }
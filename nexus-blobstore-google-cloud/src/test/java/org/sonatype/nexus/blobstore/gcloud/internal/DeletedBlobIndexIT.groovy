@@ -45,7 +45,7 @@ class DeletedBlobIndexIT extends Specification {
     }
 
     def setup() {
-        deletedBlobIndex = new DeletedBlobIndex(datastoreFactory, config)
+        deletedBlobIndex = new DeletedBlobIndex(datastoreFactory.create(config), config)
         deletedBlobIndex.initialize()
     }
 
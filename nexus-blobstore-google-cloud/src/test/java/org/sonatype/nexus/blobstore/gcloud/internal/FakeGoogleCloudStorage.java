@@ -0,0 +1,126 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.api.gax.retrying.RetrySettings;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BucketInfo;
+import com.google.cloud.storage.FakeBuckets;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.Storage.BlobTargetOption;
+import com.google.cloud.storage.Storage.ComposeRequest;
+import com.google.cloud.storage.Storage.ComposeRequest.SourceBlob;
+import com.google.cloud.storage.StorageOptions;
+import com.google.cloud.storage.contrib.nio.testing.LocalStorageHelper;
+import com.google.cloud.storage.spi.v1.StorageRpc;
+import org.threeten.bp.Duration;
+
+/**
+ * In-process, in-memory {@link Storage} for tests and benchmarks, built on the google-cloud-nio
+ * {@link LocalStorageHelper} fake.
+ *
+ * On top of that fake it:
+ * <ul>
+ *   <li>passes every RPC through a {@link FaultInjector}, beneath the client's retry handling</li>
+ *   <li>returns {@link com.google.cloud.storage.Bucket}s bound to itself</li>
+ *   <li>implements compose requests by concatenating the sources, passing the compose call itself through the
+ *   {@link FaultInjector} too</li>
+ *   <li>answers batched gets one blob at a time, as the fake does not implement batches</li>
+ *   <li>gives the blobs it gets a generation, their update time, as the fake keeps none; generation preconditions
+ *   are still not checked</li>
+ *   <li>grants every permission asked for by {@link Storage#testIamPermissions}, which the fake does not implement</li>
+ * </ul>
+ */
+public final class FakeGoogleCloudStorage
+{
+  /**
+   * Retries quickly, so injected faults cost little wall clock time.
+   */
+  static final RetrySettings RETRY_SETTINGS = RetrySettings.newBuilder()
+      .setMaxAttempts(6)
+      .setInitialRetryDelay(Duration.ofMillis(5))
+      .setRetryDelayMultiplier(2.0)
+      .setMaxRetryDelay(Duration.ofMillis(100))
+      .setTotalTimeout(Duration.ofSeconds(30))
+      .setInitialRpcTimeout(Duration.ofSeconds(30))
+      .setRpcTimeoutMultiplier(1.0)
+      .setMaxRpcTimeout(Duration.ofSeconds(30))
+      .build();
+
+  private FakeGoogleCloudStorage() {
+  }
+
+  public static Storage create(final FaultInjector faults) {
+    // the fake rejects calls with options unless asked not to, and the blob store passes options on most calls
+    StorageRpc rpc = faults.wrap(StorageRpc.class, (StorageRpc) LocalStorageHelper.customOptions(false).getRpc());
+    Storage delegate = LocalStorageHelper.getOptions().toBuilder()
+        .setServiceRpcFactory((StorageOptions options) -> rpc)
+        .setRetrySettings(RETRY_SETTINGS)
+        .build()
+        .getService();
+
+    Storage[] self = new Storage[1];
+    self[0] = (Storage) Proxy.newProxyInstance(Storage.class.getClassLoader(), new Class<?>[]{Storage.class},
+        (proxy, method, args) -> {
+          if (method.getReturnType() == com.google.cloud.storage.Bucket.class) {
+            // buckets always exist in the fake
+            String name = args[0] instanceof BucketInfo ? ((BucketInfo) args[0]).getName() : (String) args[0];
+            return FakeBuckets.bind(self[0], name);
+          }
+          if ("compose".equals(method.getName())) {
+            faults.beforeCall(method);
+            return compose(delegate, (ComposeRequest) args[0]);
+          }
+          if ("get".equals(method.getName()) && (args[0] instanceof Iterable || args[0] instanceof BlobId[])) {
+            Iterable<BlobId> blobIds = args[0] instanceof Iterable ?
+                (Iterable<BlobId>) args[0] : Arrays.asList((BlobId[]) args[0]);
+            List<com.google.cloud.storage.Blob> found = new ArrayList<>();
+            blobIds.forEach(blobId -> found.add(delegate.get(blobId)));
+            return found;
+          }
+          if ("testIamPermissions".equals(method.getName())) {
+            return Collections.nCopies(((List<?>) args[1]).size(), true);
+          }
+          Object result = FaultInjector.invoke(delegate, method, args);
+          if ("get".equals(method.getName()) && result instanceof com.google.cloud.storage.Blob) {
+            return withGeneration((com.google.cloud.storage.Blob) result);
+          }
+          return result;
+        });
+    return self[0];
+  }
+
+  private static com.google.cloud.storage.Blob withGeneration(final com.google.cloud.storage.Blob blob) {
+    if (blob.getGeneration() != null || blob.getUpdateTime() == null) {
+      return blob;
+    }
+    return blob.toBuilder().setBlobId(BlobId.of(blob.getBucket(), blob.getName(), blob.getUpdateTime())).build();
+  }
+
+  private static com.google.cloud.storage.Blob compose(final Storage storage, final ComposeRequest request) {
+    String bucket = request.getTarget().getBucket();
+    ByteArrayOutputStream composed = new ByteArrayOutputStream();
+    for (SourceBlob source : request.getSourceBlobs()) {
+      byte[] content = storage.readAllBytes(BlobId.of(bucket, source.getName()));
+      composed.write(content, 0, content.length);
+    }
+    return storage.create(request.getTarget(), composed.toByteArray(), BlobTargetOption.disableGzipContent());
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.cloud.datastore.DatastoreException;
+import com.google.cloud.storage.StorageException;
+import com.google.common.base.Throwables;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Injects faults into calls made through Google Cloud client interfaces, for tests and benchmarks that run against
+ * in-process fakes or local emulators.
+ *
+ * Every call (other than {@link Object} methods) is delayed by the configured latency, then fails with the configured
+ * probabilities:
+ * <ul>
+ *   <li>throttled: HTTP 429 for Storage, RESOURCE_EXHAUSTED for Datastore</li>
+ *   <li>server error: HTTP 503 for Storage, UNAVAILABLE for Datastore</li>
+ * </ul>
+ *
+ * Wrapping the clients' RPC interfaces ({@link com.google.cloud.storage.spi.v1.StorageRpc},
+ * {@link com.google.cloud.datastore.spi.v1.DatastoreRpc}) places the faults below the clients' own retry handling,
+ * as a real outage would be.
+ */
+public class FaultInjector
+{
+  static final int THROTTLED_STORAGE_CODE = 429;
+
+  static final int SERVER_ERROR_STORAGE_CODE = 503;
+
+  static final int THROTTLED_DATASTORE_CODE = 8;
+
+  static final int SERVER_ERROR_DATASTORE_CODE = 14;
+
+  private volatile long latencyNanos;
+
+  private volatile double throttleRate;
+
+  private volatile double serverErrorRate;
+
+  private final AtomicLong calls = new AtomicLong();
+
+  private final AtomicLong throttled = new AtomicLong();
+
+  private final AtomicLong serverErrors = new AtomicLong();
+
+  /**
+   * @return an injector that does nothing until configured
+   */
+  public static FaultInjector none() {
+    return new FaultInjector();
+  }
+
+  /**
+   * Delay every call by the given latency.
+   */
+  public FaultInjector withLatency(final long latency, final TimeUnit unit) {
+    checkArgument(latency >= 0, "latency cannot be negative");
+    this.latencyNanos = unit.toNanos(latency);
+    return this;
+  }
+
+  /**
+   * Fail the given fraction (0 to 1) of calls as throttled.
+   */
+  public FaultInjector withThrottling(final double rate) {
+    checkArgument(rate >= 0 && rate <= 1, "rate must be between 0 and 1");
+    this.throttleRate = rate;
+    return this;
+  }
+
+  /**
+   * Fail the given fraction (0 to 1) of calls with a server error.
+   */
+  public FaultInjector withServerErrors(final double rate) {
+    checkArgument(rate >= 0 && rate <= 1, "rate must be between 0 and 1");
+    this.serverErrorRate = rate;
+    return this;
+  }
+
+  /**
+   * @return the number of calls seen, including those that failed
+   */
+  public long getCalls() {
+    return calls.get();
+  }
+
+  public long getThrottled() {
+    return throttled.get();
+  }
+
+  public long getServerErrors() {
+    return serverErrors.get();
+  }
+
+  /**
+   * Called before each call is passed on to the wrapped client.
+   *
+   * @param method the client method being called
+   * @throws RuntimeException if a fault is injected
+   */
+  protected void beforeCall(final Method method) {
+    calls.incrementAndGet();
+    if (latencyNanos > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(latencyNanos);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException(e);
+      }
+    }
+    double roll = ThreadLocalRandom.current().nextDouble();
+    if (roll < throttleRate) {
+      throttled.incrementAndGet();
+      throw fault(method, true);
+    }
+    if (roll < throttleRate + serverErrorRate) {
+      serverErrors.incrementAndGet();
+      throw fault(method, false);
+    }
+  }
+
+  /**
+   * @return the exception the client behind {@code method} would raise for the fault
+   */
+  protected RuntimeException fault(final Method method, final boolean throttle) {
+    String message = "injected " + (throttle ? "throttling" : "server error") + " in " + method.getName();
+    if (method.getDeclaringClass().getName().startsWith("com.google.cloud.datastore")) {
+      return throttle ?
+          new DatastoreException(THROTTLED_DATASTORE_CODE, message, "RESOURCE_EXHAUSTED") :
+          new DatastoreException(SERVER_ERROR_DATASTORE_CODE, message, "UNAVAILABLE");
+    }
+    return new StorageException(throttle ? THROTTLED_STORAGE_CODE : SERVER_ERROR_STORAGE_CODE, message);
+  }
+
+  /**
+   * @return a proxy of {@code type} that calls {@link #beforeCall(Method)} and then {@code delegate}
+   */
+  public <T> T wrap(final Class<T> type, final T delegate) {
+    InvocationHandler handler = (proxy, method, args) -> {
+      if (method.getDeclaringClass() != Object.class) {
+        beforeCall(method);
+      }
+      return invoke(delegate, method, args);
+    };
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler));
+  }
+
+  static Object invoke(final Object delegate, final Method method, final Object[] args) {
+    try {
+      return method.invoke(delegate, args);
+    }
+    catch (InvocationTargetException e) {
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IllegalStateException(e.getCause());
+    }
+    catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal
+
+import java.util.concurrent.TimeUnit
+
+import com.google.cloud.datastore.Datastore
+import com.google.cloud.datastore.DatastoreException
+import com.google.cloud.storage.BlobId
+import com.google.cloud.storage.BlobInfo
+import com.google.cloud.storage.Storage
+import com.google.cloud.storage.StorageException
+import com.google.common.base.Stopwatch
+import spock.lang.Specification
+
+class FaultInjectorTest
+    extends Specification
+{
+
+  def "storage RPC faults are retried by the client"() {
+    given:
+      FaultInjector faults = FaultInjector.none()
+      Storage storage = FakeGoogleCloudStorage.create(faults)
+      (1..200).each {
+        storage.create(BlobInfo.newBuilder('bucket', "blob-${it}").build(), 'hello'.bytes)
+      }
+
+    when: 'idempotent reads run against a flaky service'
+      faults.withThrottling(0.05d).withServerErrors(0.05d)
+      def contents = (1..200).collect { new String(storage.readAllBytes(BlobId.of('bucket', "blob-${it}"))) }
+
+    then:
+      contents.every { it == 'hello' }
+      faults.throttled + faults.serverErrors > 0
+  }
+
+  def "storage RPC faults surface once retries are exhausted"() {
+    given:
+      Storage storage = FakeGoogleCloudStorage.create(FaultInjector.none().withThrottling(1.0d))
+
+    when:
+      storage.readAllBytes(BlobId.of('bucket', 'missing'))
+
+    then:
+      StorageException e = thrown()
+      e.code == FaultInjector.THROTTLED_STORAGE_CODE
+  }
+
+  def "datastore calls fail with datastore codes"() {
+    given:
+      Datastore datastore = InMemoryDatastore.create(FaultInjector.none().withServerErrors(1.0d))
+
+    when:
+      datastore.get(datastore.newKeyFactory().setKind('kind').newKey('name'))
+
+    then:
+      DatastoreException e = thrown()
+      e.code == FaultInjector.SERVER_ERROR_DATASTORE_CODE
+      e.reason == 'UNAVAILABLE'
+  }
+
+  def "calls are delayed by the injected latency"() {
+    given:
+      Storage storage = FakeGoogleCloudStorage.create(FaultInjector.none().withLatency(50, TimeUnit.MILLISECONDS))
+      Stopwatch stopwatch = Stopwatch.createStarted()
+
+    when:
+      storage.create(BlobInfo.newBuilder('bucket', 'slow').build(), 'hello'.bytes)
+
+    then:
+      stopwatch.elapsed(TimeUnit.MILLISECONDS) >= 50L
+  }
+
+  def "rates are validated"() {
+    when:
+      FaultInjector.none().withServerErrors(1.5d)
+
+    then:
+      thrown(IllegalArgumentException)
+  }
+}
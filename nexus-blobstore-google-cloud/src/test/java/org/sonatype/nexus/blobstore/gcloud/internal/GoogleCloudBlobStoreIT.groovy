@@ -262,6 +262,38 @@ class GoogleCloudBlobStoreIT
       assert after.getInputStream().bytes == existing.getInputStream().bytes
   }
 
+  def "createAsync matches expectations" () {
+    when:
+      Blob blob = blobStore.createAsync(new ByteArrayInputStream('hello'.getBytes()),
+          [ (BlobStore.BLOB_NAME_HEADER): 'async',
+            (BlobStore.CREATED_BY_HEADER): 'someuser' ] ).get()
+
+    then:
+      blob != null
+      blob.inputStream.text == 'hello'
+      BlobAttributes attributes = blobStore.getBlobAttributes(blob.id)
+      attributes.metrics.contentSize == 5L
+      attributes.headers[BlobStore.BLOB_NAME_HEADER] == 'async'
+  }
+
+  def "copyAsync matches expectations" () {
+    given:
+      byte[] data = new byte[2048]
+      new Random().nextBytes(data)
+      Blob blob = blobStore.create(new ByteArrayInputStream(data),
+          [ (BlobStore.BLOB_NAME_HEADER): 'foo1',
+            (BlobStore.CREATED_BY_HEADER): 'someuser' ] )
+
+    when:
+      def copied = blobStore.copyAsync(blob.id, [ (BlobStore.BLOB_NAME_HEADER): 'foo2',
+                                                  (BlobStore.CREATED_BY_HEADER): 'someuser' ]).get()
+
+    then:
+      copied.id != blob.id
+      blobStore.get(copied.id).inputStream.bytes == data
+      blobStore.getBlobAttributes(copied.id).metrics.sha1Hash == blob.metrics.sha1Hash
+  }
+
   /**
    * This test is disabled by default as it can be time consuming.
    *
@@ -294,6 +326,28 @@ class GoogleCloudBlobStoreIT
       blobStore.deleteHard(blobId)
   }
 
+  def "existsAll and getAttributesAll match expectations" () {
+    given:
+      List<BlobId> created = (1..5).collect { i ->
+        blobStore.create(new ByteArrayInputStream("content ${i}".bytes),
+            [ (BlobStore.BLOB_NAME_HEADER): "bulk${i}",
+              (BlobStore.CREATED_BY_HEADER): 'someuser' ] ).id
+      }
+      BlobId missing = new BlobId('missing')
+      List<BlobId> ids = created + missing
+
+    when:
+      Map<BlobId, Boolean> exists = blobStore.existsAll(ids)
+      Map<BlobId, BlobAttributes> attributes = blobStore.getAttributesAll(ids)
+
+    then:
+      exists.size() == 6
+      created.every { exists[it] }
+      !exists[missing]
+      attributes.keySet() == created as Set
+      attributes[created[0]].headers[BlobStore.BLOB_NAME_HEADER] == 'bulk1'
+  }
+
   def "deleteHard matches expectations" () {
     given:
       def expectedSize = 2048
@@ -0,0 +1,610 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal
+
+import java.lang.reflect.Method
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+
+import org.sonatype.nexus.blobstore.DefaultBlobIdLocationResolver
+import org.sonatype.nexus.blobstore.MockBlobStoreConfiguration
+import org.sonatype.nexus.blobstore.api.Blob
+import org.sonatype.nexus.blobstore.api.BlobAttributes
+import org.sonatype.nexus.blobstore.api.BlobId
+import org.sonatype.nexus.blobstore.api.BlobStore
+import org.sonatype.nexus.blobstore.api.BlobStoreConfiguration
+import org.sonatype.nexus.blobstore.api.BlobStoreException
+import org.sonatype.nexus.common.log.DryRunPrefix
+import org.sonatype.nexus.scheduling.PeriodicJobService
+import org.sonatype.nexus.scheduling.PeriodicJobService.PeriodicJob
+
+import com.codahale.metrics.MetricRegistry
+import com.google.cloud.storage.BlobInfo
+import com.google.cloud.storage.Storage
+import com.google.common.base.Throwables
+import com.google.common.hash.Hashing
+import spock.lang.Specification
+import spock.lang.Unroll
+import spock.util.concurrent.PollingConditions
+
+import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.BUCKET_NAME_KEY
+import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.COMPRESSION_ALLOW_LIST_KEY
+import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.COMPRESSION_KEY
+import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.COMPRESSION_LEVEL_KEY
+import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.CONFIG_KEY
+import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.DEDUPLICATION_KEY
+
+/**
+ * {@link GoogleCloudBlobStore} tests against in-memory {@link LocalGoogleCloud} services.
+ */
+class GoogleCloudBlobStoreTest
+    extends Specification
+{
+
+  CountDownLatch composeReached = new CountDownLatch(1)
+
+  CountDownLatch composeReleased = new CountDownLatch(0)
+
+  FaultInjector faults = new FaultInjector() {
+    @Override
+    protected void beforeCall(final Method method) {
+      if (method.name == 'compose') {
+        composeReached.countDown()
+        composeReleased.await()
+      }
+      super.beforeCall(method)
+    }
+  }
+
+  LocalGoogleCloud services = LocalGoogleCloud.inMemory(faults)
+
+  BlobStoreConfiguration config = new MockBlobStoreConfiguration(name: 'GoogleCloudBlobStoreTest',
+      attributes: [(CONFIG_KEY): [(BUCKET_NAME_KEY): 'blob-store-test']])
+
+  PeriodicJobService periodicJobService = Mock({
+    schedule(_, _) >> new PeriodicJob() {
+      @Override
+      void cancel() {
+      }
+    }
+  })
+
+  MetricRegistry metricRegistry = new MetricRegistry()
+
+  MultipartUploader uploader = new MultipartUploader(metricRegistry, 0)
+
+  List<GoogleCloudBlobStore> blobStores = []
+
+  Path tempDir
+
+  def setup() {
+    uploader.start()
+    tempDir = Files.createTempDirectory('blob-store-test')
+  }
+
+  def cleanup() {
+    blobStores.each { it.stop() }
+    uploader.stop()
+    tempDir.toFile().deleteDir()
+  }
+
+  def "a failed background metadata initialization fails the start"() {
+    given:
+      GoogleCloudBlobStore blobStore = new GoogleCloudBlobStore(services.storageFactory(),
+          new DefaultBlobIdLocationResolver(), periodicJobService, services.datastoreFactory(),
+          new DryRunPrefix("TEST "), uploader, new MetricRegistry(), null, 60) {
+        @Override
+        protected void initializeMetadataStores(final boolean probe) {
+          throw new IllegalStateException('metadata unavailable')
+        }
+      }
+      blobStore.init(config)
+
+    when:
+      blobStore.start()
+
+    then:
+      Exception e = thrown()
+      Throwables.getRootCause(e).message == 'metadata unavailable'
+  }
+
+  def "a restart initializes the metadata on the starting thread"() {
+    given:
+      List<Thread> initializedOn = []
+      GoogleCloudBlobStore blobStore = new GoogleCloudBlobStore(services.storageFactory(),
+          new DefaultBlobIdLocationResolver(), periodicJobService, services.datastoreFactory(),
+          new DryRunPrefix("TEST "), uploader, new MetricRegistry(), null, 60) {
+        @Override
+        protected void initializeMetadataStores(final boolean probe) {
+          initializedOn << Thread.currentThread()
+          super.initializeMetadataStores(probe)
+        }
+      }
+      blobStore.init(config)
+      blobStore.start()
+      blobStore.stop()
+
+    when:
+      blobStore.start()
+      blobStores << blobStore
+
+    then: 'init ran it in the background, the restart on the caller'
+      initializedOn.size() == 2
+      initializedOn[0] != Thread.currentThread()
+      initializedOn[1] == Thread.currentThread()
+  }
+
+  def "concurrent gets of a cold blob share a single attributes load"() {
+    given: 'a blob written by one blob store and not yet seen by another'
+      Blob created = start().create(new ByteArrayInputStream('hello'.bytes),
+          [(BlobStore.BLOB_NAME_HEADER): 'cold', (BlobStore.CREATED_BY_HEADER): 'test'])
+      GoogleCloudBlobStore cold = start()
+      faults.withLatency(100, TimeUnit.MILLISECONDS)
+      long callsBefore = faults.calls
+
+    when:
+      int readers = 16
+      CountDownLatch ready = new CountDownLatch(readers)
+      def executor = Executors.newFixedThreadPool(readers)
+      def gets = (1..readers).collect {
+        executor.submit({
+          ready.countDown()
+          ready.await()
+          cold.get(created.id)
+        } as Callable<Blob>)
+      }
+      def blobs = gets.collect { it.get() }
+      executor.shutdown()
+
+    then:
+      blobs.every { it != null && it.headers[BlobStore.BLOB_NAME_HEADER] == 'cold' }
+      faults.calls - callsBefore < readers
+  }
+
+  def "a soft delete racing with a get leaves the blob stale"() {
+    given:
+      GoogleCloudBlobStore blobStore = start()
+      Blob created = blobStore.create(new ByteArrayInputStream('hello'.bytes),
+          [(BlobStore.BLOB_NAME_HEADER): 'racy', (BlobStore.CREATED_BY_HEADER): 'test'])
+      def blob = blobStore.get(created.id) as GoogleCloudBlobStore.GoogleCloudStorageBlob
+      def headers = blob.headers
+      def metrics = blob.metrics
+      def contentEncoding = blob.contentEncoding()
+      blob.markStale()
+      long version = blob.version()
+
+    when: 'attributes read before the delete arrive after it'
+      blobStore.delete(created.id, 'test')
+      boolean refreshed = blob.refresh(version, headers, metrics, false, contentEncoding)
+
+    then:
+      !refreshed
+      blob.stale
+      blobStore.get(created.id) == null
+  }
+
+  def "a pipelined create never exposes attributes ahead of its composed content"() {
+    given: 'an upload in several parts, stopped at the final compose'
+      MultipartUploader parts = new MultipartUploader(metricRegistry, 4)
+      parts.start()
+      GoogleCloudBlobStore blobStore = start(GoogleCloudBlobStoreOptions.builder().withPipelinedWrites(true).build(),
+          parts)
+      byte[] content = 'content uploaded in parts'.bytes
+      BlobId blobId = new BlobId(UUID.randomUUID().toString())
+      composeReleased = new CountDownLatch(1)
+      def executor = Executors.newSingleThreadExecutor()
+      Future<Blob> create = executor.submit({
+        blobStore.create(new ByteArrayInputStream(content),
+            [(BlobStore.BLOB_NAME_HEADER): 'pipelined', (BlobStore.CREATED_BY_HEADER): 'test'], blobId)
+      } as Callable<Blob>)
+      assert composeReached.await(5, TimeUnit.SECONDS)
+
+    when: 'the blob is read while its content is not yet in place'
+      Blob early = blobStore.get(blobId)
+      composeReleased.countDown()
+      create.get(5, TimeUnit.SECONDS)
+      Blob blob = blobStore.get(blobId)
+
+    then: 'there were no attributes to read, and afterwards content and attributes agree'
+      early == null
+      blob.inputStream.bytes == content
+      blob.metrics.sha1Hash == Hashing.sha1().hashBytes(content).toString()
+      blob.metrics.contentSize == content.length
+
+    cleanup:
+      composeReleased.countDown()
+      executor.shutdown()
+      parts.stop()
+  }
+
+  def "a pipelined write whose upload fails leaves no files behind"() {
+    given: 'an upload that fails after committing its content, so the attributes write has started'
+      Uploader failing = new Uploader() {
+        @Override
+        com.google.cloud.storage.Blob upload(Storage storage, String bucket, String destination,
+                                             InputStream contents)
+        {
+          return storage.create(BlobInfo.newBuilder(bucket, destination).build(), contents.bytes)
+        }
+
+        @Override
+        com.google.cloud.storage.Blob upload(Storage storage, String bucket, String destination,
+                                             InputStream contents, Runnable onCommitted)
+        {
+          upload(storage, bucket, destination, contents)
+          onCommitted.run()
+          throw new BlobStoreException('upload failed', null)
+        }
+      }
+      GoogleCloudBlobStore blobStore = start(GoogleCloudBlobStoreOptions.builder().withPipelinedWrites(true).build(),
+          failing)
+
+    when:
+      blobStore.create(new ByteArrayInputStream('content'.bytes),
+          [(BlobStore.BLOB_NAME_HEADER): 'failed', (BlobStore.CREATED_BY_HEADER): 'test'])
+
+    then:
+      thrown(BlobStoreException)
+      new PollingConditions(timeout: 5).eventually {
+        assert blobFiles().empty
+      }
+  }
+
+  def "lookups of a staged blob are answered from staging without uploading it"() {
+    given: 'uploads held back, so the blob stays staged'
+      CountDownLatch release = new CountDownLatch(1)
+      Uploader delegate = uploader
+      Uploader held = new Uploader() {
+        @Override
+        com.google.cloud.storage.Blob upload(Storage storage, String bucket, String destination, InputStream contents) {
+          release.await()
+          return delegate.upload(storage, bucket, destination, contents)
+        }
+      }
+      GoogleCloudBlobStore blobStore = start(GoogleCloudBlobStoreOptions.builder().withStagingEnabled(true)
+          .withStagingDirectory(tempDir.resolve('staging').toString()).build(), held)
+      Blob staged = blobStore.create(new ByteArrayInputStream('content'.bytes),
+          [(BlobStore.BLOB_NAME_HEADER): 'staged', (BlobStore.CREATED_BY_HEADER): 'test'])
+      BlobId missing = new BlobId('missing')
+
+    when:
+      BlobAttributes attributes = blobStore.getBlobAttributes(staged.id)
+      Map<BlobId, Boolean> exists = blobStore.existsAll([staged.id, missing])
+
+    then:
+      attributes.metrics.contentSize == 7
+      attributes.headers[BlobStore.BLOB_NAME_HEADER] == 'staged'
+      exists == [(staged.id): true, (missing): false]
+      blobFiles().empty
+
+    when: 'the upload goes ahead'
+      release.countDown()
+
+    then:
+      new PollingConditions(timeout: 5).eventually {
+        assert blobFiles().size() == 2
+      }
+      blobStore.getBlobAttributes(staged.id).metrics.contentSize == 7
+
+    cleanup:
+      release.countDown()
+  }
+
+  def "a packed blob overwritten with content too large to pack reads back the new content"() {
+    given:
+      GoogleCloudBlobStore blobStore = start(GoogleCloudBlobStoreOptions.builder().withPackingMaxBlobBytes(16).build())
+      Map<String, String> headers = [(BlobStore.BLOB_NAME_HEADER): 'packed', (BlobStore.CREATED_BY_HEADER): 'test']
+      Blob packed = blobStore.create(new ByteArrayInputStream('small'.bytes), headers)
+      assert ((GoogleCloudBlobStore.GoogleCloudStorageBlob) packed).packedLocation() != null
+
+    when:
+      blobStore.create(new ByteArrayInputStream(('large' * 10).bytes), headers, packed.id)
+      GoogleCloudBlobStore.GoogleCloudStorageBlob overwritten =
+          (GoogleCloudBlobStore.GoogleCloudStorageBlob) blobStore.get(packed.id)
+
+    then:
+      overwritten.packedLocation() == null
+      overwritten.metrics.contentSize == 50
+      overwritten.inputStream.text == 'large' * 10
+  }
+
+  def "a hard deleted packed blob is gone"() {
+    given:
+      GoogleCloudBlobStore blobStore = start(GoogleCloudBlobStoreOptions.builder().withPackingMaxBlobBytes(16).build())
+      Blob packed = blobStore.create(new ByteArrayInputStream('small'.bytes),
+          [(BlobStore.BLOB_NAME_HEADER): 'packed', (BlobStore.CREATED_BY_HEADER): 'test'])
+
+    when:
+      boolean deleted = blobStore.deleteHard(packed.id)
+
+    then:
+      deleted
+      blobStore.get(packed.id) == null
+      blobFiles().empty
+  }
+
+  @Unroll
+  def "packed blobs stay readable and deletable after packing is lowered to #limit"() {
+    given:
+      GoogleCloudBlobStore packing = start(GoogleCloudBlobStoreOptions.builder().withPackingMaxBlobBytes(16).build())
+      Blob packed = packing.create(new ByteArrayInputStream('small'.bytes),
+          [(BlobStore.BLOB_NAME_HEADER): 'packed', (BlobStore.CREATED_BY_HEADER): 'test'])
+      packing.stop()
+      blobStores.remove(packing)
+
+    when:
+      GoogleCloudBlobStore blobStore = start(GoogleCloudBlobStoreOptions.builder().withPackingMaxBlobBytes(limit).build())
+      String content = blobStore.get(packed.id).inputStream.text
+      boolean deleted = blobStore.deleteHard(packed.id)
+
+    then:
+      content == 'small'
+      deleted
+      blobStore.get(packed.id) == null
+      new PackedBlobIndex(services.datastore, config).get(packed.id) == null
+
+    where:
+      limit << [0, 2]
+  }
+
+  def "blobs sharing content store it once and release it with the last reference"() {
+    given:
+      GoogleCloudBlobStore blobStore = start(GoogleCloudBlobStoreOptions.builder().withDeduplicationEnabled(true).build())
+      Map<String, String> headers = [(BlobStore.BLOB_NAME_HEADER): 'shared', (BlobStore.CREATED_BY_HEADER): 'test']
+
+    when:
+      Blob first = blobStore.create(new ByteArrayInputStream('shared'.bytes), headers)
+      Blob second = blobStore.create(new ByteArrayInputStream('shared'.bytes), headers)
+
+    then:
+      blobFiles('deduplicated/').size() == 1
+      blobStore.get(first.id).inputStream.text == 'shared'
+      blobStore.get(second.id).inputStream.text == 'shared'
+
+    when: 'one of them is overwritten with other content'
+      blobStore.create(new ByteArrayInputStream('other'.bytes), headers, first.id)
+
+    then:
+      blobFiles('deduplicated/').size() == 2
+      blobStore.get(first.id).inputStream.text == 'other'
+      blobStore.get(second.id).inputStream.text == 'shared'
+
+    when: 'the blob that no longer shares content is deleted'
+      blobStore.deleteHard(first.id)
+
+    then: 'only its content goes'
+      blobFiles('deduplicated/').size() == 1
+      blobStore.get(second.id).inputStream.text == 'shared'
+
+    when: 'the last reference to the shared content is deleted'
+      blobStore.deleteHard(second.id)
+
+    then:
+      blobFiles('deduplicated/').empty
+      blobFiles().empty
+  }
+
+  def "deduplicated blobs stay readable and deletable once deduplication is turned off for the blob store"() {
+    given: 'deduplication enabled by the blob store attribute rather than the property'
+      config.attributes(CONFIG_KEY).set(DEDUPLICATION_KEY, 'true')
+      GoogleCloudBlobStore deduplicating = start()
+      Map<String, String> headers = [(BlobStore.BLOB_NAME_HEADER): 'shared', (BlobStore.CREATED_BY_HEADER): 'test']
+      Blob first = deduplicating.create(new ByteArrayInputStream('shared'.bytes), headers)
+      Blob second = deduplicating.create(new ByteArrayInputStream('shared'.bytes), headers)
+      deduplicating.stop()
+      blobStores.remove(deduplicating)
+
+    when: 'the attribute turns it off, whatever the property says'
+      config.attributes(CONFIG_KEY).set(DEDUPLICATION_KEY, 'false')
+      GoogleCloudBlobStore blobStore = start(GoogleCloudBlobStoreOptions.builder().withDeduplicationEnabled(true).build())
+      Blob third = blobStore.create(new ByteArrayInputStream('shared'.bytes), headers)
+
+    then:
+      blobFiles('deduplicated/').size() == 1
+      blobFiles().count { it.endsWith('.bytes') } == 1
+      [first, second, third].every { blobStore.get(it.id).inputStream.text == 'shared' }
+
+    when:
+      [first, second, third].each { blobStore.deleteHard(it.id) }
+
+    then:
+      blobFiles('deduplicated/').empty
+      blobFiles().empty
+  }
+
+  def "asynchronous creates go through the configured write modes"() {
+    given:
+      GoogleCloudBlobStore blobStore = start(GoogleCloudBlobStoreOptions.builder().withCompressionEnabled(true).build())
+
+    when:
+      Blob created = blobStore.createAsync(new ByteArrayInputStream(('text ' * 1000).bytes),
+          [(BlobStore.BLOB_NAME_HEADER): 'async.txt', (BlobStore.CREATED_BY_HEADER): 'test']).get(5, TimeUnit.SECONDS)
+
+    then:
+      ((GoogleCloudBlobStore.GoogleCloudStorageBlob) created).contentEncoding() == ContentCompression.DEFLATE
+      blobStore.get(created.id).inputStream.text == 'text ' * 1000
+  }
+
+  def "compression follows the blob store attributes rather than the properties"() {
+    given: 'compression of .txt blobs enabled by the blob store attributes'
+      config.attributes(CONFIG_KEY).set(COMPRESSION_KEY, 'true')
+      config.attributes(CONFIG_KEY).set(COMPRESSION_LEVEL_KEY, '9')
+      config.attributes(CONFIG_KEY).set(COMPRESSION_ALLOW_LIST_KEY, '.txt')
+      GoogleCloudBlobStore compressing = start()
+      String text = 'text ' * 1000
+
+    when:
+      Blob compressed = compressing.create(new ByteArrayInputStream(text.bytes),
+          [(BlobStore.BLOB_NAME_HEADER): 'a.txt', (BlobStore.CREATED_BY_HEADER): 'test'])
+      Blob raw = compressing.create(new ByteArrayInputStream(text.bytes),
+          [(BlobStore.BLOB_NAME_HEADER): 'a.pom', (BlobStore.CREATED_BY_HEADER): 'test'])
+      Blob copied = compressing.copy(compressed.id, [(BlobStore.BLOB_NAME_HEADER): 'b.txt',
+          (BlobStore.CREATED_BY_HEADER): 'test'])
+
+    then:
+      ((GoogleCloudBlobStore.GoogleCloudStorageBlob) compressed).contentEncoding() == ContentCompression.DEFLATE
+      ((GoogleCloudBlobStore.GoogleCloudStorageBlob) raw).contentEncoding() == null
+      ((GoogleCloudBlobStore.GoogleCloudStorageBlob) copied).contentEncoding() == ContentCompression.DEFLATE
+      compressed.metrics.contentSize == text.length()
+      compressing.get(copied.id).inputStream.text == text
+
+    when: 'the attribute turns it off, whatever the property says'
+      compressing.stop()
+      blobStores.remove(compressing)
+      config.attributes(CONFIG_KEY).set(COMPRESSION_KEY, 'false')
+      GoogleCloudBlobStore blobStore = start(GoogleCloudBlobStoreOptions.builder().withCompressionEnabled(true).build())
+      Blob written = blobStore.create(new ByteArrayInputStream(text.bytes),
+          [(BlobStore.BLOB_NAME_HEADER): 'c.txt', (BlobStore.CREATED_BY_HEADER): 'test'])
+
+    then:
+      ((GoogleCloudBlobStore.GoogleCloudStorageBlob) written).contentEncoding() == null
+      [compressed, raw, copied, written].every { blobStore.get(it.id).inputStream.text == text }
+  }
+
+  def "range reads return only the bytes of the range"() {
+    given:
+      GoogleCloudBlobStore blobStore = start()
+      Blob created = blobStore.create(new ByteArrayInputStream('0123456789'.bytes),
+          [(BlobStore.BLOB_NAME_HEADER): 'ranged', (BlobStore.CREATED_BY_HEADER): 'test'])
+
+    expect:
+      blobStore.getInputStream(created.id, offset, length).text == expected
+
+    where:
+      offset | length || expected
+      0      | 10     || '0123456789'
+      3      | 4      || '3456'
+      8      | 100    || '89'
+      10     | 5      || ''
+  }
+
+  def "range reads of a missing blob return null"() {
+    expect:
+      start().getInputStream(new BlobId('missing'), 0, 10) == null
+  }
+
+  def "content read through a channel into a direct buffer matches the stream"() {
+    given:
+      GoogleCloudBlobStore blobStore = start()
+      byte[] content = new byte[3 * 1024 * 1024 + 17]
+      new Random(17).nextBytes(content)
+      Blob created = blobStore.create(new ByteArrayInputStream(content),
+          [(BlobStore.BLOB_NAME_HEADER): 'channel', (BlobStore.CREATED_BY_HEADER): 'test'])
+
+    when:
+      ByteArrayOutputStream read = new ByteArrayOutputStream()
+      blobStore.openChannel(created.id).withCloseable { channel ->
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024)
+        while (channel.read(buffer) >= 0) {
+          buffer.flip()
+          byte[] bytes = new byte[buffer.remaining()]
+          buffer.get(bytes)
+          read.write(bytes)
+          buffer.clear()
+        }
+      }
+
+    then:
+      read.toByteArray() == content
+      blobStore.openChannel(new BlobId('missing')) == null
+  }
+
+  def "blobs created from a local file read back with the supplied hash"() {
+    given:
+      GoogleCloudBlobStore blobStore = start()
+      byte[] content = new byte[300 * 1024]
+      new Random().nextBytes(content)
+      Path file = Files.write(tempDir.resolve('content.bytes'), content)
+
+    when:
+      Blob created = blobStore.create(file, [(BlobStore.BLOB_NAME_HEADER): 'file', (BlobStore.CREATED_BY_HEADER): 'test'],
+          content.length, Hashing.sha1().hashBytes(content))
+
+    then:
+      created.metrics.contentSize == content.length
+      created.metrics.sha1Hash == Hashing.sha1().hashBytes(content).toString()
+      blobStore.get(created.id).inputStream.bytes == content
+  }
+
+  def "a local file of another size than supplied is rejected"() {
+    given:
+      GoogleCloudBlobStore blobStore = start()
+      Path file = Files.write(tempDir.resolve('content.bytes'), 'content'.bytes)
+
+    when:
+      blobStore.create(file, [(BlobStore.BLOB_NAME_HEADER): 'file', (BlobStore.CREATED_BY_HEADER): 'test'],
+          100, Hashing.sha1().hashBytes('content'.bytes))
+
+    then:
+      thrown(BlobStoreException)
+  }
+
+  def "a local file with another hash than supplied is rejected when content is deduplicated"() {
+    given:
+      GoogleCloudBlobStore blobStore = start(GoogleCloudBlobStoreOptions.builder().withDeduplicationEnabled(true).build())
+      Path file = Files.write(tempDir.resolve('content.bytes'), 'content'.bytes)
+
+    when:
+      blobStore.create(file, [(BlobStore.BLOB_NAME_HEADER): 'file', (BlobStore.CREATED_BY_HEADER): 'test'],
+          'content'.length(), Hashing.sha1().hashBytes('other'.bytes))
+
+    then:
+      thrown(BlobStoreException)
+      blobFiles('deduplicated/').empty
+      blobFiles().empty
+  }
+
+  def "local files are uploaded as ranges composed in order"() {
+    given:
+      // 5 each of abcdefg
+      byte[] content = 'aaaaabbbbbcccccdddddeeeeefffffggggg'.bytes
+      Path file = Files.write(tempDir.resolve('content.bytes'), content)
+      MultipartUploader parts = new MultipartUploader(new MetricRegistry(), 5)
+      parts.start()
+
+    when:
+      parts.upload(services.storage, 'blob-store-test', 'in_order', file, content.length)
+
+    then:
+      services.storage.readAllBytes(com.google.cloud.storage.BlobId.of('blob-store-test', 'in_order')) == content
+      parts.numberOfChunksHistogram().snapshot.max == 7
+
+    cleanup:
+      parts.stop()
+  }
+
+  /**
+   * @return the names of the files in the bucket under the prefix, by default the content and attribute files
+   */
+  private List<String> blobFiles(final String prefix = 'content/') {
+    return services.storage.list('blob-store-test').iterateAll()*.name.findAll { it.startsWith(prefix) }
+  }
+
+  private GoogleCloudBlobStore start(final GoogleCloudBlobStoreOptions options = GoogleCloudBlobStoreOptions.builder()
+      .build(), final Uploader uploader = this.uploader)
+  {
+    GoogleCloudBlobStore blobStore = new GoogleCloudBlobStore(services.storageFactory(),
+        new DefaultBlobIdLocationResolver(), periodicJobService, services.datastoreFactory(),
+        new DryRunPrefix("TEST "), uploader, new MetricRegistry(), null, 60, options)
+    blobStore.init(config)
+    blobStore.start()
+    blobStores << blobStore
+    return blobStore
+  }
+}
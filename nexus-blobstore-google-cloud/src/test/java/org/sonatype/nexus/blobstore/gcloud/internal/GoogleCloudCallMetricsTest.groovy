@@ -0,0 +1,107 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal
+
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+import java.nio.channels.ReadableByteChannel
+
+import com.codahale.metrics.MetricRegistry
+import com.google.cloud.datastore.Datastore
+import com.google.cloud.datastore.Transaction
+import com.google.cloud.storage.Storage
+import com.google.cloud.storage.StorageException
+import spock.lang.Specification
+
+class GoogleCloudCallMetricsTest
+    extends Specification
+{
+
+  MetricRegistry metricRegistry = new MetricRegistry()
+
+  GoogleCloudCallMetrics callMetrics = new GoogleCloudCallMetrics(metricRegistry, 'test.gcs')
+
+  def "calls are timed and failures counted by status code"() {
+    when:
+      callMetrics.time('get', { 'result' })
+      callMetrics.time('get', { throw new StorageException(503, 'unavailable') })
+
+    then:
+      thrown(StorageException)
+      metricRegistry.timer('test.gcs.get').count == 2L
+      metricRegistry.counter('test.gcs.get.errors.503').count == 1L
+  }
+
+  def "storage calls are timed by method"() {
+    given:
+      Storage storage = Mock()
+      Storage instrumented = callMetrics.instrument(storage)
+
+    when:
+      instrumented.delete('bucket', 'name')
+      instrumented.options
+
+    then:
+      1 * storage.delete('bucket', 'name') >> true
+      metricRegistry.timer('test.gcs.delete').count == 1L
+      !metricRegistry.timers.containsKey('test.gcs.getOptions')
+  }
+
+  def "datastore transaction commits are timed"() {
+    given:
+      Transaction transaction = Mock()
+      Datastore datastore = Mock() {
+        newTransaction() >> transaction
+      }
+
+    when:
+      callMetrics.instrument(datastore).newTransaction().commit()
+
+    then:
+      1 * transaction.commit()
+      metricRegistry.timer('test.gcs.newTransaction').count == 1L
+      metricRegistry.timer('test.gcs.transaction.commit').count == 1L
+  }
+
+  def "bytes read through a metered stream are counted"() {
+    when:
+      callMetrics.meterBytesIn(new ByteArrayInputStream(new byte[100])).bytes
+
+    then:
+      metricRegistry.meter('test.gcs.bytesIn').count == 100L
+  }
+
+  def "bytes read through a metered channel are counted"() {
+    given:
+      ReadableByteChannel channel =
+          callMetrics.meterBytesIn(Channels.newChannel(new ByteArrayInputStream(new byte[100])))
+
+    when:
+      ByteBuffer buffer = ByteBuffer.allocateDirect(64)
+      while (channel.read(buffer) >= 0) {
+        buffer.clear()
+      }
+
+    then:
+      metricRegistry.meter('test.gcs.bytesIn').count == 100L
+  }
+
+  def "disabled instance records nothing and does not wrap"() {
+    given:
+      Storage storage = Mock()
+
+    expect:
+      GoogleCloudCallMetrics.disabled().instrument(storage).is(storage)
+      GoogleCloudCallMetrics.disabled().time('get', { 'result' }) == 'result'
+  }
+}
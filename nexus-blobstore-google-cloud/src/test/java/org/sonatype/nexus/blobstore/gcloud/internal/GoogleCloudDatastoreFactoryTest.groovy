@@ -0,0 +1,94 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal
+
+import org.sonatype.nexus.blobstore.MockBlobStoreConfiguration
+import org.sonatype.nexus.blobstore.api.BlobStoreConfiguration
+
+import com.google.cloud.TransportOptions
+import com.google.cloud.datastore.Datastore
+import spock.lang.Specification
+
+class GoogleCloudDatastoreFactoryTest
+    extends Specification
+{
+  GoogleCloudDatastoreFactory factory = new GoogleCloudDatastoreFactory() {
+    @Override
+    Datastore create(final BlobStoreConfiguration configuration, final TransportOptions transportOptions) {
+      return [:] as Datastore
+    }
+  }
+
+  def "blob stores with the same credentials share a client"() {
+    when:
+      Datastore first = factory.acquire(makeConfig('first', '/path/a.json'))
+      Datastore second = factory.acquire(makeConfig('second', '/path/a.json'))
+
+    then:
+      first.is(second)
+      factory.sharedClientCount == 1
+  }
+
+  def "blob stores with different credentials get separate clients"() {
+    when:
+      Datastore first = factory.acquire(makeConfig('first', '/path/a.json'))
+      Datastore second = factory.acquire(makeConfig('second', '/path/b.json'))
+
+    then:
+      !first.is(second)
+      factory.sharedClientCount == 2
+  }
+
+  def "client is closed once the last reference is released"() {
+    given:
+      Datastore first = factory.acquire(makeConfig('first', null))
+      Datastore second = factory.acquire(makeConfig('second', null))
+
+    when:
+      factory.release(first)
+
+    then:
+      factory.sharedClientCount == 1
+
+    when:
+      factory.release(second)
+
+    then:
+      factory.sharedClientCount == 0
+  }
+
+  def "a released client is replaced on the next acquire"() {
+    given:
+      Datastore first = factory.acquire(makeConfig('first', null))
+      factory.release(first)
+
+    when:
+      Datastore second = factory.acquire(makeConfig('first', null))
+
+    then:
+      !first.is(second)
+      factory.sharedClientCount == 1
+  }
+
+  def makeConfig(String name, String credentialFilePath) {
+    MockBlobStoreConfiguration config = new MockBlobStoreConfiguration()
+    config.name = name
+    config.attributes = [
+        'google cloud storage': [
+            bucketName: 'test-bucket-name',
+            credentialFilePath: credentialFilePath
+        ]
+    ]
+    return config
+  }
+}
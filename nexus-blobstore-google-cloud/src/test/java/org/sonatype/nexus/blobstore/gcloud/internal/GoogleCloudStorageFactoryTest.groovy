@@ -53,6 +53,27 @@ class GoogleCloudStorageFactoryTest extends Specification
             thrown(IOException)
     }
 
+    def "create with tuned http transport"() {
+        given:
+            GoogleCloudStorageFactory tuned = new GoogleCloudStorageFactory(65536, 50, RetryPolicy.DEFAULT)
+            MockBlobStoreConfiguration config = makeConfig('tuned', null)
+        expect:
+            tuned.create(config)
+            tuned.socketBufferSize == 65536
+            tuned.maxConnections == 50
+    }
+
+    def "http transport tuning rejects non-positive values"() {
+        when:
+            new GoogleCloudStorageFactory(socketBufferSize, maxConnections, RetryPolicy.DEFAULT)
+        then:
+            thrown(IllegalArgumentException)
+        where:
+            socketBufferSize | maxConnections
+            0                | 200
+            8192             | 0
+    }
+
     def makeConfig(String name, String credentialFilePath) {
         MockBlobStoreConfiguration config = new MockBlobStoreConfiguration()
         def credentialUrl = null
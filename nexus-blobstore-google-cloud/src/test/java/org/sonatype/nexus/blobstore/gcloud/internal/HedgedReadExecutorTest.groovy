@@ -0,0 +1,140 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+import com.codahale.metrics.MetricRegistry
+import spock.lang.Specification
+
+class HedgedReadExecutorTest
+    extends Specification
+{
+  MetricRegistry metricRegistry = new MetricRegistry()
+
+  HedgedReadExecutor executor
+
+  def cleanup() {
+    executor?.doStop()
+  }
+
+  def "disabled executor runs the read once on the calling thread"() {
+    given:
+      executor = HedgedReadExecutor.disabled(metricRegistry)
+      Thread caller = Thread.currentThread()
+
+    when:
+      def result = executor.read(executor.newLatency('test'),
+          { Thread.currentThread() == caller ? 'same thread' : 'other thread' })
+
+    then:
+      result == 'same thread'
+      executor.hedgeCount == 0L
+  }
+
+  def "slow read is hedged and the faster attempt wins"() {
+    given:
+      executor = new HedgedReadExecutor(metricRegistry, true, 0.95, 10)
+      AtomicInteger attempts = new AtomicInteger()
+      CountDownLatch release = new CountDownLatch(1)
+
+    when:
+      def result = executor.read(executor.newLatency('test'), {
+        if (attempts.incrementAndGet() == 1) {
+          // first attempt stalls until the test completes
+          release.await(5, TimeUnit.SECONDS)
+          return 'slow'
+        }
+        return 'fast'
+      })
+
+    then:
+      result == 'fast'
+      executor.hedgeCount == 1L
+
+    cleanup:
+      release.countDown()
+  }
+
+  def "fast read is not hedged"() {
+    given:
+      executor = new HedgedReadExecutor(metricRegistry, true, 0.95, 1000)
+
+    when:
+      def result = executor.read(executor.newLatency('test'), { 'fast' })
+
+    then:
+      result == 'fast'
+      executor.hedgeCount == 0L
+  }
+
+  def "read fails only once every attempt failed"() {
+    given:
+      executor = new HedgedReadExecutor(metricRegistry, true, 0.95, 10)
+
+    when:
+      executor.read(executor.newLatency('test'), {
+        Thread.sleep(50)
+        throw new IOException('unavailable')
+      })
+
+    then:
+      IOException e = thrown()
+      e.message == 'unavailable'
+      executor.hedgeCount == 1L
+  }
+
+  def "hedge delay never drops below the minimum"() {
+    given:
+      executor = new HedgedReadExecutor(metricRegistry, true, 0.95, 25)
+
+    expect:
+      executor.newLatency('test').hedgeDelayNanos() == TimeUnit.MILLISECONDS.toNanos(25)
+  }
+
+  def "hedge delay is recomputed from the samples of its own latency only every interval"() {
+    given:
+      executor = new HedgedReadExecutor(metricRegistry, true, 0.95, 0)
+      HedgedReadExecutor.Latency slow = executor.newLatency('slow')
+      HedgedReadExecutor.Latency other = executor.newLatency('other')
+
+    when: 'the first sample sets the delay'
+      slow.record(1000)
+
+    then:
+      slow.hedgeDelayNanos() == 1000
+      other.hedgeDelayNanos() == 0
+
+    when: 'later samples wait for the next interval'
+      (HedgedReadExecutor.RECOMPUTE_INTERVAL - 1).times { slow.record(5000) }
+
+    then:
+      slow.hedgeDelayNanos() == 1000
+
+    when:
+      slow.record(5000)
+
+    then:
+      slow.hedgeDelayNanos() == 5000
+  }
+
+  def "percentile must be between 0 and 1"() {
+    when:
+      new HedgedReadExecutor(metricRegistry, true, 1.5, 10)
+
+    then:
+      thrown IllegalArgumentException
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.Entity;
+import com.google.cloud.datastore.FullEntity;
+import com.google.cloud.datastore.Key;
+import com.google.cloud.datastore.KeyFactory;
+import com.google.cloud.datastore.QueryResults;
+import com.google.cloud.datastore.Transaction;
+
+/**
+ * In-process, in-memory {@link Datastore} for tests and benchmarks.
+ *
+ * Supports what the metadata stores need on their write paths: key factories, lookups by key, puts, deletes and
+ * transactions (whose puts and deletes are applied on commit). Queries always return no results. Instances created
+ * with a {@link FaultInjector} pass every call through it.
+ */
+public final class InMemoryDatastore
+{
+  static final String PROJECT_ID = "in-memory";
+
+  private final Map<Key, Entity> entities = new ConcurrentHashMap<>();
+
+  private InMemoryDatastore() {
+  }
+
+  public static Datastore create() {
+    InMemoryDatastore store = new InMemoryDatastore();
+    return (Datastore) Proxy.newProxyInstance(Datastore.class.getClassLoader(),
+        new Class<?>[]{Datastore.class}, (proxy, method, args) -> store.datastore(method, args));
+  }
+
+  public static Datastore create(final FaultInjector faults) {
+    return faults.wrap(Datastore.class, create());
+  }
+
+  private Object datastore(final Method method, final Object[] args) {
+    switch (method.getName()) {
+      case "newKeyFactory":
+        return new KeyFactory(PROJECT_ID);
+      case "get":
+        return entities.get((Key) args[0]);
+      case "put":
+        return put(args[0]);
+      case "delete":
+        Arrays.stream((Key[]) args[0]).forEach(entities::remove);
+        return null;
+      case "run":
+        return emptyResults();
+      case "newTransaction":
+        return newTransaction();
+      case "toString":
+        return "InMemoryDatastore";
+      default:
+        throw new UnsupportedOperationException(method.getName());
+    }
+  }
+
+  private Object put(final Object entityOrEntities) {
+    if (entityOrEntities instanceof FullEntity) {
+      return store((FullEntity<?>) entityOrEntities);
+    }
+    List<Entity> stored = new ArrayList<>();
+    for (FullEntity<?> entity : (FullEntity<?>[]) entityOrEntities) {
+      stored.add(store(entity));
+    }
+    return stored;
+  }
+
+  private Entity store(final FullEntity<?> entity) {
+    Entity stored = Entity.newBuilder((Key) entity.getKey(), entity).build();
+    entities.put(stored.getKey(), stored);
+    return stored;
+  }
+
+  private Transaction newTransaction() {
+    List<FullEntity<?>> writes = new ArrayList<>();
+    List<Key> deletes = new ArrayList<>();
+    boolean[] active = {true};
+    return (Transaction) Proxy.newProxyInstance(Transaction.class.getClassLoader(), new Class<?>[]{Transaction.class},
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "put":
+              if (args[0] instanceof FullEntity) {
+                writes.add((FullEntity<?>) args[0]);
+              }
+              else {
+                writes.addAll(Arrays.asList((FullEntity<?>[]) args[0]));
+              }
+              return null;
+            case "delete":
+              deletes.addAll(Arrays.asList((Key[]) args[0]));
+              return null;
+            case "get":
+              return entities.get((Key) args[0]);
+            case "run":
+              return emptyResults();
+            case "commit":
+              deletes.forEach(entities::remove);
+              writes.forEach(this::store);
+              active[0] = false;
+              return null;
+            case "rollback":
+              active[0] = false;
+              return null;
+            case "isActive":
+              return active[0];
+            case "toString":
+              return "InMemoryDatastore transaction";
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+  private static QueryResults<?> emptyResults() {
+    return (QueryResults<?>) Proxy.newProxyInstance(QueryResults.class.getClassLoader(),
+        new Class<?>[]{QueryResults.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "hasNext":
+              return false;
+            case "next":
+              throw new NoSuchElementException();
+            case "getSkippedResults":
+              return 0;
+            case "forEachRemaining":
+              return null;
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+}
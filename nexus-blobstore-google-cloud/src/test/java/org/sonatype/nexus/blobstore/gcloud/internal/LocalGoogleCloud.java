@@ -0,0 +1,121 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.Nullable;
+
+import org.sonatype.nexus.blobstore.api.BlobStoreConfiguration;
+
+import com.google.cloud.datastore.Datastore;
+import com.google.cloud.datastore.DatastoreOptions;
+import com.google.cloud.datastore.spi.v1.DatastoreRpc;
+import com.google.cloud.datastore.spi.v1.HttpDatastoreRpc;
+import com.google.cloud.datastore.testing.LocalDatastoreHelper;
+import com.google.cloud.storage.Storage;
+import org.threeten.bp.Duration;
+
+/**
+ * Offline stand-ins for the Google Cloud services a {@link GoogleCloudBlobStore} uses, with faults injected by a
+ * {@link FaultInjector}.
+ *
+ * Storage is always {@link FakeGoogleCloudStorage}. Datastore is either the Cloud Datastore emulator (started with
+ * {@link LocalDatastoreHelper}, which needs the gcloud SDK or downloads the emulator on first use), or the much
+ * lighter {@link InMemoryDatastore}.
+ *
+ * Pass {@link #storageFactory()} and {@link #datastoreFactory()} to a blob store to run it against these services.
+ */
+public final class LocalGoogleCloud
+{
+  private final Storage storage;
+
+  private final Datastore datastore;
+
+  @Nullable
+  private final LocalDatastoreHelper emulator;
+
+  private LocalGoogleCloud(final Storage storage,
+                           final Datastore datastore,
+                           @Nullable final LocalDatastoreHelper emulator)
+  {
+    this.storage = storage;
+    this.datastore = datastore;
+    this.emulator = emulator;
+  }
+
+  /**
+   * @return services held entirely in memory; starts instantly, but Datastore queries return no results
+   */
+  public static LocalGoogleCloud inMemory(final FaultInjector faults) {
+    return new LocalGoogleCloud(FakeGoogleCloudStorage.create(faults), InMemoryDatastore.create(faults), null);
+  }
+
+  /**
+   * @return services backed by a freshly started Datastore emulator; call {@link #stop()} when done
+   */
+  public static LocalGoogleCloud withDatastoreEmulator(final FaultInjector faults)
+      throws IOException, InterruptedException
+  {
+    LocalDatastoreHelper emulator = LocalDatastoreHelper.create(1.0);
+    emulator.start();
+    DatastoreOptions options = emulator.getOptions().toBuilder()
+        .setServiceRpcFactory((DatastoreOptions o) -> faults.wrap(DatastoreRpc.class, new HttpDatastoreRpc(o)))
+        .setRetrySettings(FakeGoogleCloudStorage.RETRY_SETTINGS)
+        .build();
+    return new LocalGoogleCloud(FakeGoogleCloudStorage.create(faults), options.getService(), emulator);
+  }
+
+  public Storage getStorage() {
+    return storage;
+  }
+
+  public Datastore getDatastore() {
+    return datastore;
+  }
+
+  public GoogleCloudStorageFactory storageFactory() {
+    return new GoogleCloudStorageFactory()
+    {
+      @Override
+      Storage create(final BlobStoreConfiguration configuration) {
+        return storage;
+      }
+    };
+  }
+
+  public GoogleCloudDatastoreFactory datastoreFactory() {
+    return new GoogleCloudDatastoreFactory()
+    {
+      @Override
+      synchronized Datastore acquire(final BlobStoreConfiguration configuration) {
+        return datastore;
+      }
+
+      @Override
+      synchronized void release(final Datastore released) {
+        // owned by this harness, see stop()
+      }
+    };
+  }
+
+  /**
+   * Stops the Datastore emulator, if one was started.
+   */
+  public void stop() throws IOException, InterruptedException, TimeoutException {
+    if (emulator != null) {
+      emulator.stop(Duration.ofSeconds(30));
+    }
+  }
+}
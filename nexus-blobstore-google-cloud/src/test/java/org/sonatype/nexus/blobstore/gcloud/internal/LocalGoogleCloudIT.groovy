@@ -0,0 +1,169 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal
+
+import java.util.concurrent.TimeUnit
+
+import org.sonatype.nexus.blobstore.DefaultBlobIdLocationResolver
+import org.sonatype.nexus.blobstore.MockBlobStoreConfiguration
+import org.sonatype.nexus.blobstore.api.BlobId
+import org.sonatype.nexus.blobstore.api.BlobStore
+import org.sonatype.nexus.blobstore.api.BlobStoreConfiguration
+import org.sonatype.nexus.common.log.DryRunPrefix
+import org.sonatype.nexus.scheduling.PeriodicJobService
+import org.sonatype.nexus.scheduling.PeriodicJobService.PeriodicJob
+
+import com.codahale.metrics.MetricRegistry
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+import spock.lang.Shared
+import spock.lang.Specification
+
+import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.BUCKET_NAME_KEY
+import static org.sonatype.nexus.blobstore.gcloud.internal.GoogleCloudBlobStore.CONFIG_KEY
+
+/**
+ * Runs the blob store and its metadata stores against {@link LocalGoogleCloud} with the Datastore emulator, while
+ * injecting faults. Needs the gcloud SDK, or network access to download the emulator on first use.
+ */
+class LocalGoogleCloudIT
+    extends Specification
+{
+
+  static final Logger log = LoggerFactory.getLogger(LocalGoogleCloudIT.class)
+
+  @Shared
+  FaultInjector faults = FaultInjector.none()
+
+  @Shared
+  LocalGoogleCloud services
+
+  BlobStoreConfiguration config = new MockBlobStoreConfiguration(name: 'LocalGoogleCloudIT',
+      attributes: [(CONFIG_KEY): [(BUCKET_NAME_KEY): 'local-google-cloud-it']])
+
+  PeriodicJobService periodicJobService = Mock({
+    schedule(_, _) >> new PeriodicJob() {
+      @Override
+      void cancel() {
+      }
+    }
+  })
+
+  MetricRegistry metricRegistry = new MetricRegistry()
+
+  def setupSpec() {
+    services = LocalGoogleCloud.withDatastoreEmulator(faults)
+  }
+
+  def cleanupSpec() {
+    services.stop()
+  }
+
+  def setup() {
+    faults.withLatency(0, TimeUnit.MILLISECONDS).withThrottling(0d).withServerErrors(0d)
+  }
+
+  def "deleted blob index recovers from datastore server errors"() {
+    given:
+      DeletedBlobIndex index = new DeletedBlobIndex(services.datastore, config)
+      index.initialize()
+      List<BlobId> blobIds = (1..50).collect { new BlobId(UUID.randomUUID().toString()) }
+
+    when:
+      faults.withServerErrors(0.05d)
+      blobIds.each { index.add(it) }
+      faults.withServerErrors(0d)
+
+    then:
+      index.contents.collect { it }.toSet() == blobIds.toSet()
+
+    cleanup:
+      index.removeData()
+  }
+
+  def "metrics store flush survives datastore server errors"() {
+    given:
+      ShardedCounterMetricsStore metricsStore = new ShardedCounterMetricsStore(new DefaultBlobIdLocationResolver(),
+          services.datastore, config, 100)
+      metricsStore.initialize()
+
+    when:
+      faults.withServerErrors(0.05d)
+      (1..100).each { metricsStore.recordAddition(new BlobId(UUID.randomUUID().toString()), 10L) }
+      metricsStore.flush()
+      faults.withServerErrors(0d)
+
+    then:
+      metricsStore.metrics.blobCount == 100L
+      metricsStore.metrics.totalSize == 1000L
+
+    cleanup:
+      metricsStore.removeData()
+  }
+
+  def "multipart uploads complete with injected latency"() {
+    given:
+      MultipartUploader uploader = new MultipartUploader(metricRegistry, 256 * 1024)
+      uploader.start()
+      byte[] content = new byte[1024 * 1024]
+      new Random().nextBytes(content)
+
+    when:
+      faults.withLatency(10, TimeUnit.MILLISECONDS)
+      def blob = uploader.upload(services.storage, 'local-google-cloud-it', 'multipart', new ByteArrayInputStream(content))
+
+    then:
+      blob.size == content.length
+      services.storage.readAllBytes(blob.blobId) == content
+
+    cleanup:
+      uploader.stop()
+  }
+
+  def "blob store keeps serving while storage and datastore are flaky"() {
+    given:
+      MultipartUploader uploader = new MultipartUploader(metricRegistry, 0)
+      uploader.start()
+      GoogleCloudBlobStore blobStore = new GoogleCloudBlobStore(services.storageFactory(),
+          new DefaultBlobIdLocationResolver(), periodicJobService, services.datastoreFactory(),
+          new DryRunPrefix("TEST "), uploader, metricRegistry, null, 60)
+      blobStore.init(config)
+      blobStore.start()
+
+    when:
+      faults.withLatency(2, TimeUnit.MILLISECONDS).withThrottling(0.02d).withServerErrors(0.02d)
+      List<BlobId> created = []
+      int failures = 0
+      (1..100).each {
+        try {
+          created << blobStore.create(new ByteArrayInputStream("blob ${it}".bytes),
+              [(BlobStore.BLOB_NAME_HEADER): "flaky/${it}", (BlobStore.CREATED_BY_HEADER): 'test']).id
+        }
+        catch (RuntimeException e) {
+          log.debug('create failed under injected faults', e)
+          failures++
+        }
+      }
+      faults.withLatency(0, TimeUnit.MILLISECONDS).withThrottling(0d).withServerErrors(0d)
+      log.info('{} blobs created, {} failed, {} faults injected over {} calls', created.size(), failures,
+          faults.throttled + faults.serverErrors, faults.calls)
+
+    then: 'most writes succeed, and everything that succeeded can be read back'
+      created.size() > 80
+      created.every { blobStore.get(it) != null }
+
+    cleanup:
+      blobStore.stop()
+      uploader.stop()
+  }
+}
@@ -88,6 +88,64 @@ class MultipartUploaderIT
       uploader.doStop()
   }
 
+  def "multipart upload reports the commit once the composed object is in place"() {
+    given:
+      MultipartUploader uploader = new MultipartUploader(metricRegistry, 1048576)
+      byte[] data = new byte[(1048576 * 2) + 2]
+      new Random().nextBytes(data)
+      String destination = 'vol-01/chap-01/control/multi_part_committed'
+      byte[] committed = null
+
+    when:
+      uploader.upload(storage, bucketName, destination, new ByteArrayInputStream(data), {
+        committed = storage.get(bucketName, destination).getContent()
+      })
+
+    then:
+      committed == data
+
+    cleanup:
+      uploader.doStop()
+  }
+
+  def "async multipart"() {
+    given:
+      long expectedSize = (1048576 * 3) + 2
+      MultipartUploader uploader = new MultipartUploader(metricRegistry, 1048576)
+      byte[] data = new byte[expectedSize]
+      new Random().nextBytes(data)
+
+    when:
+      Blob blob = uploader.uploadAsync(storage, bucketName, 'vol-01/chap-01/control/multi_part_async',
+          new ByteArrayInputStream(data)).get()
+
+    then:
+      blob.size == expectedSize
+      storage.get(bucketName, 'vol-01/chap-01/control/multi_part_async').getContent() == data
+
+    cleanup:
+      uploader.doStop()
+  }
+
+  def "integrity checked multipart"() {
+    given:
+      long expectedSize = (1048576 * 3) + 2
+      MultipartUploader uploader = new MultipartUploader(metricRegistry, 1048576, true)
+      byte[] data = new byte[expectedSize]
+      new Random().nextBytes(data)
+
+    when:
+      Blob blob = uploader.upload(storage, bucketName, 'vol-01/chap-01/control/multi_part_verified',
+          new ByteArrayInputStream(data))
+
+    then:
+      blob.size == expectedSize
+      uploader.getNumberOfIntegrityFailures() == 0L
+
+    cleanup:
+      uploader.doStop()
+  }
+
   def "negative chunksize disallowed"() {
     when:
       new MultipartUploader(metricRegistry, -1)
@@ -0,0 +1,140 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal
+
+import org.sonatype.nexus.blobstore.api.BlobId
+
+import com.google.common.hash.Hashing
+import com.google.common.io.ByteStreams
+import spock.lang.Specification
+
+class OffHeapContentCacheTest
+    extends Specification
+{
+
+  // a single 1 MB page, cut into slots for whichever of the 256, 512 and 1024 byte size classes needs it first
+  OffHeapContentCache cache = new OffHeapContentCache(1024 * 1024, 1024)
+
+  def "cached content is returned as a copy"() {
+    given:
+      BlobId blobId = new BlobId('a')
+      byte[] content = 'hello'.bytes
+      cache.put(blobId, sha1(content), content, content.length)
+
+    when:
+      byte[] first = cache.get(blobId, sha1(content))
+      first[0] = (byte) 'j'
+
+    then:
+      cache.get(blobId, sha1(content)) == content
+      cache.hitCount == 2L
+      cache.entryCount == 1L
+      cache.allocatedBytes == 1024L * 1024L
+  }
+
+  def "content with a different SHA-1 is a miss"() {
+    given:
+      BlobId blobId = new BlobId('a')
+      cache.put(blobId, sha1('old'.bytes), 'old'.bytes, 3)
+
+    expect:
+      cache.get(blobId, sha1('new'.bytes)) == null
+      cache.missCount == 1L
+  }
+
+  def "replacing content moves it to the size class of the new length"() {
+    given: 'a page for each size class in use'
+      OffHeapContentCache twoPages = new OffHeapContentCache(2 * 1024 * 1024, 1024)
+      BlobId blobId = new BlobId('a')
+      byte[] large = new byte[600]
+      twoPages.put(blobId, sha1('small'.bytes), 'small'.bytes, 5)
+
+    when:
+      twoPages.put(blobId, sha1(large), large, large.length)
+
+    then:
+      twoPages.get(blobId, sha1('small'.bytes)) == null
+      twoPages.get(blobId, sha1(large)) == large
+      twoPages.entryCount == 1L
+  }
+
+  def "blobs larger than the maximum are not cached"() {
+    given:
+      BlobId blobId = new BlobId('a')
+      byte[] content = new byte[1025]
+
+    when:
+      cache.put(blobId, sha1(content), content, content.length)
+
+    then:
+      cache.entryCount == 0L
+      cache.allocatedBytes == 0L
+  }
+
+  def "invalidated entries free their slot"() {
+    given:
+      BlobId blobId = new BlobId('a')
+      cache.put(blobId, sha1('hello'.bytes), 'hello'.bytes, 5)
+
+    when:
+      cache.invalidate(blobId)
+
+    then:
+      cache.get(blobId, sha1('hello'.bytes)) == null
+      cache.entryCount == 0L
+  }
+
+  def "the least recently used entry of a full size class is evicted"() {
+    given: 'every 256 byte slot of the page is taken'
+      byte[] content = new byte[100]
+      String hash = sha1(content)
+      (0..<4096).each { cache.put(new BlobId("blob-$it"), hash, content, content.length) }
+
+    when: 'the first blob is read, then one more is cached'
+      cache.get(new BlobId('blob-0'), hash)
+      cache.put(new BlobId('blob-4096'), hash, content, content.length)
+
+    then: 'the second blob made room'
+      cache.evictionCount == 1L
+      cache.get(new BlobId('blob-0'), hash) == content
+      cache.get(new BlobId('blob-1'), hash) == null
+      cache.get(new BlobId('blob-4096'), hash) == content
+
+    when: 'a size class with no page and no entries is given content'
+      byte[] large = new byte[1000]
+      cache.put(new BlobId('large'), sha1(large), large, large.length)
+
+    then: 'it is not cached'
+      cache.get(new BlobId('large'), sha1(large)) == null
+      cache.allocatedBytes == 1024L * 1024L
+  }
+
+  def "captured content is kept while it is small enough"() {
+    when:
+      def capture = cache.capture(new ByteArrayInputStream(content))
+      ByteStreams.toByteArray(capture)
+
+    then:
+      capture.content == expected
+
+    where:
+      content         || expected
+      'hello'.bytes   || 'hello'.bytes
+      new byte[1024]  || new byte[1024]
+      new byte[1025]  || null
+  }
+
+  private static String sha1(byte[] content) {
+    Hashing.sha1().hashBytes(content).toString()
+  }
+}
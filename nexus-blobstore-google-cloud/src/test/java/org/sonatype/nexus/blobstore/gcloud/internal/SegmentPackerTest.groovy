@@ -0,0 +1,143 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal
+
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.locks.ReentrantLock
+import java.util.stream.Stream
+
+import org.sonatype.nexus.blobstore.MockBlobStoreConfiguration
+import org.sonatype.nexus.blobstore.api.BlobId
+import org.sonatype.nexus.blobstore.gcloud.internal.PackedBlobIndex.Location
+
+import com.google.cloud.storage.BucketInfo
+import com.google.cloud.storage.Storage
+import com.google.cloud.storage.Storage.BlobListOption
+import spock.lang.Specification
+
+class SegmentPackerTest
+    extends Specification
+{
+
+  LocalGoogleCloud services = LocalGoogleCloud.inMemory(FaultInjector.none())
+
+  Storage storage = services.storage
+
+  List<Map.Entry<BlobId, Location>> indexed = []
+
+  // the in-memory datastore cannot run queries, so the contents come from the locations handed out
+  PackedBlobIndex index = new PackedBlobIndex(services.datastore, new MockBlobStoreConfiguration(name: 'packed')) {
+    @Override
+    Stream<Map.Entry<BlobId, Location>> getContents() {
+      return indexed.findAll { get(it.key) == it.value }.stream()
+    }
+  }
+
+  SegmentPacker packer
+
+  def setup() {
+    storage.create(BucketInfo.of('packed'))
+  }
+
+  def cleanup() {
+    packer?.stop()
+    services.stop()
+  }
+
+  def "concurrent writes are packed into one segment"() {
+    given:
+      packer = new SegmentPacker(storage, 'packed', index, 1024, 1024 * 1024, 200)
+
+    when:
+      def executor = Executors.newFixedThreadPool(8)
+      def locations = (0..<8).collect { i ->
+        executor.submit({ packer.pack(new BlobId("blob-$i"), "content-$i".bytes) } as Callable<Location>)
+      }.collect { it.get() }
+      executor.shutdown()
+
+    then:
+      locations*.segment.unique().size() == 1
+      packer.segmentsWritten == 1L
+      packer.blobsPacked == 8L
+      (0..<8).every { i -> packer.read(locations[i]) == "content-$i".bytes }
+      (0..<8).every { i -> index.get(new BlobId("blob-$i")) == locations[i] }
+  }
+
+  def "a full segment is written without waiting"() {
+    given:
+      packer = new SegmentPacker(storage, 'packed', index, 10, 10, 60_000)
+
+    when:
+      long start = System.currentTimeMillis()
+      Location location = packer.pack(new BlobId('a'), '0123456789'.bytes)
+
+    then:
+      System.currentTimeMillis() - start < 60_000
+      packer.read(location) == '0123456789'.bytes
+  }
+
+  def "blobs larger than the maximum are rejected"() {
+    given:
+      packer = new SegmentPacker(storage, 'packed', index, 4, 1024, 0)
+
+    when:
+      packer.pack(new BlobId('a'), 'too large'.bytes)
+
+    then:
+      thrown(IllegalArgumentException)
+  }
+
+  def "compaction deletes dead segments and rewrites mostly dead ones"() {
+    given: 'one segment with one live blob out of four, and one with none'
+      packer = new SegmentPacker(storage, 'packed', index, 1024, 1024 * 1024, 200)
+      def mostlyDead = packAll(['a', 'b', 'c', 'd'])
+      def dead = packAll(['e'])
+      ['a', 'b', 'c', 'e'].each { index.remove(new BlobId(it)) }
+      Map<BlobId, Location> relocated = [:]
+
+    when:
+      packer.compact({ id -> lock() }, { id, location -> relocated[id] = location }, 0)
+
+    then:
+      relocated.keySet() == [new BlobId('d')] as Set
+      index.get(new BlobId('d')) == relocated[new BlobId('d')]
+      packer.read(relocated[new BlobId('d')]) == 'content-d'.bytes
+      storage.get('packed', mostlyDead.segment) == null
+      storage.get('packed', dead.segment) == null
+      packer.segmentsCompacted == 1L
+      packer.segmentsDeleted == 1L
+      segments().size() == 1
+  }
+
+  private static ReentrantLock lock() {
+    ReentrantLock lock = new ReentrantLock()
+    lock.lock()
+    return lock
+  }
+
+  private Location packAll(List<String> names) {
+    def executor = Executors.newFixedThreadPool(names.size())
+    def locations = names.collect { name ->
+      executor.submit({ packer.pack(new BlobId(name), "content-$name".bytes) } as Callable<Location>)
+    }.collect { it.get() }
+    executor.shutdown()
+    names.eachWithIndex { name, i -> indexed << new AbstractMap.SimpleImmutableEntry(new BlobId(name), locations[i]) }
+    assert locations*.segment.unique().size() == 1
+    return locations[0]
+  }
+
+  private List<String> segments() {
+    storage.list('packed', BlobListOption.prefix(SegmentPacker.SEGMENT_PREFIX)).iterateAll().collect { it.name }
+  }
+}
@@ -49,7 +49,7 @@ class ShardedCounterMetricsStoreIT
     ]
   }
   def setup() {
-    metricsStore = new ShardedCounterMetricsStore(blobIdLocationResolver, datastoreFactory, config)
+    metricsStore = new ShardedCounterMetricsStore(blobIdLocationResolver, datastoreFactory.create(config), config)
     metricsStore.initialize()
   }
 
@@ -0,0 +1,77 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal
+
+import org.sonatype.nexus.blobstore.DefaultBlobIdLocationResolver
+import org.sonatype.nexus.blobstore.MockBlobStoreConfiguration
+import org.sonatype.nexus.blobstore.api.BlobStoreConfiguration
+import org.sonatype.nexus.blobstore.api.OperationType
+
+import spock.lang.Specification
+
+class ShardedCounterMetricsStoreTest
+    extends Specification
+{
+  BlobStoreConfiguration config = new MockBlobStoreConfiguration(name: 'ShardedCounterMetricsStoreTest')
+
+  ShardedCounterMetricsStore metricsStore = new ShardedCounterMetricsStore(new DefaultBlobIdLocationResolver(),
+      InMemoryDatastore.create(), config)
+
+  def "recordOperation updates cumulative and delta operation metrics"() {
+    given:
+      metricsStore.recordOperation(OperationType.UPLOAD, 1024L, 20L, true)
+      metricsStore.recordOperation(OperationType.UPLOAD, 0L, 5L, false)
+      metricsStore.recordOperation(OperationType.DOWNLOAD, 512L, 10L, true)
+
+    when:
+      def delta = metricsStore.operationMetricsDelta
+      metricsStore.clearOperationMetrics()
+      metricsStore.recordOperation(OperationType.DOWNLOAD, 256L, 1L, true)
+
+    then: 'the cleared delta is a snapshot'
+      delta[OperationType.UPLOAD].successfulRequests == 1L
+      delta[OperationType.UPLOAD].errorRequests == 1L
+      delta[OperationType.UPLOAD].blobSize == 1024L
+      delta[OperationType.UPLOAD].timeOnRequests == 25L
+      delta[OperationType.DOWNLOAD].blobSize == 512L
+
+    and: 'the new delta only has operations since the clear'
+      metricsStore.operationMetricsDelta[OperationType.UPLOAD].successfulRequests == 0L
+      metricsStore.operationMetricsDelta[OperationType.DOWNLOAD].blobSize == 256L
+
+    and: 'cumulative metrics have everything'
+      metricsStore.operationMetricsByType[OperationType.DOWNLOAD].successfulRequests == 2L
+      metricsStore.operationMetricsByType[OperationType.DOWNLOAD].blobSize == 768L
+  }
+
+  def "operation metrics handed out are snapshots"() {
+    given:
+      metricsStore.recordOperation(OperationType.UPLOAD, 1024L, 20L, true)
+
+    when:
+      def byType = metricsStore.operationMetricsByType
+      def delta = metricsStore.operationMetricsDelta
+      metricsStore.recordOperation(OperationType.UPLOAD, 1024L, 20L, true)
+
+    then:
+      byType[OperationType.UPLOAD].successfulRequests == 1L
+      delta[OperationType.UPLOAD].successfulRequests == 1L
+      metricsStore.operationMetricsByType[OperationType.UPLOAD].successfulRequests == 2L
+
+    when:
+      delta.remove(OperationType.UPLOAD)
+
+    then:
+      thrown(UnsupportedOperationException)
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal
+
+import java.security.KeyPairGenerator
+import java.util.function.Supplier
+
+import org.sonatype.nexus.blobstore.api.BlobId
+
+import com.google.auth.oauth2.ServiceAccountCredentials
+import com.google.cloud.NoCredentials
+import com.google.cloud.storage.BlobInfo
+import com.google.cloud.storage.Storage
+import com.google.cloud.storage.StorageOptions
+import spock.lang.Specification
+
+class SignedUrlIssuerTest
+    extends Specification
+{
+
+  ServiceAccountCredentials credentials = ServiceAccountCredentials.newBuilder()
+      .setClientEmail('signer@test.iam.gserviceaccount.com')
+      .setPrivateKey(KeyPairGenerator.getInstance('RSA').generateKeyPair().private)
+      .build()
+
+  Storage storage = StorageOptions.newBuilder()
+      .setProjectId('test')
+      .setCredentials(credentials)
+      .build()
+      .service
+
+  SignedUrlIssuer issuer = new SignedUrlIssuer(storage, credentials, 900, 100)
+
+  BlobId blobId = new BlobId('a')
+
+  Supplier<BlobInfo> content = Mock()
+
+  def "URLs are V4 signed for the content object"() {
+    when:
+      URL url = issuer.get(blobId, content)
+
+    then:
+      1 * content.get() >> BlobInfo.newBuilder('bucket', 'content/vol-01/chap-01/a.bytes').build()
+      url.path == '/bucket/content/vol-01/chap-01/a.bytes'
+      url.query.contains('X-Goog-Algorithm=GOOG4-RSA-SHA256')
+      url.query.contains('X-Goog-Expires=900')
+      issuer.signedCount == 1L
+  }
+
+  def "URLs are reused until invalidated"() {
+    given:
+      content.get() >> BlobInfo.newBuilder('bucket', 'content/a.bytes').build()
+      URL first = issuer.get(blobId, content)
+
+    when:
+      URL second = issuer.get(blobId, content)
+
+    then:
+      second.is(first)
+      issuer.signedCount == 1L
+      issuer.hitCount == 1L
+
+    when:
+      issuer.invalidate(blobId)
+      issuer.get(blobId, content)
+
+    then:
+      issuer.signedCount == 2L
+  }
+
+  def "blobs without a content object have no URL"() {
+    when:
+      URL url = issuer.get(blobId, content)
+
+    then:
+      1 * content.get() >> null
+      url == null
+      issuer.size == 0L
+  }
+
+  def "only credentials able to sign are used"() {
+    given:
+      Storage anonymous = StorageOptions.newBuilder()
+          .setProjectId('test')
+          .setCredentials(NoCredentials.instance)
+          .build()
+          .service
+
+    expect:
+      SignedUrlIssuer.signerOf(storage).is(credentials)
+      SignedUrlIssuer.signerOf(anonymous) == null
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * Sonatype Nexus (TM) Open Source Version
+ * Copyright (c) 2017-present Sonatype, Inc.
+ * All rights reserved. Includes the third-party code listed at http://links.sonatype.com/products/nexus/oss/attributions.
+ *
+ * This program and the accompanying materials are made available under the terms of the Eclipse Public License Version 1.0,
+ * which accompanies this distribution and is available at http://www.eclipse.org/legal/epl-v10.html.
+ *
+ * Sonatype Nexus (TM) Professional Version is available from Sonatype, Inc. "Sonatype" and "Sonatype Nexus" are trademarks
+ * of Sonatype, Inc. Apache Maven is a trademark of the Apache Software Foundation. M2eclipse is a trademark of the
+ * Eclipse Foundation. All other trademarks are the property of their respective owners.
+ */
+package org.sonatype.nexus.blobstore.gcloud.internal
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.ConcurrentHashMap
+
+import org.sonatype.nexus.blobstore.api.BlobId
+
+import com.google.common.hash.Hashing
+import com.google.common.io.ByteStreams
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+class WriteBackStagingTest
+    extends Specification
+{
+
+  Path directory
+
+  WriteBackStaging staging
+
+  Map<BlobId, byte[]> uploaded = new ConcurrentHashMap<>()
+
+  def setup() {
+    directory = Files.createTempDirectory('staging')
+    staging = new WriteBackStaging(directory.resolve('test'), 2)
+    staging.initialize()
+  }
+
+  def cleanup() {
+    staging.stop()
+    directory.toFile().deleteDir()
+  }
+
+  def "staged blobs are readable until they are flushed"() {
+    given:
+      BlobId blobId = new BlobId('a')
+      byte[] content = 'hello'.bytes
+
+    when:
+      def staged = staging.stage(blobId, [name: 'a'], new ByteArrayInputStream(content))
+
+    then:
+      staged.metrics.contentSize == content.length
+      staged.metrics.sha1Hash == Hashing.sha1().hashBytes(content).toString()
+      staged.headers == [name: 'a']
+      read(staging.open(staging.get(blobId))) == content
+      staging.depth == 1
+      staging.stagedBytes == content.length
+
+    when:
+      staging.start(flusher())
+
+    then:
+      new PollingConditions(timeout: 5).eventually {
+        assert uploaded[blobId] == content
+        assert staging.depth == 0
+      }
+      staging.get(blobId) == null
+      staging.open(staged) == null
+      staging.flushedCount == 1L
+  }
+
+  def "blobs left staged by a crash are flushed after a restart"() {
+    given:
+      BlobId blobId = new BlobId('a')
+      staging.stage(blobId, [name: 'a'], new ByteArrayInputStream('old'.bytes))
+      staging.stage(blobId, [name: 'a'], new ByteArrayInputStream('new'.bytes))
+      staging.stage(new BlobId('b'), [name: 'b'], new ByteArrayInputStream('other'.bytes))
+
+    when: 'another instance picks up the directory'
+      def recovered = new WriteBackStaging(directory.resolve('test'), 1)
+      recovered.initialize()
+
+    then:
+      recovered.depth == 2
+      recovered.get(blobId).headers == [name: 'a']
+      read(recovered.open(recovered.get(blobId))) == 'new'.bytes
+
+    when:
+      recovered.start(flusher(recovered))
+
+    then:
+      new PollingConditions(timeout: 5).eventually {
+        assert recovered.depth == 0
+        // the files of a flushed blob are deleted just after it leaves the staged blobs
+        assert Files.list(directory.resolve('test')).count() == 0
+      }
+      uploaded[blobId] == 'new'.bytes
+      uploaded[new BlobId('b')] == 'other'.bytes
+
+    cleanup:
+      recovered.stop()
+  }
+
+  def "unacknowledged journal entries and orphaned content are dropped on initialize"() {
+    given:
+      Path dir = directory.resolve('test')
+      Files.write(dir.resolve('x.partial'), 'blobId=x'.bytes)
+      Files.write(dir.resolve('y.content'), 'orphan'.bytes)
+
+    when:
+      staging.initialize()
+
+    then:
+      staging.depth == 0
+      Files.list(dir).count() == 0
+  }
+
+  def "discarded blobs are not flushed"() {
+    given:
+      BlobId blobId = new BlobId('a')
+      staging.stage(blobId, [name: 'a'], new ByteArrayInputStream('hello'.bytes))
+
+    when:
+      def discarded = staging.discard(blobId)
+      staging.start(flusher())
+      staging.stop()
+
+    then:
+      discarded.blobId == blobId
+      staging.depth == 0
+      uploaded.isEmpty()
+      Files.list(directory.resolve('test')).count() == 0
+  }
+
+  def "failed flushes are retried"() {
+    given:
+      BlobId blobId = new BlobId('a')
+      staging.stage(blobId, [name: 'a'], new ByteArrayInputStream('hello'.bytes))
+
+    when:
+      staging.start({ blob -> throw new IOException('unavailable') } as WriteBackStaging.Flusher)
+
+    then:
+      new PollingConditions(timeout: 5).eventually {
+        assert staging.failureCount == 1L
+      }
+      staging.depth == 1
+      staging.flushLagMillis >= 0
+  }
+
+  def "blobs can be flushed on demand"() {
+    given:
+      BlobId blobId = new BlobId('a')
+      staging.stage(blobId, [name: 'a'], new ByteArrayInputStream('hello'.bytes))
+      staging.start(flusher())
+
+    when:
+      staging.flushNow(blobId)
+
+    then:
+      uploaded[blobId] == 'hello'.bytes
+      staging.depth == 0
+  }
+
+  private WriteBackStaging.Flusher flusher(WriteBackStaging target = staging) {
+    return { WriteBackStaging.StagedBlob blob ->
+      synchronized (uploaded) {
+        if (target.isCurrent(blob)) {
+          uploaded[blob.blobId] = read(target.open(blob))
+          target.complete(blob)
+        }
+      }
+    } as WriteBackStaging.Flusher
+  }
+
+  private static byte[] read(InputStream input) {
+    input.withCloseable { ByteStreams.toByteArray(it) }
+  }
+}